@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link OutputStream} handing the written bytes to a dedicated thread that writes them to a {@link FileChannel},
+ * so that the writing thread does not wait for the disk. Bytes are accumulated in a ring of buffers:
+ * the writing thread fills a buffer while the others are written, and blocks when no buffer is free.
+ * The time spent blocked is reported by {@link #getBlockedNanos()}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class AsyncChannelOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    public static final int DEFAULT_BUFFERS = 2;
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> full;
+    private final Thread writer;
+    private final Object lock = new Object();
+
+    private ByteBuffer current;
+    private long submitted;
+    private long written;
+    private long blockedNanos;
+    private volatile IOException failure;
+    private boolean closed;
+
+    /**
+     * @param channel output channel, closed with the stream.
+     * @param bufferSize size of every buffer.
+     * @param buffers number of buffers, at least <code>2</code>.
+     */
+    public AsyncChannelOutputStream(FileChannel channel, int bufferSize, int buffers) {
+        if(channel == null) throw new IllegalArgumentException("Invalid channel.");
+        if(bufferSize < 1) throw new IllegalArgumentException("Invalid buffer size.");
+        if(buffers < 2) throw new IllegalArgumentException("At least two buffers are required.");
+        this.channel = channel;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.full = new ArrayBlockingQueue<>(buffers + 1);
+        for(int i = 1; i < buffers; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        this.current = ByteBuffer.allocateDirect(bufferSize);
+        this.writer = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                },
+                "async-output-" + THREADS.getAndIncrement()
+        );
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public AsyncChannelOutputStream(FileChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS);
+    }
+
+    /**
+     * Creates or truncates <code>file</code>.
+     */
+    public AsyncChannelOutputStream(File file, int bufferSize, int buffers) throws IOException {
+        this(
+                FileChannel.open(
+                        file.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+                ),
+                bufferSize, buffers
+        );
+    }
+
+    /**
+     * @return the time the writing thread has been blocked waiting for a free buffer or a flush.
+     */
+    public long getBlockedNanos() {
+        synchronized (lock) {
+            return blockedNanos;
+        }
+    }
+
+    /**
+     * @return the number of bytes written to the channel.
+     */
+    public long getWrittenBytes() {
+        synchronized (lock) {
+            return written;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if(!current.hasRemaining()) submit();
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        int chunk;
+        while(len > 0) {
+            if(!current.hasRemaining()) submit();
+            chunk = Math.min(len, current.remaining());
+            current.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * Waits until all the written bytes have been written to the channel.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if(current.position() > 0) submit();
+        final long start = System.nanoTime();
+        synchronized (lock) {
+            try {
+                while(written < submitted && failure == null) lock.wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing.");
+            } finally {
+                blockedNanos += System.nanoTime() - start;
+            }
+        }
+        checkFailure();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            full.offer(END);
+            try {
+                writer.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        checkFailure();
+        current.flip();
+        synchronized (lock) {
+            submitted += current.remaining();
+        }
+        full.add(current);
+        final long start = System.nanoTime();
+        try {
+            current = free.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer.");
+        } finally {
+            synchronized (lock) {
+                blockedNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Body of the writing thread.
+     */
+    private void drain() {
+        ByteBuffer buffer;
+        int size;
+        try {
+            while((buffer = full.take()) != END) {
+                size = buffer.remaining();
+                try {
+                    while(buffer.hasRemaining()) channel.write(buffer);
+                } catch (IOException ioe) {
+                    failure = ioe;
+                }
+                buffer.clear();
+                free.add(buffer);
+                synchronized (lock) {
+                    written += size;
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException ie) {
+            failure = new InterruptedIOException("Writer interrupted.");
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException ioe = failure;
+        if(ioe != null) throw new IOException("Error while writing to channel.", ioe);
+    }
+
+    private void ensureOpen() throws IOException {
+        if(closed) throw new IOException("Stream closed.");
+    }
+
+}
@@ -0,0 +1,395 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.Var;
+import org.rdfhdt.hdt.dictionary.Dictionary;
+import org.rdfhdt.hdt.enums.TripleComponentRole;
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.triples.IteratorTripleID;
+import org.rdfhdt.hdt.triples.TripleID;
+import org.rdfhdt.hdt.triples.Triples;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates basic graph patterns directly on the HDT triple IDs,
+ * joining the patterns with index nested loops.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class BGPEvaluator {
+
+    private static final TripleComponentRole[] ROLES = {
+            TripleComponentRole.SUBJECT, TripleComponentRole.PREDICATE, TripleComponentRole.OBJECT
+    };
+
+    private final Dictionary dictionary;
+    private final Triples triples;
+    private final long shared;
+
+    BGPEvaluator(HDT hdt) {
+        this.dictionary = hdt.getDictionary();
+        this.triples = hdt.getTriples();
+        this.shared = dictionary.getNshared();
+    }
+
+    Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Translates a pattern in an evaluation plan.
+     *
+     * @param pattern the pattern to be compiled.
+     * @return the evaluation plan.
+     */
+    Plan compile(BasicPattern pattern) {
+        final Map<Var,Integer> vars = new HashMap<>();
+        final List<Var> varList = new ArrayList<>();
+        final List<Step> steps = new ArrayList<>();
+        boolean empty = false;
+        for(Triple triple : pattern) {
+            final Node[] nodes = {triple.getSubject(), triple.getPredicate(), triple.getObject()};
+            final int[] constants = new int[3];
+            final int[] slots = {-1, -1, -1};
+            for(int i = 0; i < 3; i++) {
+                if(Var.isVar(nodes[i])) {
+                    final Var var = Var.alloc(nodes[i]);
+                    Integer slot = vars.get(var);
+                    if(slot == null) {
+                        slot = varList.size();
+                        vars.put(var, slot);
+                        varList.add(var);
+                    }
+                    slots[i] = slot;
+                } else {
+                    constants[i] = dictionary.stringToId(HDTNodes.toHDTString(nodes[i]), ROLES[i]);
+                    if(constants[i] <= 0) empty = true;
+                }
+            }
+            steps.add(new Step(constants, slots));
+        }
+        return new Plan(varList, empty ? new Step[0] : order(steps), empty);
+    }
+
+    /**
+     * @return the number of triples matching the constant part of <code>step</code>, as estimated by HDT.
+     */
+    long estimate(Step step) {
+        return triples.search(new TripleID(step.constants[0], step.constants[1], step.constants[2]))
+                .estimatedNumResults();
+    }
+
+    /**
+     * @return the number of triples matching <code>triple</code>, where variables match any term,
+     *         as estimated by HDT.
+     */
+    long estimate(Triple triple) {
+        final Node[] nodes = {triple.getSubject(), triple.getPredicate(), triple.getObject()};
+        final int[] components = new int[3];
+        for(int i = 0; i < 3; i++) {
+            if(Var.isVar(nodes[i])) continue;
+            components[i] = dictionary.stringToId(HDTNodes.toHDTString(nodes[i]), ROLES[i]);
+            if(components[i] <= 0) return 0;
+        }
+        return triples.search(new TripleID(components[0], components[1], components[2])).estimatedNumResults();
+    }
+
+    /**
+     * Estimates the number of solutions of <code>pattern</code> for a single binding of the
+     * <code>bound</code> variables. Patterns are joined greedily as in the evaluation, assuming values uniformly
+     * distributed over the dictionary sections: a pattern joined on a variable contributes its estimate divided
+     * by the size of the section of the variable, a pattern whose variables are all bound is assumed satisfied.
+     *
+     * @param pattern the pattern to be estimated.
+     * @param bound variables bound before the evaluation.
+     * @return the estimated number of solutions.
+     */
+    double estimateCardinality(BasicPattern pattern, Collection<Var> bound) {
+        final Set<Var> joined = new HashSet<>(bound);
+        final List<Triple> remaining = new ArrayList<>(pattern.getList());
+        double cardinality = 1;
+        while(!remaining.isEmpty()) {
+            Triple best = null;
+            int bestBound = -1;
+            long bestEstimate = 0;
+            for(Triple candidate : remaining) {
+                final int candidateBound = countBound(candidate, joined);
+                final long candidateEstimate = estimate(candidate);
+                if(
+                        candidateBound > bestBound
+                        ||
+                        (candidateBound == bestBound && candidateEstimate < bestEstimate)
+                ) {
+                    best = candidate;
+                    bestBound = candidateBound;
+                    bestEstimate = candidateEstimate;
+                }
+            }
+            remaining.remove(best);
+            if(bestEstimate == 0) return 0;
+            final Node[] nodes = {best.getSubject(), best.getPredicate(), best.getObject()};
+            double factor = bestEstimate;
+            boolean free = false;
+            for(int i = 0; i < 3; i++) {
+                if(!Var.isVar(nodes[i])) continue;
+                final Var var = Var.alloc(nodes[i]);
+                if(joined.contains(var)) {
+                    factor = Math.min(factor, bestEstimate / (double) Math.max(1, getSectionSize(ROLES[i])));
+                } else {
+                    free = true;
+                    joined.add(var);
+                }
+            }
+            if(bestBound > 0 && !free) factor = 1;
+            cardinality *= factor;
+        }
+        return cardinality;
+    }
+
+    private int countBound(Triple triple, Set<Var> bound) {
+        int count = 0;
+        for(Node node : new Node[] {triple.getSubject(), triple.getPredicate(), triple.getObject()}) {
+            if(Var.isVar(node) && bound.contains(Var.alloc(node))) count++;
+        }
+        return count;
+    }
+
+    private long getSectionSize(TripleComponentRole role) {
+        switch (role) {
+            case SUBJECT:
+                return dictionary.getNsubjects();
+            case PREDICATE:
+                return dictionary.getNpredicates();
+            default:
+                return dictionary.getNobjects();
+        }
+    }
+
+    /**
+     * Greedy join order: starts from the most selective pattern and then picks the most selective
+     * pattern sharing a variable with the ones already chosen.
+     */
+    private Step[] order(List<Step> steps) {
+        final List<Step> remaining = new ArrayList<>(steps);
+        final Map<Step,Long> estimates = new HashMap<>();
+        for(Step step : steps) {
+            estimates.put(step, estimate(step));
+        }
+        final List<Integer> bound = new ArrayList<>();
+        final Step[] out = new Step[steps.size()];
+        for(int i = 0; i < out.length; i++) {
+            Step best = null;
+            boolean bestConnected = false;
+            for(Step candidate : remaining) {
+                final boolean connected = candidate.shares(bound);
+                if(
+                        best == null
+                        ||
+                        (connected && !bestConnected)
+                        ||
+                        (connected == bestConnected && estimates.get(candidate) < estimates.get(best))
+                ) {
+                    best = candidate;
+                    bestConnected = connected;
+                }
+            }
+            remaining.remove(best);
+            for(int slot : best.slots) {
+                if(slot >= 0) bound.add(slot);
+            }
+            out[i] = best;
+        }
+        return out;
+    }
+
+    /**
+     * Converts an ID from the section of role <code>from</code> to the one of role <code>to</code>.
+     *
+     * @return the converted ID or <code>0</code> if the term does not appear with role <code>to</code>.
+     */
+    int convert(int id, TripleComponentRole from, TripleComponentRole to) {
+        if(from == to) return id;
+        if(from != TripleComponentRole.PREDICATE && to != TripleComponentRole.PREDICATE) {
+            return id <= shared ? id : 0;
+        }
+        final int converted = dictionary.stringToId(dictionary.idToString(id, from), to);
+        return converted > 0 ? converted : 0;
+    }
+
+    /**
+     * Single triple pattern, every position holds either a constant ID or a variable slot.
+     */
+    static class Step {
+
+        final int[] constants;
+        final int[] slots;
+
+        Step(int[] constants, int[] slots) {
+            this.constants = constants;
+            this.slots = slots;
+        }
+
+        boolean shares(List<Integer> bound) {
+            for(int slot : slots) {
+                if(slot >= 0 && bound.contains(slot)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Compiled pattern, can be evaluated many times.
+     */
+    class Plan {
+
+        final List<Var> vars;
+        final Step[] steps;
+        final boolean empty;
+
+        Plan(List<Var> vars, Step[] steps, boolean empty) {
+            this.vars = vars;
+            this.steps = steps;
+            this.empty = empty;
+        }
+
+        int slotOf(Var var) {
+            return vars.indexOf(var);
+        }
+
+        Matches evaluate() {
+            return new Matches(this);
+        }
+    }
+
+    /**
+     * Cursor over the solutions of a {@link Plan}, depth first over the join steps.
+     */
+    class Matches {
+
+        private final Step[] steps;
+        private final IteratorTripleID[] iterators;
+        private final int[] ids;
+        private final TripleComponentRole[] roles;
+        private final int[] boundAt;
+
+        private int depth;
+
+        Matches(Plan plan) {
+            this.steps = plan.steps;
+            this.iterators = new IteratorTripleID[steps.length];
+            this.ids = new int[plan.vars.size()];
+            this.roles = new TripleComponentRole[plan.vars.size()];
+            this.boundAt = new int[plan.vars.size()];
+            for(int i = 0; i < boundAt.length; i++) boundAt[i] = -1;
+            if(plan.empty || steps.length == 0) {
+                depth = -1;
+            } else {
+                depth = 0;
+                iterators[0] = search(0);
+            }
+        }
+
+        /**
+         * @return the ID bound to the variable in <code>slot</code> by the current solution.
+         */
+        int getId(int slot) {
+            return ids[slot];
+        }
+
+        /**
+         * @return the dictionary section of {@link #getId(int)}.
+         */
+        TripleComponentRole getRole(int slot) {
+            return roles[slot];
+        }
+
+        /**
+         * Moves to the next solution.
+         *
+         * @return <code>false</code> when no more solutions are available.
+         */
+        boolean next() {
+            while(depth >= 0) {
+                final IteratorTripleID iterator = iterators[depth];
+                unbind(depth);
+                if(iterator != null && iterator.hasNext()) {
+                    if(bind(depth, iterator.next())) {
+                        if(depth == steps.length - 1) return true;
+                        depth++;
+                        iterators[depth] = search(depth);
+                    }
+                } else {
+                    iterators[depth] = null;
+                    depth--;
+                }
+            }
+            return false;
+        }
+
+        private IteratorTripleID search(int d) {
+            final Step step = steps[d];
+            final int[] components = new int[3];
+            for(int i = 0; i < 3; i++) {
+                final int slot = step.slots[i];
+                if(slot < 0) {
+                    components[i] = step.constants[i];
+                } else if(boundAt[slot] >= 0) {
+                    components[i] = convert(ids[slot], roles[slot], ROLES[i]);
+                    if(components[i] == 0) return null;
+                }
+            }
+            return triples.search(new TripleID(components[0], components[1], components[2]));
+        }
+
+        private boolean bind(int d, TripleID triple) {
+            final Step step = steps[d];
+            final int[] components = {triple.getSubject(), triple.getPredicate(), triple.getObject()};
+            for(int i = 0; i < 3; i++) {
+                final int slot = step.slots[i];
+                if(slot < 0) continue;
+                if(boundAt[slot] >= 0) {
+                    if(convert(ids[slot], roles[slot], ROLES[i]) != components[i]) return false;
+                } else {
+                    ids[slot] = components[i];
+                    roles[slot] = ROLES[i];
+                    boundAt[slot] = d;
+                }
+            }
+            return true;
+        }
+
+        private void unbind(int d) {
+            for(int slot = 0; slot < boundAt.length; slot++) {
+                if(boundAt[slot] == d) boundAt[slot] = -1;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.query.QueryCancelledException;
+
+/**
+ * {@link Result} of a level evaluated within an {@link ExecutionBudget}, ends as soon as the budget is exhausted.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class BudgetedResult implements Result {
+
+    private final Result result;
+    private final ExecutionBudget budget;
+    private final int level;
+    private final boolean counting;
+
+    private boolean ended;
+
+    BudgetedResult(Result result, ExecutionBudget budget, int level) {
+        this(result, budget, level, true);
+    }
+
+    /**
+     * @param counting if <code>false</code> the rows are not charged to the level, used when the rows
+     *                 are charged later as they are delivered to the collector.
+     */
+    BudgetedResult(Result result, ExecutionBudget budget, int level, boolean counting) {
+        this.result = result;
+        this.budget = budget;
+        this.level = level;
+        this.counting = counting;
+        if(result instanceof Cancellable) budget.register((Cancellable) result);
+    }
+
+    @Override
+    public String[] getBindings() {
+        return result.getBindings();
+    }
+
+    @Override
+    public boolean next() {
+        if(ended) return false;
+        try {
+            if(!budget.isExhausted() && result.next() && (!counting || budget.countRow(level))) return true;
+        } catch (QueryCancelledException qce) {
+            if(!budget.isExhausted()) throw qce;
+        }
+        ended = true;
+        if(result instanceof Cancellable) budget.unregister((Cancellable) result);
+        return false;
+    }
+
+    @Override
+    public String getValue(String binding) {
+        return result.getValue(binding);
+    }
+
+    @Override
+    public String[] getValues() {
+        return result.getValues();
+    }
+
+    @Override
+    public String getValue(int column) {
+        return result.getValue(column);
+    }
+
+    @Override
+    public long getValueId(int column) {
+        return result.getValueId(column);
+    }
+
+}
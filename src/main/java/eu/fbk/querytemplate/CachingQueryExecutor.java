@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Iterators;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link QueryExecutor} decorator caching the small results of the delegate, keyed by the expanded query
+ * and by a fingerprint of the queried dataset. Every lookup returns a new {@link ResultSet} over the cached rows,
+ * so the same result can be consumed many times and concurrently.
+ * The cache is bounded by the number of cached values, least recently used results are evicted first.
+ * Results with more than <code>maxRows</code> rows are streamed from the delegate and not cached.
+ * The results of {@link #select(Op, List)} keep the value identifiers of the delegate.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class CachingQueryExecutor implements QueryExecutor {
+
+    private final QueryExecutor delegate;
+    private final String fingerprint;
+    private final Cache<Key,Cached> cache;
+    private final int maxRows;
+
+    /**
+     * @param delegate executor evaluating the cache misses.
+     * @param fingerprint identifier of the dataset queried by <code>delegate</code>.
+     * @param maxWeight max number of values, rows by columns, retained by the cache.
+     * @param maxRows max number of rows of a cacheable result.
+     */
+    public CachingQueryExecutor(QueryExecutor delegate, String fingerprint, long maxWeight, int maxRows) {
+        if(delegate == null) throw new IllegalArgumentException("Invalid delegate.");
+        if(fingerprint == null) throw new IllegalArgumentException("Invalid fingerprint.");
+        if(maxWeight < 1) throw new IllegalArgumentException("Invalid max weight.");
+        if(maxRows < 0) throw new IllegalArgumentException("Invalid max rows.");
+        this.delegate = delegate;
+        this.fingerprint = fingerprint;
+        this.maxRows = maxRows;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher(new Weigher<Key,Cached>() {
+                    @Override
+                    public int weigh(Key key, Cached result) {
+                        return result.weight();
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Creates an executor sharing the cache of <code>shared</code>, the fingerprint keeps apart
+     * the results of different datasets.
+     */
+    public CachingQueryExecutor(QueryExecutor delegate, String fingerprint, CachingQueryExecutor shared) {
+        if(delegate == null) throw new IllegalArgumentException("Invalid delegate.");
+        if(fingerprint == null) throw new IllegalArgumentException("Invalid fingerprint.");
+        this.delegate = delegate;
+        this.fingerprint = fingerprint;
+        this.cache = shared.cache;
+        this.maxRows = shared.maxRows;
+    }
+
+    /**
+     * @return a fingerprint of a dataset file, changing when the file is modified.
+     */
+    public static String fingerprint(File dataset) throws IOException {
+        return dataset.getCanonicalPath() + ':' + dataset.length() + ':' + dataset.lastModified();
+    }
+
+    /**
+     * @return hit, miss and eviction counters of the cache.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public ResultSet execSelect(String qry) {
+        final Key key = new Key(fingerprint, qry, false);
+        final Cached cached = cache.getIfPresent(key);
+        if(cached != null) return ((CachedResult) cached).open();
+        return cache(key, delegate.execSelect(qry));
+    }
+
+    /**
+     * Algebra expressions are keyed by their SSE serialization.
+     */
+    @Override
+    public ResultSet execSelect(Op op, List<String> resultVars) {
+        final Key key = new Key(fingerprint, op.toString() + resultVars, false);
+        final Cached cached = cache.getIfPresent(key);
+        if(cached != null) return ((CachedResult) cached).open();
+        return cache(key, delegate.execSelect(op, resultVars));
+    }
+
+    /**
+     * Cache misses are evaluated by the delegate {@link QueryExecutor#select(Op, List)},
+     * the cached rows keep the value identifiers of its result.
+     */
+    @Override
+    public Result select(Op op, List<String> resultVars) {
+        final Key key = new Key(fingerprint, op.toString() + resultVars, true);
+        final Cached cached = cache.getIfPresent(key);
+        if(cached != null) return ((CachedRows) cached).open();
+        return cache(key, delegate.select(op, resultVars));
+    }
+
+    /**
+     * Reads up to <code>maxRows</code> rows of <code>rs</code>, caching them if the result is exhausted.
+     *
+     * @return a result set over all the rows of <code>rs</code>.
+     */
+    private ResultSet cache(Key key, ResultSet rs) {
+        final List<Binding> rows = new ArrayList<>();
+        while(rs.hasNext() && rows.size() <= maxRows) {
+            rows.add(rs.nextBinding());
+        }
+        if(rows.size() > maxRows) {
+            final ResultSet stream = new ResultSetStream(
+                    rs.getResultVars(),
+                    rs.getResourceModel(),
+                    QueryIterPlainWrapper.create(Iterators.concat(rows.iterator(), new BindingIterator(rs)))
+            );
+            return rs instanceof Cancellable ? new CancellableResultSet(stream, (Cancellable) rs) : stream;
+        }
+        final CachedResult cached = new CachedResult(rs.getResultVars(), rs.getResourceModel(), rows);
+        cache.put(key, cached);
+        return cached.open();
+    }
+
+    /**
+     * Reads up to <code>maxRows</code> rows of <code>result</code> with their value identifiers,
+     * caching them if the result is exhausted.
+     *
+     * @return a result over all the rows of <code>result</code>.
+     */
+    private Result cache(Key key, Result result) {
+        final String[] bindings = result.getBindings();
+        final List<String[]> values = new ArrayList<>();
+        final List<long[]> ids = new ArrayList<>();
+        boolean identified = false;
+        while(values.size() <= maxRows && result.next()) {
+            final String[] row = new String[bindings.length];
+            final long[] rowIds = new long[bindings.length];
+            for(int i = 0; i < bindings.length; i++) {
+                row[i] = result.getValue(i);
+                rowIds[i] = result.getValueId(i);
+                identified |= rowIds[i] != Result.NO_ID;
+            }
+            values.add(row);
+            ids.add(rowIds);
+        }
+        if(values.size() > maxRows) {
+            return new PrefixedResult(new MaterializedResult(bindings, values, identified ? ids : null), result);
+        }
+        final CachedRows cached = new CachedRows(bindings, values, identified ? ids : null);
+        cache.put(key, cached);
+        return cached.open();
+    }
+
+    private interface Cached {
+        int weight();
+    }
+
+    private static class Key {
+
+        final String fingerprint;
+        final String query;
+        final boolean select;
+
+        /**
+         * @param select <code>true</code> for the results of {@link #select(Op, List)}.
+         */
+        Key(String fingerprint, String query, boolean select) {
+            this.fingerprint = fingerprint;
+            this.query = query;
+            this.select = select;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(obj == this) return true;
+            if(!(obj instanceof Key)) return false;
+            final Key other = (Key) obj;
+            return fingerprint.equals(other.fingerprint) && query.equals(other.query) && select == other.select;
+        }
+
+        @Override
+        public int hashCode() {
+            return (fingerprint.hashCode() * 31 + query.hashCode()) * 2 + (select ? 1 : 0);
+        }
+    }
+
+    private static class CachedResult implements Cached {
+
+        final List<String> resultVars;
+        final Model model;
+        final List<Binding> rows;
+
+        CachedResult(List<String> resultVars, Model model, List<Binding> rows) {
+            this.resultVars = Collections.unmodifiableList(new ArrayList<>(resultVars));
+            this.model = model;
+            this.rows = Collections.unmodifiableList(rows);
+        }
+
+        ResultSet open() {
+            return new ResultSetStream(resultVars, model, QueryIterPlainWrapper.create(rows.iterator()));
+        }
+
+        @Override
+        public int weight() {
+            return Math.max(1, rows.size() * resultVars.size());
+        }
+    }
+
+    private static class CachedRows implements Cached {
+
+        final String[] bindings;
+        final List<String[]> rows;
+        final List<long[]> ids;
+
+        CachedRows(String[] bindings, List<String[]> rows, List<long[]> ids) {
+            this.bindings = bindings.clone();
+            this.rows = Collections.unmodifiableList(rows);
+            this.ids = ids == null ? null : Collections.unmodifiableList(ids);
+        }
+
+        Result open() {
+            return new MaterializedResult(bindings, rows, ids);
+        }
+
+        @Override
+        public int weight() {
+            return Math.max(1, rows.size() * bindings.length);
+        }
+    }
+
+    private static class BindingIterator implements Iterator<Binding> {
+
+        private final ResultSet rs;
+
+        BindingIterator(ResultSet rs) {
+            this.rs = rs;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return rs.hasNext();
+        }
+
+        @Override
+        public Binding next() {
+            return rs.nextBinding();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+
+import java.util.List;
+
+/**
+ * {@link ResultSet} whose ARQ evaluation can be cancelled.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class CancellableResultSet implements ResultSet, Cancellable {
+
+    private final ResultSet rs;
+    private final QueryExecution execution;
+    private final QueryIterator iterator;
+    private final Cancellable source;
+
+    /**
+     * @param rs result of <code>execution</code>, cancelled aborting the execution.
+     */
+    CancellableResultSet(ResultSet rs, QueryExecution execution) {
+        this.rs = rs;
+        this.execution = execution;
+        this.iterator = null;
+        this.source = null;
+    }
+
+    /**
+     * @param rs result backed by <code>iterator</code>, cancelled cancelling the iterator.
+     */
+    CancellableResultSet(ResultSet rs, QueryIterator iterator) {
+        this.rs = rs;
+        this.execution = null;
+        this.iterator = iterator;
+        this.source = null;
+    }
+
+    /**
+     * @param rs result streaming the rows of <code>source</code>, cancelled cancelling the source.
+     */
+    CancellableResultSet(ResultSet rs, Cancellable source) {
+        this.rs = rs;
+        this.execution = null;
+        this.iterator = null;
+        this.source = source;
+    }
+
+    @Override
+    public void cancel() {
+        if(execution != null) {
+            execution.abort();
+        } else if(iterator != null) {
+            iterator.cancel();
+        } else {
+            source.cancel();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return rs.hasNext();
+    }
+
+    @Override
+    public QuerySolution next() {
+        return rs.next();
+    }
+
+    @Override
+    public QuerySolution nextSolution() {
+        return rs.nextSolution();
+    }
+
+    @Override
+    public Binding nextBinding() {
+        return rs.nextBinding();
+    }
+
+    @Override
+    public int getRowNumber() {
+        return rs.getRowNumber();
+    }
+
+    @Override
+    public List<String> getResultVars() {
+        return rs.getResultVars();
+    }
+
+    @Override
+    public Model getResourceModel() {
+        return rs.getResourceModel();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
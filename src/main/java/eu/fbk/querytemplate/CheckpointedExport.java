@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the JSON output of a {@link DefaultNestedQuery} to a gzip file that can be resumed after a failure.
+ * The output of the pivots of the first level is written in units of {@link #getPivotsPerMember()} pivots,
+ * every unit is an independent gzip member followed by a checkpoint recording the last completed pivot
+ * and the output length. A new export with the same checkpoint file truncates the output to the last
+ * checkpoint and continues after the last completed pivot. The concatenated members form a single
+ * gzip stream of a JSON document equal to the one produced by {@link JSONResultCollector}.
+ * The first level must produce the same rows in the same order in every run, with contiguous pivots.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class CheckpointedExport {
+
+    /**
+     * Default number of pivots of the first level per gzip member.
+     */
+    public static final int DEFAULT_PIVOTS_PER_MEMBER = 1000;
+
+    private static final String UNITS = "units";
+    private static final String PIVOT = "pivot";
+    private static final String LENGTH = "length";
+    private static final String COMPLETE = "complete";
+
+    private final DefaultNestedQuery nestedQuery;
+    private final File output;
+    private final File checkpoint;
+    private final String fieldValue;
+    private final JsonFactory factory = new JsonFactory();
+
+    private int pivotsPerMember = DEFAULT_PIVOTS_PER_MEMBER;
+
+    /**
+     * @param nestedQuery exported query.
+     * @param output gzip output file.
+     * @param checkpoint file recording the export progress.
+     * @param fieldValue field and value bindings, see {@link JSONResultCollector}.
+     */
+    public CheckpointedExport(DefaultNestedQuery nestedQuery, File output, File checkpoint, String fieldValue) {
+        if(nestedQuery == null) throw new IllegalArgumentException("Invalid nested query.");
+        if(output == null) throw new IllegalArgumentException("Invalid output.");
+        if(checkpoint == null) throw new IllegalArgumentException("Invalid checkpoint.");
+        this.nestedQuery = nestedQuery;
+        this.output = output;
+        this.checkpoint = checkpoint;
+        this.fieldValue = fieldValue;
+    }
+
+    public int getPivotsPerMember() {
+        return pivotsPerMember;
+    }
+
+    public void setPivotsPerMember(int pivotsPerMember) {
+        if(pivotsPerMember < 1) throw new IllegalArgumentException("Invalid pivots per member.");
+        this.pivotsPerMember = pivotsPerMember;
+    }
+
+    /**
+     * @return <code>true</code> if the checkpoint records a completed export.
+     */
+    public boolean isComplete() throws IOException {
+        final Properties state = readCheckpoint();
+        return state != null && Boolean.parseBoolean(state.getProperty(COMPLETE));
+    }
+
+    /**
+     * Starts the export, or resumes it from the checkpoint if present. Does nothing if already complete.
+     */
+    public void export(QueryExecutor executor, Map<String,String> args) throws IOException {
+        Properties state = readCheckpoint();
+        if(state != null && Boolean.parseBoolean(state.getProperty(COMPLETE))) return;
+        try (FileChannel channel = FileChannel.open(
+                output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE
+        )) {
+            if(state == null) {
+                channel.truncate(0);
+                writeMember(channel, header());
+                state = writeCheckpoint(0, null, channel, false);
+            } else {
+                final long length = Long.parseLong(state.getProperty(LENGTH));
+                if(channel.size() < length) throw new IllegalStateException("Output shorter than checkpoint.");
+                channel.truncate(length);
+                channel.position(length);
+            }
+            final UnitCollector collector = new UnitCollector(
+                    channel, Long.parseLong(state.getProperty(UNITS)), state.getProperty(PIVOT)
+            );
+            final String resumeAfter = collector.lastPivot;
+            nestedQuery.executeNestedQuery(
+                    executor, collector, args, null, 1, resumeAfter == null ? null : new RootFilter() {
+                        @Override
+                        public Result filter(Result result, int pivotColumn) {
+                            return new SkippingResult(result, pivotColumn, resumeAfter);
+                        }
+                    }
+            );
+            collector.flushMember();
+            writeMember(channel, new byte[] {'}', '}'});
+            writeCheckpoint(collector.units, collector.lastPivot, channel, true);
+        }
+    }
+
+    /**
+     * @return the start of the document up to the object of the first level, <code>{"name":{</code>.
+     */
+    private byte[] header() throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final JsonGenerator generator = factory.createJsonGenerator(buffer, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeFieldName(nestedQuery.getName(0));
+        generator.writeStartObject();
+        generator.flush();
+        return buffer.toByteArray();
+    }
+
+    private void writeMember(FileChannel channel, byte[] data) throws IOException {
+        final GZIPOutputStream member = new GZIPOutputStream(
+                new FilterOutputStream(Channels.newOutputStream(channel)) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                }
+        );
+        member.write(data);
+        member.close();
+        channel.force(false);
+    }
+
+    private Properties readCheckpoint() throws IOException {
+        if(!checkpoint.exists()) return null;
+        final Properties state = new Properties();
+        try (InputStream is = new FileInputStream(checkpoint)) {
+            state.load(is);
+        }
+        return state;
+    }
+
+    /**
+     * Replaces the checkpoint atomically.
+     */
+    private Properties writeCheckpoint(long units, String lastPivot, FileChannel channel, boolean complete)
+    throws IOException {
+        final Properties state = new Properties();
+        state.setProperty(UNITS, Long.toString(units));
+        if(lastPivot != null) state.setProperty(PIVOT, lastPivot);
+        state.setProperty(LENGTH, Long.toString(channel.size()));
+        state.setProperty(COMPLETE, Boolean.toString(complete));
+        final File temp = new File(checkpoint.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(temp)) {
+            state.store(os, "Export of " + output);
+            os.getFD().sync();
+        }
+        Files.move(
+                temp.toPath(), checkpoint.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+        );
+        return state;
+    }
+
+    /**
+     * Writes the rendered pivots of the first level in gzip members,
+     * stripping the enclosing level and document objects from every pivot.
+     */
+    private class UnitCollector extends PivotUnitCollector {
+
+        private final FileChannel channel;
+        private final ByteArrayOutputStream unit = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream member = new ByteArrayOutputStream();
+        private final int prefix;
+
+        private long units;
+        private String lastPivot;
+        private int memberUnits;
+
+        UnitCollector(FileChannel channel, long units, String lastPivot) throws IOException {
+            super(fieldValue);
+            this.channel = channel;
+            this.units = units;
+            this.lastPivot = lastPivot;
+            this.prefix = header().length;
+        }
+
+        @Override
+        JsonGenerator openUnit(String pivot) throws IOException {
+            unit.reset();
+            return factory.createJsonGenerator(unit, JsonEncoding.UTF8);
+        }
+
+        @Override
+        void closeUnit(String pivot) {
+            if(units > 0) member.write(',');
+            member.write(unit.toByteArray(), prefix, unit.size() - prefix - 2);
+            units++;
+            lastPivot = pivot;
+            if(++memberUnits == pivotsPerMember) flushMember();
+        }
+
+        @Override
+        public void truncated(String reason) {
+            throw new IllegalStateException("Checkpointed exports cannot be truncated.");
+        }
+
+        void flushMember() {
+            if(memberUnits == 0) return;
+            try {
+                writeMember(channel, member.toByteArray());
+                writeCheckpoint(units, lastPivot, channel, false);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            member.reset();
+            memberUnits = 0;
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.fbk.querytemplate;
+
+import com.google.common.collect.Iterators;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link QueryExecutor} decorator coalescing identical concurrent queries: while a query is evaluated
+ * by the delegate, the other threads requesting the same expanded query wait for it and share its rows.
+ * Shared results are materialized in memory up to <code>maxRows</code> rows: above that the evaluating thread
+ * streams its own result and the waiting threads evaluate the query on their own, so the decorator pays off
+ * for child subqueries with small results. The rows shared by {@link #select(Op, List)} keep the value
+ * identifiers of the delegate result. Nothing is retained once a query completes,
+ * see {@link CachingQueryExecutor} for caching.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class CoalescingQueryExecutor implements QueryExecutor {
+
+    static final int DEFAULT_MAX_ROWS = 1024;
+
+    private final QueryExecutor delegate;
+    private final int maxRows;
+    private final ConcurrentMap<String,Flight<ResultSet>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,Flight<Result>> inFlightSelects = new ConcurrentHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong savedExecutions = new AtomicLong();
+
+    /**
+     * @param delegate executor evaluating the queries.
+     * @param maxRows max number of rows of a shared result.
+     */
+    public CoalescingQueryExecutor(QueryExecutor delegate, int maxRows) {
+        if(delegate == null) throw new IllegalArgumentException("Invalid delegate.");
+        if(maxRows < 0) throw new IllegalArgumentException("Invalid max rows.");
+        this.delegate = delegate;
+        this.maxRows = maxRows;
+    }
+
+    public CoalescingQueryExecutor(QueryExecutor delegate) {
+        this(delegate, DEFAULT_MAX_ROWS);
+    }
+
+    /**
+     * @return the number of queries evaluated by the delegate.
+     */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    /**
+     * @return the number of queries served by an in-flight evaluation of the same query.
+     */
+    public long getSavedExecutions() {
+        return savedExecutions.get();
+    }
+
+    @Override
+    public ResultSet execSelect(final String qry) {
+        return coalesce(inFlight, qry, new ResultSetEvaluation() {
+            @Override
+            public ResultSet evaluate() {
+                return delegate.execSelect(qry);
+            }
+        });
+    }
+
+    /**
+     * Algebra expressions are keyed by their SSE serialization.
+     */
+    @Override
+    public ResultSet execSelect(final Op op, final List<String> resultVars) {
+        return coalesce(inFlight, op.toString() + resultVars, new ResultSetEvaluation() {
+            @Override
+            public ResultSet evaluate() {
+                return delegate.execSelect(op, resultVars);
+            }
+        });
+    }
+
+    /**
+     * The query is evaluated by the delegate {@link QueryExecutor#select(Op, List)},
+     * the shared rows keep the value identifiers of its result.
+     */
+    @Override
+    public Result select(final Op op, final List<String> resultVars) {
+        return coalesce(inFlightSelects, op.toString() + resultVars, new Evaluation<Result>() {
+            @Override
+            public Result evaluate() {
+                return delegate.select(op, resultVars);
+            }
+
+            @Override
+            public Shared<Result> read(Result result) {
+                final String[] bindings = result.getBindings();
+                final List<String[]> values = new ArrayList<>();
+                final List<long[]> ids = new ArrayList<>();
+                boolean identified = false;
+                while(values.size() <= maxRows && result.next()) {
+                    final String[] row = new String[bindings.length];
+                    final long[] rowIds = new long[bindings.length];
+                    for(int i = 0; i < bindings.length; i++) {
+                        row[i] = result.getValue(i);
+                        rowIds[i] = result.getValueId(i);
+                        identified |= rowIds[i] != Result.NO_ID;
+                    }
+                    values.add(row);
+                    ids.add(rowIds);
+                }
+                return new SharedRows(
+                        bindings, values, identified ? ids : null, values.size() > maxRows ? result : null
+                );
+            }
+        });
+    }
+
+    private <T> T coalesce(ConcurrentMap<String,Flight<T>> flights, String key, Evaluation<T> evaluation) {
+        final Flight<T> flight = new Flight<>();
+        final Flight<T> existing = flights.putIfAbsent(key, flight);
+        if(existing != null) {
+            savedExecutions.incrementAndGet();
+            final Shared<T> shared = existing.await();
+            if(shared != null) return shared.open();
+            savedExecutions.decrementAndGet();
+            executions.incrementAndGet();
+            return evaluation.evaluate();
+        }
+        try {
+            executions.incrementAndGet();
+            final Shared<T> read = evaluation.read(evaluation.evaluate());
+            if(read.isComplete()) {
+                flight.result = read;
+            } else {
+                flight.exceeded = true;
+            }
+            return read.open();
+        } catch (RuntimeException re) {
+            flight.failure = re;
+            throw re;
+        } finally {
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    private interface Evaluation<T> {
+
+        T evaluate();
+
+        /**
+         * @return up to <code>maxRows</code> plus one rows read from <code>result</code>.
+         */
+        Shared<T> read(T result);
+    }
+
+    private abstract class ResultSetEvaluation implements Evaluation<ResultSet> {
+
+        @Override
+        public Shared<ResultSet> read(ResultSet rs) {
+            final List<Binding> rows = new ArrayList<>();
+            while(rs.hasNext() && rows.size() <= maxRows) {
+                rows.add(rs.nextBinding());
+            }
+            return new SharedResult(rs.getResultVars(), rs.getResourceModel(), rows, rows.size() > maxRows ? rs : null);
+        }
+    }
+
+    /**
+     * Rows read from a result, shared if the result has been read completely.
+     */
+    private interface Shared<T> {
+
+        boolean isComplete();
+
+        /**
+         * @return a result over the read rows followed, if not complete, by the rest of the read result.
+         */
+        T open();
+    }
+
+    /**
+     * Evaluation of a query in progress, completed by the thread evaluating it.
+     */
+    private static class Flight<T> {
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Shared<T> result;
+        RuntimeException failure;
+        boolean exceeded;
+
+        /**
+         * @return the shared result, <code>null</code> if the result exceeds the max rows.
+         */
+        Shared<T> await() {
+            try {
+                done.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for query.", ie);
+            }
+            if(failure != null) throw failure;
+            if(exceeded) return null;
+            if(result == null) throw new IllegalStateException("Error while evaluating query.");
+            return result;
+        }
+    }
+
+    private static class SharedResult implements Shared<ResultSet> {
+
+        final List<String> resultVars;
+        final Model model;
+        final List<Binding> rows;
+        final ResultSet rest;
+
+        SharedResult(List<String> resultVars, Model model, List<Binding> rows, ResultSet rest) {
+            this.resultVars = Collections.unmodifiableList(new ArrayList<>(resultVars));
+            this.model = model;
+            this.rows = Collections.unmodifiableList(rows);
+            this.rest = rest;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return rest == null;
+        }
+
+        /**
+         * An incomplete result is cancelled cancelling the rest of the read result.
+         */
+        @Override
+        public ResultSet open() {
+            if(rest == null) {
+                return new ResultSetStream(resultVars, model, QueryIterPlainWrapper.create(rows.iterator()));
+            }
+            final ResultSet stream = new ResultSetStream(
+                    resultVars, model,
+                    QueryIterPlainWrapper.create(Iterators.concat(rows.iterator(), new BindingIterator(rest)))
+            );
+            return rest instanceof Cancellable ? new CancellableResultSet(stream, (Cancellable) rest) : stream;
+        }
+    }
+
+    private static class SharedRows implements Shared<Result> {
+
+        final String[] bindings;
+        final List<String[]> rows;
+        final List<long[]> ids;
+        final Result rest;
+
+        SharedRows(String[] bindings, List<String[]> rows, List<long[]> ids, Result rest) {
+            this.bindings = bindings.clone();
+            this.rows = Collections.unmodifiableList(rows);
+            this.ids = ids == null ? null : Collections.unmodifiableList(ids);
+            this.rest = rest;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return rest == null;
+        }
+
+        @Override
+        public Result open() {
+            final MaterializedResult read = new MaterializedResult(bindings, rows, ids);
+            return rest == null ? read : new PrefixedResult(read, rest);
+        }
+    }
+
+    private static class BindingIterator implements Iterator<Binding> {
+
+        private final ResultSet rs;
+
+        BindingIterator(ResultSet rs) {
+            this.rs = rs;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return rs.hasNext();
+        }
+
+        @Override
+        public Binding next() {
+            return rs.nextBinding();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -17,39 +17,320 @@
 
 package eu.fbk.querytemplate;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * Default {@link NestedQuery} implementation. The state of every execution is kept in a per invocation context,
+ * so once configured the same instance, with its compiled plans and subtree caches,
+ * can be executed concurrently by many threads.
+ *
  * @author Michele Mostarda (mostarda@fbk.eu)
  */
-public class DefaultNestedQuery implements NestedQuery {
+public class DefaultNestedQuery implements NestedQuery, Closeable {
+
+    /**
+     * Max number of pending subtrees per fan-out thread.
+     */
+    private static final int FAN_OUT_WINDOW = 4;
+
+    /**
+     * Default max number of values buffered in memory by a grouped level.
+     */
+    public static final long DEFAULT_GROUPING_MEMORY = 1000000;
 
     private final List<String> queryNames = new ArrayList<>();
     private final List<Query> levels = new ArrayList<>();
     private final List<String> pivots = new ArrayList<>();
     private final List<PropertyPivot> propertyPivots = new ArrayList<>();
-    private final Stack<String> lastPivotValue = new Stack<>();
+    private final List<Boolean> batchableChildren = new ArrayList<>();
+    private final List<Cache<SubtreeKey,RecordingResultCollector>> subtreeCaches = new ArrayList<>();
+    private final List<JoinedQuery> joinedQueries = new ArrayList<>();
+    private final List<Integer> levelBatchSizes = new ArrayList<>();
+    private final List<Boolean> groupedLevels = new ArrayList<>();
+
+    private int batchSize = 1;
+    private int parallelism = 1;
+    private long groupingMemory = DEFAULT_GROUPING_MEMORY;
+    private ExecutorService fanOutExecutor;
+    private boolean ownsFanOutExecutor;
+    private volatile MetricsSink metricsSink;
+    private AtomicReferenceArray<LevelPlan> plans = new AtomicReferenceArray<>(0);
 
     void addQuery(String name, Query query, String pivot, PropertyPivot propertyPivot) {
         if(name == null || name.trim().length() == 0) throw new IllegalArgumentException("Invalid name.");
         if(query == null) throw new IllegalArgumentException("Invalid query.");
         if(pivot == null || pivot.trim().length() == 0) throw new IllegalArgumentException("Invalid pivot.");
+        if(!levels.isEmpty()) {
+            batchableChildren.add(query.isBatchable(pivots.get(pivots.size() - 1)));
+        }
         queryNames.add(name);
         levels.add(query);
         pivots.add(pivot);
         propertyPivots.add(propertyPivot);
+        subtreeCaches.add(null);
+        joinedQueries.add(null);
+        levelBatchSizes.add(null);
+        groupedLevels.add(false);
+        plans = new AtomicReferenceArray<>(levels.size());
     }
 
     void addQuery(String name, Query query, String pivot) {
         addQuery(name, query, pivot, null);
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the max number of distinct pivot values expanded by a single child query.
+     * With values greater than <code>1</code> the child template is evaluated once per batch
+     * with a <code>VALUES</code> block, and its rows are routed back to the parent pivots.
+     * Levels whose child template cannot be batched are still processed one pivot at a time.
+     *
+     * @param batchSize number of pivot values per child query, <code>1</code> disables batching.
+     */
+    public void setBatchSize(int batchSize) {
+        if(batchSize < 1) throw new IllegalArgumentException("Invalid batch size.");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the batch size used to expand the children of <code>level</code>.
+     */
+    public int getBatchSize(int level) {
+        final Integer levelBatchSize = levelBatchSizes.get(level);
+        return levelBatchSize == null ? batchSize : levelBatchSize;
+    }
+
+    /**
+     * Overrides the batch size {@link #setBatchSize(int)} for the children of <code>level</code>.
+     *
+     * @param level a level having a child level.
+     * @param batchSize number of pivot values per child query, <code>1</code> disables batching.
+     */
+    public void setBatchSize(int level, int batchSize) {
+        if(!hasLevel(level + 1)) throw new IllegalArgumentException("Level must have a child level.");
+        if(batchSize < 1) throw new IllegalArgumentException("Invalid batch size.");
+        levelBatchSizes.set(level, batchSize);
+    }
+
+    /**
+     * @return the strategy used to expand the children of <code>level</code>,
+     *         <code>null</code> for the last level.
+     */
+    public NestedQueryPlan.Strategy getStrategy(int level) {
+        if(!hasLevel(level + 1)) return null;
+        if(isJoined(level)) return NestedQueryPlan.Strategy.JOINED;
+        if(isBatched(level)) return NestedQueryPlan.Strategy.BATCHED;
+        return NestedQueryPlan.Strategy.NESTED;
+    }
+
+    /**
+     * Groups the rows of <code>level</code> by pivot before processing them, so that every pivot value
+     * is expanded once also when the rows of a pivot are not contiguous, without ordering the template results.
+     * Pivots are processed in order of first occurrence while the rows fit the grouping memory,
+     * beyond it in the order of their hash partitions. Grouping does not apply to joined levels,
+     * whose rows are already ordered by pivot.
+     *
+     * @param level level to be grouped.
+     * @param grouped <code>true</code> to enable the grouping.
+     */
+    public void setGrouped(int level, boolean grouped) {
+        if(!hasLevel(level)) throw new IllegalArgumentException("Invalid level.");
+        groupedLevels.set(level, grouped);
+    }
+
+    public boolean isGrouped(int level) {
+        return groupedLevels.get(level);
+    }
+
+    public long getGroupingMemory() {
+        return groupingMemory;
+    }
+
+    /**
+     * Sets the max number of values buffered in memory by a grouped level evaluation,
+     * when exceeded the rows are spilled to disk partitioned by pivot.
+     */
+    public void setGroupingMemory(long groupingMemory) {
+        if(groupingMemory < 1) throw new IllegalArgumentException("Invalid grouping memory.");
+        this.groupingMemory = groupingMemory;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads used to expand the child levels of different pivots concurrently.
+     * Subtrees are evaluated on a bounded pool and their events are replayed on the collector
+     * in the original pivot order, so the output does not depend on the parallelism.
+     * The {@link QueryExecutor} must support concurrent queries.
+     *
+     * The pool is owned by this query and released by {@link #close()}.
+     *
+     * @param parallelism number of threads, <code>1</code> disables the parallel mode.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism < 1) throw new IllegalArgumentException("Invalid parallelism.");
+        setFanOutExecutor(
+                parallelism,
+                parallelism == 1 ? null : Executors.newFixedThreadPool(
+                        parallelism,
+                        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("nested-query-%d").build()
+                ),
+                true
+        );
+    }
+
+    /**
+     * Like {@link #setParallelism(int)}, but subtrees are evaluated on <code>executor</code>,
+     * which can be shared by many queries and is not shut down by {@link #close()}.
+     *
+     * @param parallelism max number of subtrees evaluated concurrently by this query.
+     * @param executor executor evaluating the subtrees.
+     */
+    public void setParallelism(int parallelism, ExecutorService executor) {
+        if(parallelism < 1) throw new IllegalArgumentException("Invalid parallelism.");
+        if(executor == null) throw new IllegalArgumentException("Invalid executor.");
+        setFanOutExecutor(parallelism, executor, false);
+    }
+
+    /**
+     * Shuts down the fan-out pool created by {@link #setParallelism(int)}, the query falls back
+     * to the sequential mode.
+     */
+    @Override
+    public void close() {
+        setFanOutExecutor(1, null, false);
+    }
+
+    private void setFanOutExecutor(int parallelism, ExecutorService executor, boolean owned) {
+        if(fanOutExecutor != null && ownsFanOutExecutor) fanOutExecutor.shutdown();
+        this.parallelism = parallelism;
+        this.fanOutExecutor = executor;
+        this.ownsFanOutExecutor = owned;
+    }
+
+    public MetricsSink getMetricsSink() {
+        return metricsSink;
+    }
+
+    /**
+     * Sets the sink receiving the per level measures of the executions, such as {@link NestedQueryMetrics}.
+     * Subqueries are measured from their evaluation to the end of their rows, excluding the time spent
+     * processing the rows, which is measured on the collector. Every execution uses the sink set when it starts.
+     *
+     * @param metricsSink the sink, <code>null</code> disables the measures.
+     */
+    public void setMetricsSink(MetricsSink metricsSink) {
+        this.metricsSink = metricsSink;
+    }
+
+    /**
+     * Enables the memoization of the subtrees rooted at <code>level</code>. The events produced expanding
+     * the level for a set of arguments are recorded and replayed when the same arguments occur again
+     * under another parent, without evaluating the queries of the subtree again.
+     * The cache is bounded by the number of recorded events, least recently used subtrees are evicted first.
+     * Subtrees are cached per {@link QueryExecutor}, executions on different executors do not share them.
+     * Levels fetched in batch are expanded from the batch results and sampled executions do not use the cache.
+     *
+     * @param level a child level.
+     * @param maxEvents max number of events retained by the cache, <code>0</code> disables it.
+     */
+    public void setSubtreeCacheSize(int level, long maxEvents) {
+        if(level < 1 || !hasLevel(level)) throw new IllegalArgumentException("Invalid level.");
+        if(maxEvents < 0) throw new IllegalArgumentException("Invalid cache size.");
+        subtreeCaches.set(
+                level,
+                maxEvents == 0 ? null : CacheBuilder.newBuilder()
+                        .maximumWeight(maxEvents)
+                        .weigher(new Weigher<SubtreeKey,RecordingResultCollector>() {
+                            @Override
+                            public int weigh(SubtreeKey key, RecordingResultCollector subtree) {
+                                return subtree.size() + 1;
+                            }
+                        })
+                        .recordStats()
+                        .<SubtreeKey,RecordingResultCollector>build()
+        );
+    }
+
+    /**
+     * @return the hit and miss counters of the subtree cache of <code>level</code>,
+     *         <code>null</code> if the cache is not enabled.
+     */
+    public CacheStats getSubtreeCacheStats(int level) {
+        final Cache<SubtreeKey,RecordingResultCollector> cache = subtreeCaches.get(level);
+        return cache == null ? null : cache.stats();
+    }
+
+    /**
+     * Evaluates <code>level</code> and its child level with two queries: the parent template and the child
+     * template joined with the distinct pivots of the parent, so that the child is evaluated once per pivot.
+     * The child rows are merged with the parent rows while streaming and produce the same events
+     * of the nested evaluation, a pivot occurring again after other pivots is expanded with a nested query.
+     * Both levels must be {@link ParameterizedQuery}s, the child template must depend only on the pivot
+     * of <code>level</code> and <code>level</code> cannot have a property pivot. Adjacent levels cannot be
+     * both joined, since the rows of a level below a joined level are prefetched by the joined query.
+     *
+     * @param level a level having a child level.
+     * @param joined <code>true</code> to enable the joined evaluation.
+     * @throws IllegalArgumentException if the levels cannot be joined.
+     */
+    public void setJoined(int level, boolean joined) {
+        if(!hasLevel(level + 1)) throw new IllegalArgumentException("Level must have a child level.");
+        if(!joined) {
+            joinedQueries.set(level, null);
+            return;
+        }
+        if(!(getQuery(level) instanceof ParameterizedQuery) || !(getQuery(level + 1) instanceof ParameterizedQuery))
+            throw new IllegalArgumentException("Only parameterized queries can be joined.");
+        if(getPropertyPivot(level) != null)
+            throw new IllegalArgumentException("Levels with property pivot cannot be joined.");
+        if((level > 0 && isJoined(level - 1)) || (hasLevel(level + 2) && isJoined(level + 1)))
+            throw new IllegalArgumentException("Adjacent levels cannot be joined.");
+        joinedQueries.set(
+                level,
+                new JoinedQuery(
+                        (ParameterizedQuery) getQuery(level), getPivot(level),
+                        (ParameterizedQuery) getQuery(level + 1)
+                )
+        );
+    }
+
+    public boolean isJoined(int level) {
+        return joinedQueries.get(level) != null;
+    }
+
+    /**
+     * @return the query evaluating <code>level</code> joined with its child, <code>null</code> if not joined.
+     */
+    JoinedQuery getJoinedQuery(int level) {
+        return joinedQueries.get(level);
+    }
+
     @Override
     public int getLevels() {
         return levels.size();
@@ -82,86 +363,480 @@ public class DefaultNestedQuery implements NestedQuery {
 
     @Override
     public void executeNestedQuery(QueryExecutor executor, ResultCollector collector, Map<String,String> args) {
-        lastPivotValue.clear();
-        collector.begin();
-        processNextLevel(0, args, executor, collector);
-        collector.end();
+        executeNestedQuery(executor, collector, args, null, 1);
+    }
+
+    @Override
+    public void executeNestedQuery(
+            QueryExecutor executor, ResultCollector collector, Map<String,String> args, ExecutionBudget budget
+    ) {
+        if(budget == null) throw new IllegalArgumentException("Invalid budget.");
+        executeNestedQuery(executor, collector, args, budget, 1);
+    }
+
+    /**
+     * @param budget execution budget, <code>null</code> if unlimited.
+     * @param sampling fraction of the pivots of every level whose child levels are expanded,
+     *                 the sampled pivots are evenly spread over the level rows.
+     */
+    void executeNestedQuery(
+            QueryExecutor executor, ResultCollector collector, Map<String,String> args,
+            ExecutionBudget budget, double sampling
+    ) {
+        execute(executor, collector, args, budget, sampling, null, null, metricsSink);
+    }
+
+    /**
+     * Every invocation has its own {@link Execution}, so that concurrent invocations can share this query.
+     *
+     * @param rootFilter if not <code>null</code> restricts the rows of the first level.
+     */
+    void executeNestedQuery(
+            QueryExecutor executor, ResultCollector collector, Map<String,String> args,
+            ExecutionBudget budget, double sampling, RootFilter rootFilter
+    ) {
+        executeNestedQuery(executor, collector, args, budget, sampling, rootFilter, null);
+    }
+
+    /**
+     * @param root if not <code>null</code> the rows of the first level, evaluated by the caller
+     *             with {@link #route(QueryExecutor, Map, RootRouter.Partition, int)}.
+     */
+    void executeNestedQuery(
+            QueryExecutor executor, ResultCollector collector, Map<String,String> args,
+            ExecutionBudget budget, double sampling, RootFilter rootFilter, Result root
+    ) {
+        execute(executor, collector, args, budget, sampling, rootFilter, root, metricsSink);
+    }
+
+    /**
+     * @param sink sink receiving the measures of this execution in place of the one of the query,
+     *             <code>null</code> disables the measures.
+     */
+    void executeNestedQuery(
+            QueryExecutor executor, ResultCollector collector, Map<String,String> args,
+            ExecutionBudget budget, double sampling, MetricsSink sink
+    ) {
+        execute(executor, collector, args, budget, sampling, null, null, sink);
+    }
+
+    private void execute(
+            QueryExecutor executor, ResultCollector collector, Map<String,String> args,
+            ExecutionBudget budget, double sampling, RootFilter rootFilter, Result root, MetricsSink sink
+    ) {
+        if(sampling <= 0 || sampling > 1) throw new IllegalArgumentException("Invalid sampling.");
+        if(budget != null) budget.start(getLevels());
+        collector = meter(collector, sink);
+        try {
+            collector.begin();
+            processNextLevel(
+                    0, args, new Execution(getLevels(), true, budget, sampling, rootFilter, root, sink, plans),
+                    executor, collector
+            );
+            if(budget != null && budget.isExhausted()) collector.truncated(budget.getExhaustion());
+            collector.end();
+        } finally {
+            if(budget != null) budget.finish();
+        }
     }
 
     public void executeNestedQuery(QueryExecutor executor, ResultCollector collector) {
        executeNestedQuery(executor, collector, Collections.<String, String>emptyMap());
     }
 
+    /**
+     * Evaluates the first level once, its rows are routed to the shards of the returned router
+     * and processed by the executions receiving them as root.
+     *
+     * @param shards number of shards, all of them must be consumed concurrently.
+     */
+    RootRouter route(QueryExecutor executor, Map<String,String> args, RootRouter.Partition partition, int shards) {
+        final JoinedQuery joined = joinedQueries.get(0);
+        if(joined == null) {
+            final Result root = getQuery(0).perform(executor, args);
+            return new RootRouter(
+                    root, indexOf(root.getBindings(), getPivot(0)), -1, partition, shards, RootRouter.DEFAULT_CAPACITY
+            );
+        }
+        return new RootRouter(
+                joined.perform(executor, args), joined.getPivotColumn(), joined.getMarkerColumn(),
+                partition, shards, RootRouter.DEFAULT_CAPACITY
+        );
+    }
+
+    /**
+     * Processes <code>level</code> and its child levels within a new execution context.
+     */
     @Override
     public void processNextLevel(final int level, Map<String,String> args, QueryExecutor executor, ResultCollector collector) {
-        final Result result;
+        processNextLevel(level, args, new Execution(getLevels(), true, null, 1, null, null, metricsSink, plans), executor, collector);
+    }
+
+    private void processNextLevel(
+            int level, Map<String,String> args, Execution execution, QueryExecutor executor, ResultCollector collector
+    ) {
+        if(execution.budget != null && execution.budget.isExhausted()) return;
+        final JoinedQuery joined = joinedQueries.get(level);
+        final MetricsSink sink = execution.sink;
+        final long start = sink == null ? 0 : System.nanoTime();
+        Result result;
         try {
-            result = getQuery(level).perform(executor, args);
+            if(level == 0 && execution.root != null) result = execution.root;
+            else result = joined == null ? getQuery(level).perform(executor, args) : joined.perform(executor, args);
         } catch (IllegalArgumentException iae) {
             iae.printStackTrace();
             return;
         }
+        if(sink != null) result = new MeteredResult(result, sink, level, System.nanoTime() - start);
+        if(execution.budget != null) result = new BudgetedResult(result, execution.budget, level, joined == null);
+        if(joined == null) {
+            processResult(level, result, execution, executor, collector);
+        } else {
+            processJoined(level, joined, result, execution, executor, collector);
+        }
+    }
 
+    /**
+     * Splits the rows of a {@link JoinedQuery} at the marker rows, every parent row is processed
+     * with the following child rows prefetched for its pivot, if expanded there. Only the parent rows
+     * are charged to <code>level</code>, the child rows are charged to the next level when they are replayed.
+     */
+    private void processJoined(
+            int level, JoinedQuery joined, Result result,
+            Execution execution, QueryExecutor executor, ResultCollector collector
+    ) {
         collector.startLevel(level, getName(level));
-        final String[] bindings = result.getBindings();
+        final String[] parentBindings = joined.getParentBindings();
+        final String[] childBindings = joined.getChildBindings();
+        final int pivotColumn = joined.getPivotColumn();
+        final int markerColumn = joined.getMarkerColumn();
+        if(level == 0 && execution.rootFilter != null) result = execution.rootFilter.filter(result, pivotColumn);
+        final Rows.ArrayRow row = new Rows.ArrayRow(parentBindings);
+        final LevelPlan plan = plan(execution, level, parentBindings);
+        String[] parent = null;
+        List<String[]> children = null;
         String[] values;
-        final String pivot = getPivot(level);
-        final PropertyPivot propertyPivot = getPropertyPivot(level);
+        while(result.next()) {
+            if(result.getValue(markerColumn) != null) {
+                if(execution.budget != null && !execution.budget.countRow(level)) break;
+                if(parent != null) {
+                    processJoinedRow(level, plan, row.set(parent), children, childBindings, execution, executor, collector);
+                }
+                parent = new String[parentBindings.length];
+                for(int i = 0; i < parent.length; i++) {
+                    parent[i] = result.getValue(i);
+                }
+                children = JoinedQuery.EXPANDED.equals(result.getValue(markerColumn)) ? new ArrayList<String[]>() : null;
+            } else {
+                values = new String[childBindings.length];
+                for(int i = 0; i < values.length; i++) {
+                    values[i] = result.getValue(markerColumn + 1 + i);
+                }
+                children.add(values);
+            }
+        }
+        if(parent != null) {
+            processJoinedRow(level, plan, row.set(parent), children, childBindings, execution, executor, collector);
+        }
+        execution.lastPivotValue[level] = null;
+        collector.endLevel(level);
+    }
+
+    /**
+     * @param children child rows of the pivot of <code>row</code>, <code>null</code> if not expanded with the row.
+     */
+    private void processJoinedRow(
+            int level, LevelPlan plan, Row row, List<String[]> children, String[] childBindings,
+            Execution execution, QueryExecutor executor, ResultCollector collector
+    ) {
+        final Map<String,MaterializedResult> prefetched = children == null ? null : Collections.singletonMap(
+                row.getValue(plan.getPivotColumn()), new MaterializedResult(childBindings, children)
+        );
+        processRow(level, plan, row, null, Result.NO_ID, prefetched, execution, null, executor, collector);
+    }
+
+    private void processResult(
+            int level, Result result, Execution execution, QueryExecutor executor, ResultCollector collector
+    ) {
+        collector.startLevel(level, getName(level));
+        final GroupedResult grouped = isGrouped(level) ? new GroupedResult(result, getPivot(level), groupingMemory) : null;
+        if(grouped != null) result = grouped;
+        final LevelPlan plan = plan(execution, level, result.getBindings());
+        if(level == 0 && execution.rootFilter != null) {
+            result = execution.rootFilter.filter(result, plan.getPivotColumn());
+        }
+        final Rows.ResultRow row = new Rows.ResultRow(result);
+        try {
+            if(isBatched(level)) {
+                processBatches(level, plan, row, result, execution, executor, collector);
+            } else if(execution.forking && isParallel(level)) {
+                final OrderedFanOut fanOut = new OrderedFanOut(fanOutExecutor, collector, parallelism * FAN_OUT_WINDOW);
+                processRows(level, plan, row, result, execution, fanOut, executor, fanOut);
+                fanOut.finish();
+            } else {
+                processRows(level, plan, row, result, execution, null, executor, collector);
+            }
+        } finally {
+            if(grouped != null) close(grouped);
+        }
+        execution.lastPivotValue[level] = null;
+        collector.endLevel(level);
+    }
+
+    private void processRows(
+            int level, LevelPlan plan, Rows.ResultRow row, Result result,
+            Execution execution, OrderedFanOut fanOut, QueryExecutor executor, ResultCollector collector
+    ) {
+        final int pivotIndex = plan.pivotColumn;
+        final Rows.ExtendedRow extended = extend(level, row);
         for(;result.next();) {
-            values = result.getValues();
+            processRow(
+                    level, plan, row, extended, pivotIndex < 0 ? Result.NO_ID : row.getValueId(pivotIndex), null,
+                    execution, fanOut, executor, collector
+            );
+        }
+    }
+
+    /**
+     * @param plan binding positions of <code>row</code>.
+     * @param extended reusable view of <code>row</code> extended with the property pivot remap binding.
+     * @param pivotId identifier of the pivot value, if not {@link Result#NO_ID} it is used
+     *                in place of the pivot value to detect the pivot changes.
+     */
+    private void processRow(
+            int level, LevelPlan plan, Row row, Rows.ExtendedRow extended, long pivotId, Map<String,MaterializedResult> children,
+            Execution execution, OrderedFanOut fanOut, QueryExecutor executor, ResultCollector collector
+    ) {
+        final String[] lastPivotValue = execution.lastPivotValue;
+        final String[] values = collector instanceof RowCollector ? null : row.getValues();
+        if(values == null) {
+            ((RowCollector) collector).values(row);
+        } else {
             collector.values(values);
-            final String pivotValue = getValue(bindings, values, pivot);
-            if(lastPivotValue.size() < level + 1) {
-                lastPivotValue.push(pivotValue);
-                collector.pivot(pivotValue);
-                processPivot(level + 1, bindings, values, executor, collector);
-            } else if(!lastPivotValue.peek().equals(pivotValue)) {
-                lastPivotValue.pop();
-                lastPivotValue.push(pivotValue);
-                collector.pivot(pivotValue);
-                processPivot(level + 1, bindings, values, executor, collector);
+        }
+        final int pivotIndex = plan.getPivotColumn();
+        final PropertyPivot propertyPivot = getPropertyPivot(level);
+        if(lastPivotValue[level] == null) {
+            final String pivotValue = row.getValue(pivotIndex);
+            lastPivotValue[level] = pivotValue;
+            execution.lastPivotId[level] = pivotId;
+            collector.pivot(pivotValue);
+            processPivot(
+                    level + 1, row, plan.childArguments, children == null ? null : children.get(pivotValue),
+                    execution, fanOut, executor, collector
+            );
+        } else if(isPivotChanged(execution, level, pivotId, row, pivotIndex)) {
+            final String pivotValue = row.getValue(pivotIndex);
+            lastPivotValue[level] = pivotValue;
+            execution.lastPivotId[level] = pivotId;
+            collector.pivot(pivotValue);
+            processPivot(
+                    level + 1, row, plan.childArguments, children == null ? null : children.get(pivotValue),
+                    execution, fanOut, executor, collector
+            );
+        }
+        //TODO: pivot e property pivot must coordinate
+        if(propertyPivot != null) {
+            final String propertyPivotValue = row.getValue(plan.getPropertyColumn());
+            if(propertyPivot.v.equals(propertyPivotValue)) {
+                collector.startPropertyPivot(propertyPivotValue);
+                extended.set(row.getValue(plan.getRemapKeyColumn()));
+                processPivot(level + 1, extended, plan.remapArguments, null, execution, fanOut, executor, collector);
+                collector.endPropertyPivot(propertyPivotValue);
+            }
+        }
+        if(values == null) {
+            ((RowCollector) collector).collect(row);
+        } else {
+            collector.collect(row.getBindings(), values);
+        }
+    }
+
+    /**
+     * The arguments of the child level are bound before returning, so <code>row</code> can be reused
+     * also when the child level is forked.
+     *
+     * @param arguments arguments of <code>level</code> bound from <code>row</code>.
+     */
+    private void processPivot(
+            final int level, Row row, LevelPlan.Arguments arguments, MaterializedResult prefetched,
+            Execution execution, OrderedFanOut fanOut, final QueryExecutor executor, ResultCollector collector
+    ) {
+        if (!hasLevel(level)) return;
+        if(!execution.isSampled(level)) return;
+        if(prefetched != null) {
+            Result result = prefetched.rewind();
+            if(execution.budget != null) result = new BudgetedResult(result, execution.budget, level);
+            processResult(level, result, execution, executor, collector);
+            return;
+        }
+        final Map<String,String> nextArgs = arguments.bind(row);
+        final Cache<SubtreeKey,RecordingResultCollector> cache = execution.sampling < 1 ? null : subtreeCaches.get(level);
+        final SubtreeKey key = cache == null ? null : new SubtreeKey(executor, nextArgs);
+        if(cache != null) {
+            final RecordingResultCollector subtree = cache.getIfPresent(key);
+            if(subtree != null) {
+                subtree.replay(collector, execution.budget);
+                return;
             }
-            //TODO: pivot e property pivot must coordinate
-            if(propertyPivot != null) {
-                final String propertyPivotValue = getValue(bindings, values, propertyPivot.p);
-                if(propertyPivot.v.equals(propertyPivotValue)) {
-                    collector.startPropertyPivot(propertyPivotValue);
-                    final String[] newBindings = Arrays.copyOf(bindings, bindings.length + 1);
-                    final String[] newValues = Arrays.copyOf(values, values.length + 1);
-                    newBindings[newBindings.length - 1] = propertyPivot.remap;
-                    newValues[newValues.length - 1] = getValue(bindings, values, propertyPivot.remapKey);
-                    processPivot(level + 1, newBindings, newValues, executor, collector);
-                    collector.endPropertyPivot(propertyPivotValue);
+        }
+        if(fanOut != null) {
+            final Execution forked = execution.fork();
+            fanOut.fork(new OrderedFanOut.Subtree() {
+                @Override
+                public void process(ResultCollector collector) {
+                    processSubtree(level, nextArgs, cache, key, forked, executor, collector);
                 }
+            });
+        } else {
+            processSubtree(level, nextArgs, cache, key, execution, executor, collector);
+        }
+    }
+
+    /**
+     * Expands <code>level</code>, recording the produced events in <code>cache</code> with <code>key</code>
+     * if not <code>null</code>.
+     */
+    private void processSubtree(
+            int level, Map<String,String> args, Cache<SubtreeKey,RecordingResultCollector> cache, SubtreeKey key,
+            Execution execution, QueryExecutor executor, ResultCollector collector
+    ) {
+        if(cache == null) {
+            processNextLevel(level, args, execution, executor, collector);
+            return;
+        }
+        final RecordingResultCollector subtree = new RecordingResultCollector();
+        processNextLevel(level, args, execution, executor, subtree);
+        if(execution.budget == null || !execution.budget.isExhausted()) cache.put(key, subtree);
+        subtree.replay(collector);
+    }
+
+    /**
+     * @return the plan of <code>level</code> for rows with <code>bindings</code>, compiled when
+     *         the first result of the level is received and reused by the following results and executions.
+     */
+    private LevelPlan plan(Execution execution, int level, String[] bindings) {
+        final LevelPlan plan = execution.plans.get(level);
+        if(plan != null && plan.matches(bindings)) return plan;
+        final LevelPlan compiled = new LevelPlan(
+                bindings, getPivot(level), getPropertyPivot(level),
+                hasLevel(level + 1) ? getQuery(level + 1).getTemplate() : null
+        );
+        execution.plans.set(level, compiled);
+        return compiled;
+    }
+
+    private ResultCollector meter(ResultCollector collector, MetricsSink sink) {
+        return sink == null ? collector : new MeteredCollector(collector, sink, getLevels());
+    }
+
+    private boolean isPivotChanged(Execution execution, int level, long pivotId, Row row, int pivotIndex) {
+        final long lastId = execution.lastPivotId[level];
+        if(pivotId != Result.NO_ID && lastId != Result.NO_ID) return pivotId != lastId;
+        return !execution.lastPivotValue[level].equals(row.getValue(pivotIndex));
+    }
+
+    private Rows.ExtendedRow extend(int level, Row row) {
+        final PropertyPivot propertyPivot = getPropertyPivot(level);
+        return propertyPivot == null ? null : new Rows.ExtendedRow(row, propertyPivot.remap);
+    }
+
+    private boolean isParallel(int level) {
+        return fanOutExecutor != null && hasLevel(level + 1);
+    }
+
+    private boolean isBatched(int level) {
+        return hasLevel(level + 1) && getBatchSize(level) > 1 && batchableChildren.get(level);
+    }
+
+    /**
+     * Buffers the rows of <code>level</code> until the batch size of distinct pivots is collected,
+     * then expands all of them with a single child query and replays the buffered rows.
+     */
+    private void processBatches(
+            int level, LevelPlan plan, Row row, Result result,
+            Execution execution, QueryExecutor executor, ResultCollector collector
+    ) {
+        final int pivotIndex = plan.getPivotColumn();
+        final Rows.ArrayRow buffered = new Rows.ArrayRow(row.getBindings());
+        final Rows.ExtendedRow extended = extend(level, buffered);
+        final int batchSize = getBatchSize(level);
+        final List<String[]> rows = new ArrayList<>();
+        final Set<String> batch = new LinkedHashSet<>();
+        String lastPivot = null;
+        String[] values;
+        for(;result.next();) {
+            values = row.getValues();
+            if(!values[pivotIndex].equals(lastPivot)) {
+                lastPivot = values[pivotIndex];
+                if(batch.size() == batchSize && !batch.contains(lastPivot)) {
+                    processBatch(level, plan, buffered, extended, rows, batch, execution, executor, collector);
+                    rows.clear();
+                    batch.clear();
+                }
+                batch.add(lastPivot);
             }
-            collector.collect(bindings, values);
+            rows.add(values);
         }
-        if(lastPivotValue.size() > level) lastPivotValue.pop();
-        collector.endLevel(level);
+        if(!rows.isEmpty()) processBatch(level, plan, buffered, extended, rows, batch, execution, executor, collector);
     }
 
-    private void processPivot(int level, String[] bindings, String[] values, QueryExecutor executor, ResultCollector collector) {
-        if (!hasLevel(level)) return;
-        final Map<String,String> nextArgs = bindArguments(bindings, values);
-        processNextLevel(level, nextArgs, executor, collector);
+    private void processBatch(
+            int level, LevelPlan plan, Rows.ArrayRow row, Rows.ExtendedRow extended, List<String[]> rows, Set<String> batch,
+            Execution execution, QueryExecutor executor, ResultCollector collector
+    ) {
+        final Map<String,MaterializedResult> children =
+                fetchBatch(level + 1, getPivot(level), batch, execution, executor);
+        for(String[] values : rows) {
+            processRow(level, plan, row.set(values), extended, Result.NO_ID, children, execution, null, executor, collector);
+        }
     }
 
-    private Map<String,String> bindArguments(String[] bindings, String[] values) {
-        if(bindings.length != values.length) throw new IllegalArgumentException();
-        final Map<String,String> out = new HashMap<>();
-        for(int i = 0; i < bindings.length; i++) {
-            out.put(bindings[i], values[i]);
+    /**
+     * Evaluates the template of <code>level</code> for all the pivot values and groups the produced rows
+     * by pivot, dropping the routing binding so that every group looks like a per-pivot result.
+     */
+    private Map<String,MaterializedResult> fetchBatch(
+            int level, String parameter, Collection<String> pivotValues, Execution execution, QueryExecutor executor
+    ) {
+        final ExecutionBudget budget = execution.budget;
+        final MetricsSink sink = execution.sink;
+        final long start = sink == null ? 0 : System.nanoTime();
+        Result result = getQuery(level).performBatch(executor, parameter, pivotValues);
+        if(sink != null) result = new MeteredResult(result, sink, level, System.nanoTime() - start);
+        if(budget != null) result = new BudgetedResult(result, budget, level, false);
+        final String[] bindings = result.getBindings();
+        final int routeIndex = indexOf(bindings, parameter);
+        final String[] childBindings = remove(bindings, routeIndex);
+        final Map<String,List<String[]>> groups = new HashMap<>();
+        String[] values;
+        List<String[]> group;
+        while(result.next()) {
+            values = result.getValues();
+            group = groups.get(values[routeIndex]);
+            if(group == null) {
+                group = new ArrayList<>();
+                groups.put(values[routeIndex], group);
+            }
+            group.add(remove(values, routeIndex));
+        }
+        final Map<String,MaterializedResult> out = new HashMap<>();
+        for(String pivotValue : pivotValues) {
+            group = groups.get(pivotValue);
+            out.put(
+                    pivotValue,
+                    new MaterializedResult(childBindings, group == null ? Collections.<String[]>emptyList() : group)
+            );
         }
         return out;
     }
 
-    private String getValue(String[] bindings, String[] values, String target) {
-        for(int i = 0; i < bindings.length; i++) {
-            if(bindings[i].equals(target)) {
-                return values[i];
-            }
+    private void close(GroupedResult grouped) {
+        try {
+            grouped.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
         }
-        throw new IllegalArgumentException();
     }
 
     private int indexOf(String[] list, String t) {
@@ -171,4 +846,115 @@ public class DefaultNestedQuery implements NestedQuery {
         throw new IllegalArgumentException();
     }
 
+    private String[] remove(String[] list, int index) {
+        final String[] out = new String[list.length - 1];
+        System.arraycopy(list, 0, out, 0, index);
+        System.arraycopy(list, index + 1, out, index, list.length - index - 1);
+        return out;
+    }
+
+    /**
+     * Key of a cached subtree, the arguments of its level and the executor evaluating it,
+     * so that executions on different datasets sharing this query do not see each other subtrees.
+     */
+    private static final class SubtreeKey {
+
+        private final QueryExecutor executor;
+        private final Map<String,String> args;
+
+        SubtreeKey(QueryExecutor executor, Map<String,String> args) {
+            this.executor = executor;
+            this.args = args;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj) return true;
+            if(!(obj instanceof SubtreeKey)) return false;
+            final SubtreeKey other = (SubtreeKey) obj;
+            return executor == other.executor && args.equals(other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(executor) + args.hashCode();
+        }
+    }
+
+    /**
+     * State of a single invocation, forked subtrees receive their own copy of the pivot state
+     * and share the sampling counters.
+     */
+    private static class Execution {
+
+        /**
+         * Current pivot value of every level, <code>null</code> before the first row of the level.
+         */
+        final String[] lastPivotValue;
+        final long[] lastPivotId;
+        final boolean forking;
+        final ExecutionBudget budget;
+        final double sampling;
+        /**
+         * Pivots of every level considered for sampling, shared by all the forks of the invocation.
+         */
+        final AtomicLongArray expandedPivots;
+        final RootFilter rootFilter;
+        final Result root;
+        final MetricsSink sink;
+        final AtomicReferenceArray<LevelPlan> plans;
+
+        Execution(
+                String[] lastPivotValue, long[] lastPivotId, boolean forking,
+                ExecutionBudget budget, double sampling, AtomicLongArray expandedPivots, RootFilter rootFilter,
+                Result root, MetricsSink sink, AtomicReferenceArray<LevelPlan> plans
+        ) {
+            this.lastPivotValue = lastPivotValue;
+            this.lastPivotId = lastPivotId;
+            this.forking = forking;
+            this.budget = budget;
+            this.sampling = sampling;
+            this.expandedPivots = expandedPivots;
+            this.rootFilter = rootFilter;
+            this.root = root;
+            this.sink = sink;
+            this.plans = plans;
+        }
+
+        /**
+         * @param root rows of the first level evaluated by the caller, <code>null</code> to evaluate it.
+         * @param sink sink of the measures of the execution, <code>null</code> if not measured.
+         * @param plans level plans shared by the executions of the query.
+         */
+        Execution(
+                int levels, boolean forking, ExecutionBudget budget, double sampling, RootFilter rootFilter,
+                Result root, MetricsSink sink, AtomicReferenceArray<LevelPlan> plans
+        ) {
+            this(
+                    new String[levels], new long[levels], forking, budget, sampling, new AtomicLongArray(levels), rootFilter,
+                    root, sink, plans
+            );
+            Arrays.fill(lastPivotId, Result.NO_ID);
+        }
+
+        /**
+         * @return <code>true</code> if the next pivot expanding <code>level</code> falls in the sampled fraction.
+         */
+        boolean isSampled(int level) {
+            if(sampling >= 1) return true;
+            final long n = expandedPivots.getAndIncrement(level);
+            return Math.ceil((n + 1) * sampling) > Math.ceil(n * sampling);
+        }
+
+        /**
+         * @return a copy of this execution for a subtree running on a fan-out thread,
+         *         sharing the plans and the sampling counters.
+         */
+        Execution fork() {
+            return new Execution(
+                    lastPivotValue.clone(), lastPivotId.clone(), false, budget, sampling, expandedPivots, rootFilter, null, sink, plans
+            );
+        }
+    }
+
 }
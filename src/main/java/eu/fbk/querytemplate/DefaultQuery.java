@@ -17,10 +17,25 @@
 
 package eu.fbk.querytemplate;
 
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QueryParseException;
 import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
 import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author Michele Mostarda (mostarda@fbk.eu)
@@ -29,6 +44,8 @@ public class DefaultQuery implements Query {
 
     private static final Logger logger = Logger.getLogger(DefaultQuery.class);
 
+    private static final Pattern PARAMETER = Pattern.compile("\\$(\\w+)");
+
     private final String template;
 
     public DefaultQuery(String template) {
@@ -59,11 +76,73 @@ public class DefaultQuery implements Query {
         return new DefaultResult(rs);
     }
 
+    @Override
+    public boolean isBatchable(String parameter) {
+        return toBatchQuery(parameter) != null;
+    }
+
+    @Override
+    public Result performBatch(QueryExecutor executor, String parameter, Collection<String> values) {
+        final com.hp.hpl.jena.query.Query batchQuery = toBatchQuery(parameter);
+        if(batchQuery == null)
+            throw new IllegalArgumentException(String.format("Cannot batch template '%s' on '%s'", template, parameter));
+        final Var var = Var.alloc(parameter);
+        final List<Binding> rows = new ArrayList<>();
+        for(String value : values) {
+            rows.add(BindingFactory.binding(var, NodeFactory.createURI(value)));
+        }
+        batchQuery.setValuesDataBlock(Collections.singletonList(var), rows);
+        return new DefaultResult(executor.execSelect(batchQuery.toString()));
+    }
+
+    /**
+     * @return the names of the <code>$</code> parameters declared by the template.
+     */
+    public Set<String> getParameters() {
+        final Set<String> out = new HashSet<>();
+        final Matcher matcher = PARAMETER.matcher(template);
+        while(matcher.find()) {
+            out.add(matcher.group(1));
+        }
+        return out;
+    }
+
     @Override
     public String toString() {
         return template;
     }
 
+    /**
+     * Turns the IRI parameter <code>&lt;$parameter&gt;</code> into the variable <code>?parameter</code>,
+     * projected by the query so that rows can be routed back to the value they have been produced for.
+     *
+     * @return the rewritten query or <code>null</code> if the template cannot be safely rewritten.
+     */
+    private com.hp.hpl.jena.query.Query toBatchQuery(String parameter) {
+        final String placeholder = String.format("<$%s>", parameter);
+        if(
+                !getParameters().equals(Collections.singleton(parameter))
+                ||
+                !template.contains(placeholder)
+                ||
+                template.replace(placeholder, "").contains("$" + parameter)
+                ||
+                template.contains("?" + parameter)
+        ) return null;
+        final com.hp.hpl.jena.query.Query query;
+        try {
+            query = QueryFactory.create(template.replace(placeholder, "?" + parameter), Syntax.syntaxSPARQL_11);
+        } catch (QueryParseException qpe) {
+            return null;
+        }
+        if(
+                !query.isSelectType() || query.hasLimit() || query.hasOffset() ||
+                query.hasGroupBy() || query.hasAggregators() || query.hasValues()
+        ) return null;
+        if(!query.isQueryResultStar()) query.addResultVar(parameter);
+        return query;
+    }
+
     //TODO: replacement causes not matching URIs, replace with escaping.
     private void checkArgs(Map<String,String> args) {
         String arg, newArg;
@@ -23,12 +23,17 @@ import com.hp.hpl.jena.query.QueryParseException;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
 import org.rdfhdt.hdt.hdt.HDT;
 import org.rdfhdt.hdt.hdt.HDTManager;
 import org.rdfhdt.hdtjena.HDTGraph;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author Michele Mostarda (mostarda@fbk.eu)
@@ -43,15 +48,30 @@ public class DefaultQueryExecutor implements QueryExecutor {
         this.model = ModelFactory.createModelForGraph(hdtGraph);
     }
 
+    public DefaultQueryExecutor(Model model) {
+        this.model = model;
+    }
+
 
     @Override
     public ResultSet execSelect(String qry) {
         try {
             QueryExecution qexec = QueryExecutionFactory.create(qry, model);
-            return qexec.execSelect();
+            return new CancellableResultSet(qexec.execSelect(), qexec);
         } catch (QueryParseException qpe) {
             throw new IllegalStateException(String.format("Error while processing query: [%s]", qry));
         }
     }
 
+    @Override
+    public ResultSet execSelect(Op op, List<String> resultVars) {
+        final QueryIterator iterator = Algebra.exec(op, model.getGraph());
+        return new CancellableResultSet(new ResultSetStream(resultVars, model, iterator), iterator);
+    }
+
+    @Override
+    public Result select(Op op, List<String> resultVars) {
+        return new DefaultResult(execSelect(op, resultVars));
+    }
+
 }
@@ -19,11 +19,12 @@ package eu.fbk.querytemplate;
 
 import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.RDFNode;
 
 /**
  * @author Michele Mostarda (mostarda@fbk.eu)
  */
-public class DefaultResult implements Result {
+public class DefaultResult implements Result, Cancellable {
 
     private final ResultSet rs;
 
@@ -65,4 +66,20 @@ public class DefaultResult implements Result {
         }
         return out;
     }
+
+    @Override
+    public String getValue(int column) {
+        final RDFNode node = sltn.get(getBindings()[column]);
+        return node == null ? null : node.toString();
+    }
+
+    @Override
+    public long getValueId(int column) {
+        return NO_ID;
+    }
+
+    @Override
+    public void cancel() {
+        if(rs instanceof Cancellable) ((Cancellable) rs).cancel();
+    }
 }
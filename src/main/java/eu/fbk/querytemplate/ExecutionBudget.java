@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Limits of a {@link NestedQuery} execution: wall-clock time, rows per level and output bytes.
+ * When any limit is exceeded the budget is exhausted, the running queries are cancelled and
+ * the execution completes with the rows collected so far, see {@link ResultCollector#truncated(String)}.
+ * A budget tracks one execution at a time.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class ExecutionBudget {
+
+    /**
+     * Disables a limit.
+     */
+    public static final long UNLIMITED = -1;
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("execution-budget-%d").build()
+    );
+
+    private final long timeoutMillis;
+    private final long maxRowsPerLevel;
+    private final long maxOutputBytes;
+
+    private final Set<Cancellable> running = Collections.newSetFromMap(new IdentityHashMap<Cancellable,Boolean>());
+    private final AtomicReference<String> exhaustion = new AtomicReference<>();
+    private final AtomicLong outputBytes = new AtomicLong();
+
+    private volatile long deadline;
+    private AtomicLongArray levelRows;
+    private ScheduledFuture<?> watchdog;
+
+    /**
+     * @param timeoutMillis max execution time in milliseconds or {@link #UNLIMITED}.
+     * @param maxRowsPerLevel max number of rows read by every level or {@link #UNLIMITED}.
+     * @param maxOutputBytes max number of bytes written to the streams returned by
+     *                       {@link #track(java.io.OutputStream)} or {@link #UNLIMITED}.
+     */
+    public ExecutionBudget(long timeoutMillis, long maxRowsPerLevel, long maxOutputBytes) {
+        if(timeoutMillis < 1 && timeoutMillis != UNLIMITED) throw new IllegalArgumentException("Invalid timeout.");
+        if(maxRowsPerLevel < 0 && maxRowsPerLevel != UNLIMITED) throw new IllegalArgumentException("Invalid max rows.");
+        if(maxOutputBytes < 0 && maxOutputBytes != UNLIMITED) throw new IllegalArgumentException("Invalid max bytes.");
+        this.timeoutMillis = timeoutMillis;
+        this.maxRowsPerLevel = maxRowsPerLevel;
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getMaxRowsPerLevel() {
+        return maxRowsPerLevel;
+    }
+
+    public long getMaxOutputBytes() {
+        return maxOutputBytes;
+    }
+
+    /**
+     * Wraps the collector output stream to account the written bytes. The stream keeps accepting
+     * bytes after the budget is exhausted, so that the open levels can be closed.
+     */
+    public OutputStream track(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                countBytes(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                countBytes(len);
+            }
+        };
+    }
+
+    /**
+     * @return <code>true</code> if a limit has been exceeded.
+     */
+    public boolean isExhausted() {
+        if(exhaustion.get() != null) return true;
+        if(deadline > 0 && System.currentTimeMillis() >= deadline) {
+            exhaust("timeout of " + timeoutMillis + " ms exceeded");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the reason of the exhaustion, <code>null</code> if the budget is not exhausted.
+     */
+    public String getExhaustion() {
+        return exhaustion.get();
+    }
+
+    /**
+     * Marks the budget as exhausted and cancels all the running queries, only the first reason is retained.
+     */
+    public void exhaust(String reason) {
+        if(!exhaustion.compareAndSet(null, reason)) return;
+        final Cancellable[] toCancel;
+        synchronized (running) {
+            toCancel = running.toArray(new Cancellable[running.size()]);
+        }
+        for(Cancellable cancellable : toCancel) {
+            cancellable.cancel();
+        }
+    }
+
+    /**
+     * Starts accounting a new execution.
+     *
+     * @param levels number of levels of the executed query.
+     */
+    synchronized void start(int levels) {
+        exhaustion.set(null);
+        outputBytes.set(0);
+        levelRows = new AtomicLongArray(levels);
+        if(timeoutMillis == UNLIMITED) {
+            deadline = 0;
+            return;
+        }
+        deadline = System.currentTimeMillis() + timeoutMillis;
+        watchdog = WATCHDOG.schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        isExhausted();
+                    }
+                },
+                timeoutMillis, TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Ends the accounting of the current execution.
+     */
+    synchronized void finish() {
+        if(watchdog != null) {
+            watchdog.cancel(false);
+            watchdog = null;
+        }
+        synchronized (running) {
+            running.clear();
+        }
+    }
+
+    /**
+     * Registers a query to be cancelled on exhaustion, cancelled at once if already exhausted.
+     */
+    void register(Cancellable cancellable) {
+        synchronized (running) {
+            running.add(cancellable);
+        }
+        if(exhaustion.get() != null) cancellable.cancel();
+    }
+
+    void unregister(Cancellable cancellable) {
+        synchronized (running) {
+            running.remove(cancellable);
+        }
+    }
+
+    /**
+     * Accounts a row read by <code>level</code>.
+     *
+     * @return <code>false</code> if the row exceeds the level limit.
+     */
+    boolean countRow(int level) {
+        if(maxRowsPerLevel == UNLIMITED) return true;
+        if(levelRows.incrementAndGet(level) <= maxRowsPerLevel) return true;
+        exhaust("max rows per level " + maxRowsPerLevel + " exceeded at level " + level);
+        return false;
+    }
+
+    private void countBytes(int count) {
+        if(maxOutputBytes == UNLIMITED) return;
+        if(outputBytes.addAndGet(count) > maxOutputBytes) {
+            exhaust("max output bytes " + maxOutputBytes + " exceeded");
+        }
+    }
+
+}
@@ -0,0 +1,610 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Set multimap from field to values preserving the insertion order of both, backed by flat arrays
+ * reused across {@link #clear()}s. The arrays grown by a large group are released on clear,
+ * so that a single pathological group does not retain its memory for the following ones.
+ * At most a max number of values is buffered, beyond it the buffered values are spilled to a temporary file
+ * and the following duplicates are detected only when the values are read back by a {@link Cursor},
+ * with an external sort bounded by the same number of values. Only the keys are always kept in memory.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class FieldMultimap {
+
+    static final int DEFAULT_MAX_VALUES = 1 << 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Max number of entries whose arrays are retained by {@link #clear()}.
+     */
+    private static final int RETAINED_CAPACITY = 4096;
+
+    /**
+     * Orders the spilled values by key and value, first occurrence first.
+     */
+    private static final Comparator<Entry> BY_VALUE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if(e1.key != e2.key) return Integer.compare(e1.key, e2.key);
+            final int c = e1.value.compareTo(e2.value);
+            return c != 0 ? c : Long.compare(e1.sequence, e2.sequence);
+        }
+    };
+
+    /**
+     * Orders the spilled values by key and insertion.
+     */
+    private static final Comparator<Entry> BY_SEQUENCE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if(e1.key != e2.key) return Integer.compare(e1.key, e2.key);
+            return Long.compare(e1.sequence, e2.sequence);
+        }
+    };
+
+    private final int maxValues;
+
+    private String[] keys;
+    private int[] keyFirst;
+    private int[] keyLast;
+    private int[] keyValues;
+    private int[] keySlot;
+    private int[] keyTable;
+    private int keyCount;
+
+    private String[] values;
+    private int[] valueKey;
+    private int[] valueNext;
+    private int[] valueSlot;
+    private int[] valueTable;
+    private int valueCount;
+
+    private final List<File> spillFiles = new ArrayList<>();
+    private File spillFile;
+    private DataOutputStream spillOut;
+    private long spilledValues;
+
+    FieldMultimap() {
+        this(DEFAULT_MAX_VALUES);
+    }
+
+    /**
+     * @param maxValues max number of values buffered in memory.
+     */
+    FieldMultimap(int maxValues) {
+        if(maxValues < 1) throw new IllegalArgumentException("Invalid max values.");
+        this.maxValues = maxValues;
+        allocateKeys(INITIAL_CAPACITY);
+        allocateValues(INITIAL_CAPACITY);
+    }
+
+    boolean isEmpty() {
+        return valueCount == 0 && spilledValues == 0;
+    }
+
+    /**
+     * @return <code>true</code> if some values have been spilled since the last {@link #clear()}.
+     */
+    boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * @return <code>false</code> if the pair was already present, pairs spilled to disk are not checked.
+     */
+    boolean put(String key, String value) {
+        final int k = indexKey(key);
+        final int hash = hash(31 * k + value.hashCode());
+        int mask = valueTable.length - 1;
+        int slot = hash & mask;
+        int v;
+        while((v = valueTable[slot]) != 0) {
+            v--;
+            if(valueKey[v] == k && values[v].equals(value)) return false;
+            slot = (slot + 1) & mask;
+        }
+        if(valueCount == maxValues) {
+            spill();
+            slot = hash & (valueTable.length - 1);
+        } else if(valueCount == values.length) {
+            growValues();
+            mask = valueTable.length - 1;
+            slot = hash & mask;
+            while(valueTable[slot] != 0) slot = (slot + 1) & mask;
+        }
+        v = valueCount++;
+        values[v] = value;
+        valueKey[v] = k;
+        valueNext[v] = -1;
+        valueSlot[v] = slot;
+        valueTable[slot] = v + 1;
+        if(keyValues[k] == 0) {
+            keyFirst[k] = v;
+        } else {
+            valueNext[keyLast[k]] = v;
+        }
+        keyLast[k] = v;
+        keyValues[k]++;
+        return true;
+    }
+
+    /**
+     * Returns a cursor over the keys and their distinct values, both in insertion order.
+     * If values have been spilled the remaining buffered ones are spilled too and the cursor
+     * reads them back, sorted and deduplicated on disk. The cursor is valid until {@link #clear()}.
+     */
+    Cursor cursor() {
+        if(spillFile == null) return new BufferedCursor();
+        spill();
+        try {
+            spillOut.close();
+            spillOut = null;
+            final List<File> byValue = writeRuns(new SpillReader(spillFile), BY_VALUE);
+            final List<File> bySequence = writeRuns(new DistinctReader(merge(byValue, BY_VALUE)), BY_SEQUENCE);
+            return new SpilledCursor(merge(bySequence, BY_SEQUENCE));
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error while reading spilled field values.", ioe);
+        }
+    }
+
+    void clear() {
+        for(int k = 0; k < keyCount; k++) {
+            keyTable[keySlot[k]] = 0;
+            keys[k] = null;
+        }
+        if(keys.length > RETAINED_CAPACITY) allocateKeys(INITIAL_CAPACITY);
+        keyCount = 0;
+        clearValues();
+        if(spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException ioe) {
+                // Deleted anyway.
+            }
+            spillOut = null;
+        }
+        for(File file : spillFiles) {
+            if(!file.delete()) file.deleteOnExit();
+        }
+        spillFiles.clear();
+        spillFile = null;
+        spilledValues = 0;
+    }
+
+    private void clearValues() {
+        if(values.length > RETAINED_CAPACITY) {
+            allocateValues(INITIAL_CAPACITY);
+        } else {
+            for(int v = 0; v < valueCount; v++) {
+                valueTable[valueSlot[v]] = 0;
+                values[v] = null;
+            }
+        }
+        valueCount = 0;
+    }
+
+    /**
+     * Appends the buffered values to the spill file in insertion order, then releases them.
+     */
+    private void spill() {
+        try {
+            if(spillFile == null) {
+                spillFile = createTempFile();
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            for(int v = 0; v < valueCount; v++) {
+                spillOut.writeInt(valueKey[v]);
+                writeString(spillOut, values[v]);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error while spilling field values.", ioe);
+        }
+        spilledValues += valueCount;
+        clearValues();
+        Arrays.fill(keyValues, 0, keyCount, 0);
+    }
+
+    /**
+     * Writes the entries of <code>in</code> in runs of at most the max values, each sorted by <code>order</code>.
+     */
+    private List<File> writeRuns(EntryReader in, Comparator<Entry> order) throws IOException {
+        final List<File> runs = new ArrayList<>();
+        final List<Entry> run = new ArrayList<>();
+        Entry entry;
+        do {
+            entry = in.next();
+            if(entry != null) run.add(entry);
+            if(run.size() == maxValues || entry == null && !run.isEmpty()) {
+                Collections.sort(run, order);
+                final File file = createTempFile();
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                    for(Entry e : run) {
+                        out.writeInt(e.key);
+                        out.writeLong(e.sequence);
+                        writeString(out, e.value);
+                    }
+                }
+                runs.add(file);
+                run.clear();
+            }
+        } while(entry != null);
+        return runs;
+    }
+
+    private EntryReader merge(List<File> runs, Comparator<Entry> order) throws IOException {
+        final List<EntryReader> readers = new ArrayList<>();
+        for(File run : runs) {
+            readers.add(new RunReader(run));
+        }
+        return new MergeReader(readers, order);
+    }
+
+    private File createTempFile() throws IOException {
+        final File file = File.createTempFile("field-multimap", ".spill");
+        spillFiles.add(file);
+        return file;
+    }
+
+    private int indexKey(String key) {
+        final int hash = hash(key.hashCode());
+        int mask = keyTable.length - 1;
+        int slot = hash & mask;
+        int k;
+        while((k = keyTable[slot]) != 0) {
+            k--;
+            if(keys[k].equals(key)) return k;
+            slot = (slot + 1) & mask;
+        }
+        if(keyCount == keys.length) {
+            growKeys();
+            mask = keyTable.length - 1;
+            slot = hash & mask;
+            while(keyTable[slot] != 0) slot = (slot + 1) & mask;
+        }
+        k = keyCount++;
+        keys[k] = key;
+        keyValues[k] = 0;
+        keySlot[k] = slot;
+        keyTable[slot] = k + 1;
+        return k;
+    }
+
+    private void allocateKeys(int capacity) {
+        keys = new String[capacity];
+        keyFirst = new int[capacity];
+        keyLast = new int[capacity];
+        keyValues = new int[capacity];
+        keySlot = new int[capacity];
+        keyTable = new int[capacity * 2];
+    }
+
+    private void allocateValues(int capacity) {
+        values = new String[capacity];
+        valueKey = new int[capacity];
+        valueNext = new int[capacity];
+        valueSlot = new int[capacity];
+        valueTable = new int[capacity * 2];
+    }
+
+    private void growKeys() {
+        final int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        keyFirst = Arrays.copyOf(keyFirst, capacity);
+        keyLast = Arrays.copyOf(keyLast, capacity);
+        keyValues = Arrays.copyOf(keyValues, capacity);
+        keySlot = Arrays.copyOf(keySlot, capacity);
+        keyTable = new int[capacity * 2];
+        final int mask = keyTable.length - 1;
+        int slot;
+        for(int k = 0; k < keyCount; k++) {
+            slot = hash(keys[k].hashCode()) & mask;
+            while(keyTable[slot] != 0) slot = (slot + 1) & mask;
+            keyTable[slot] = k + 1;
+            keySlot[k] = slot;
+        }
+    }
+
+    private void growValues() {
+        final int capacity = values.length * 2;
+        values = Arrays.copyOf(values, capacity);
+        valueKey = Arrays.copyOf(valueKey, capacity);
+        valueNext = Arrays.copyOf(valueNext, capacity);
+        valueSlot = Arrays.copyOf(valueSlot, capacity);
+        valueTable = new int[capacity * 2];
+        final int mask = valueTable.length - 1;
+        int slot;
+        for(int v = 0; v < valueCount; v++) {
+            slot = hash(31 * valueKey[v] + values[v].hashCode()) & mask;
+            while(valueTable[slot] != 0) slot = (slot + 1) & mask;
+            valueTable[slot] = v + 1;
+            valueSlot[v] = slot;
+        }
+    }
+
+    private static int hash(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Iterates the keys and, for every key, its values.
+     */
+    interface Cursor {
+
+        /**
+         * Moves to the next key, skipping the values left of the current one.
+         *
+         * @return <code>false</code> if there are no more keys.
+         */
+        boolean nextKey();
+
+        String getKey();
+
+        /**
+         * @return <code>false</code> if there are no more values of the current key.
+         */
+        boolean nextValue();
+
+        String getValue();
+
+    }
+
+    private class BufferedCursor implements Cursor {
+
+        private int k = -1;
+        private int v = -1;
+        private boolean started;
+
+        @Override
+        public boolean nextKey() {
+            if(k + 1 >= keyCount) return false;
+            k++;
+            started = false;
+            return true;
+        }
+
+        @Override
+        public String getKey() {
+            return keys[k];
+        }
+
+        @Override
+        public boolean nextValue() {
+            v = started ? valueNext[v] : keyFirst[k];
+            started = true;
+            return v >= 0;
+        }
+
+        @Override
+        public String getValue() {
+            return values[v];
+        }
+    }
+
+    private class SpilledCursor implements Cursor {
+
+        private final EntryReader in;
+        private Entry next;
+        private Entry current;
+        private int key = -1;
+
+        SpilledCursor(EntryReader in) throws IOException {
+            this.in = in;
+            this.next = in.next();
+        }
+
+        @Override
+        public boolean nextKey() {
+            while(next != null && next.key == key) advance();
+            if(next == null) return false;
+            key = next.key;
+            return true;
+        }
+
+        @Override
+        public String getKey() {
+            return keys[key];
+        }
+
+        @Override
+        public boolean nextValue() {
+            if(next == null || next.key != key) return false;
+            advance();
+            return true;
+        }
+
+        @Override
+        public String getValue() {
+            return current.value;
+        }
+
+        private void advance() {
+            current = next;
+            try {
+                next = in.next();
+            } catch (IOException ioe) {
+                throw new RuntimeException("Error while reading spilled field values.", ioe);
+            }
+        }
+    }
+
+    private static class Entry {
+        final int key;
+        final long sequence;
+        final String value;
+
+        Entry(int key, long sequence, String value) {
+            this.key = key;
+            this.sequence = sequence;
+            this.value = value;
+        }
+    }
+
+    private interface EntryReader {
+
+        /**
+         * @return the next entry, <code>null</code> at the end.
+         */
+        Entry next() throws IOException;
+
+    }
+
+    /**
+     * Reads the spill file, numbering the values in insertion order.
+     */
+    private static class SpillReader implements EntryReader {
+
+        private final DataInputStream in;
+        private long sequence;
+
+        SpillReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            final int key;
+            try {
+                key = in.readInt();
+            } catch (EOFException eofe) {
+                in.close();
+                return null;
+            }
+            return new Entry(key, sequence++, readString(in));
+        }
+    }
+
+    private static class RunReader implements EntryReader {
+
+        private final DataInputStream in;
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            final int key;
+            try {
+                key = in.readInt();
+            } catch (EOFException eofe) {
+                in.close();
+                return null;
+            }
+            return new Entry(key, in.readLong(), readString(in));
+        }
+    }
+
+    private static class MergeReader implements EntryReader {
+
+        private final PriorityQueue<Head> heads;
+
+        MergeReader(List<EntryReader> readers, final Comparator<Entry> order) throws IOException {
+            heads = new PriorityQueue<>(Math.max(1, readers.size()), new Comparator<Head>() {
+                @Override
+                public int compare(Head h1, Head h2) {
+                    return order.compare(h1.entry, h2.entry);
+                }
+            });
+            for(EntryReader reader : readers) {
+                final Entry entry = reader.next();
+                if(entry != null) heads.add(new Head(reader, entry));
+            }
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            final Head head = heads.poll();
+            if(head == null) return null;
+            final Entry entry = head.entry;
+            head.entry = head.reader.next();
+            if(head.entry != null) heads.add(head);
+            return entry;
+        }
+
+        private static class Head {
+            final EntryReader reader;
+            Entry entry;
+
+            Head(EntryReader reader, Entry entry) {
+                this.reader = reader;
+                this.entry = entry;
+            }
+        }
+    }
+
+    /**
+     * Drops the entries repeating key and value of the previous one, from a reader ordered {@link #BY_VALUE}.
+     */
+    private static class DistinctReader implements EntryReader {
+
+        private final EntryReader in;
+        private Entry last;
+
+        DistinctReader(EntryReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            Entry entry;
+            do {
+                entry = in.next();
+            } while(entry != null && last != null && entry.key == last.key && entry.value.equals(last.value));
+            last = entry;
+            return entry;
+        }
+    }
+
+}
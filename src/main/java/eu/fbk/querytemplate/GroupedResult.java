@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Result} returning the rows of another result grouped by the value of a pivot binding,
+ * rows keep their order within a group. The source is consumed when the first row is requested.
+ * The rows are buffered in memory up to a max number of values and returned in order of first occurrence
+ * of their group. Beyond that every row is spilled to one of {@link #PARTITIONS} temporary files by the hash
+ * of its pivot, and every partition is grouped again when read back, with a different hash if it still exceeds
+ * the max values, up to {@link #MAX_DEPTH} times. Groups are then returned partition by partition.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class GroupedResult implements Result, Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Number of hash partitions of a spill.
+     */
+    static final int PARTITIONS = 64;
+
+    /**
+     * Max number of nested partitionings, the partitions at this depth are grouped in memory.
+     */
+    static final int MAX_DEPTH = 2;
+
+    private final Result source;
+    private final String[] bindings;
+    private final int pivotColumn;
+    private final long maxValues;
+    private final int depth;
+    private final Map<String,List<String[]>> groups = new LinkedHashMap<>();
+
+    private long bufferedValues;
+    private File[] partitionFiles;
+    private DataOutputStream[] partitionOuts;
+    private int spilledPartitions;
+
+    private Iterator<List<String[]>> groupIterator;
+    private Iterator<String[]> rowIterator;
+    private int partition;
+    private DataInputStream partitionIn;
+    private GroupedResult partitionResult;
+    private String[] row;
+
+    /**
+     * @param source result to be grouped.
+     * @param pivot binding the rows are grouped by.
+     * @param maxValues max number of values buffered in memory.
+     */
+    GroupedResult(Result source, String pivot, long maxValues) {
+        this(source, pivotColumn(source.getBindings(), pivot), maxValues, 0);
+    }
+
+    private GroupedResult(Result source, int pivotColumn, long maxValues, int depth) {
+        if(maxValues < 1) throw new IllegalArgumentException("Invalid max values.");
+        this.source = source;
+        this.bindings = source.getBindings();
+        this.pivotColumn = pivotColumn;
+        this.maxValues = maxValues;
+        this.depth = depth;
+    }
+
+    /**
+     * @return the number of partitions spilled to disk, nested partitionings included.
+     */
+    int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    @Override
+    public String[] getBindings() {
+        return bindings;
+    }
+
+    @Override
+    public boolean next() {
+        try {
+            if(groupIterator == null) group();
+            while(true) {
+                if(rowIterator != null && rowIterator.hasNext()) {
+                    row = rowIterator.next();
+                    return true;
+                }
+                if(groupIterator.hasNext()) {
+                    rowIterator = groupIterator.next().iterator();
+                    continue;
+                }
+                if(partitionResult != null) {
+                    if(partitionResult.next()) {
+                        row = partitionResult.getValues();
+                        return true;
+                    }
+                    spilledPartitions += partitionResult.getSpilledPartitions();
+                    partitionResult.close();
+                    partitionResult = null;
+                    partitionIn.close();
+                    partitionIn = null;
+                    if(!partitionFiles[partition - 1].delete()) partitionFiles[partition - 1].deleteOnExit();
+                    partitionFiles[partition - 1] = null;
+                }
+                if(partitionFiles == null || !openPartition()) {
+                    row = null;
+                    close();
+                    return false;
+                }
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error while reading spilled rows.", ioe);
+        }
+    }
+
+    @Override
+    public String getValue(String binding) {
+        for(int i = 0; i < bindings.length; i++) {
+            if(bindings[i].equals(binding)) return row[i];
+        }
+        throw new IllegalArgumentException("Unknown binding: " + binding);
+    }
+
+    @Override
+    public String[] getValues() {
+        return row;
+    }
+
+    @Override
+    public String getValue(int column) {
+        return row[column];
+    }
+
+    @Override
+    public long getValueId(int column) {
+        return NO_ID;
+    }
+
+    /**
+     * Releases the spill files, invoked automatically when the result is exhausted.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if(partitionResult != null) partitionResult.close();
+            if(partitionIn != null) partitionIn.close();
+            if(partitionOuts != null) {
+                for(DataOutputStream out : partitionOuts) {
+                    if(out != null) out.close();
+                }
+            }
+        } finally {
+            partitionResult = null;
+            partitionIn = null;
+            partitionOuts = null;
+            if(partitionFiles != null) {
+                for(File file : partitionFiles) {
+                    if(file != null && !file.delete()) file.deleteOnExit();
+                }
+            }
+            partitionFiles = null;
+        }
+    }
+
+    private static int pivotColumn(String[] bindings, String pivot) {
+        for(int i = 0; i < bindings.length; i++) {
+            if(bindings[i].equals(pivot)) return i;
+        }
+        throw new IllegalArgumentException("Unknown pivot: " + pivot);
+    }
+
+    private void group() throws IOException {
+        String[] values;
+        List<String[]> target;
+        while(source.next()) {
+            values = source.getValues();
+            if(partitionOuts != null) {
+                writeRow(values);
+                continue;
+            }
+            target = groups.get(values[pivotColumn]);
+            if(target == null) {
+                target = new ArrayList<>();
+                groups.put(values[pivotColumn], target);
+            }
+            target.add(values);
+            bufferedValues += values.length;
+            if(bufferedValues > maxValues && depth < MAX_DEPTH) spill();
+        }
+        if(partitionOuts != null) {
+            for(int i = 0; i < PARTITIONS; i++) {
+                if(partitionOuts[i] != null) partitionOuts[i].close();
+            }
+            partitionOuts = null;
+        }
+        groupIterator = groups.values().iterator();
+    }
+
+    /**
+     * Moves the buffered rows to the partitions, the following rows are written directly to them.
+     */
+    private void spill() throws IOException {
+        partitionFiles = new File[PARTITIONS];
+        partitionOuts = new DataOutputStream[PARTITIONS];
+        for(List<String[]> group : groups.values()) {
+            for(String[] values : group) {
+                writeRow(values);
+            }
+        }
+        groups.clear();
+        bufferedValues = 0;
+    }
+
+    /**
+     * Opens the next non empty partition.
+     *
+     * @return <code>false</code> if there are no more partitions.
+     */
+    private boolean openPartition() throws IOException {
+        while(partition < PARTITIONS && partitionFiles[partition] == null) partition++;
+        if(partition == PARTITIONS) return false;
+        partitionIn = new DataInputStream(new BufferedInputStream(new FileInputStream(partitionFiles[partition++])));
+        partitionResult = new GroupedResult(new PartitionResult(partitionIn), pivotColumn, maxValues, depth + 1);
+        return true;
+    }
+
+    private void writeRow(String[] values) throws IOException {
+        final int index = partitionOf(values[pivotColumn]);
+        DataOutputStream out = partitionOuts[index];
+        if(out == null) {
+            partitionFiles[index] = File.createTempFile("grouped-result", ".spill");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partitionFiles[index])));
+            partitionOuts[index] = out;
+            spilledPartitions++;
+        }
+        for(String value : values) {
+            if(value == null) {
+                out.writeInt(-1);
+            } else {
+                final byte[] bytes = value.getBytes(UTF8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * @return the partition of a pivot value, mixing the hash with the depth so that nested partitionings
+     *         split the rows of a partition.
+     */
+    private int partitionOf(String pivot) {
+        int h = (pivot == null ? 0 : pivot.hashCode()) ^ (depth * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % PARTITIONS;
+    }
+
+    /**
+     * Rows read back from a partition file.
+     */
+    private class PartitionResult implements Result {
+
+        private final DataInputStream in;
+        private String[] values;
+
+        PartitionResult(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public String[] getBindings() {
+            return bindings;
+        }
+
+        @Override
+        public boolean next() {
+            try {
+                final String[] out = new String[bindings.length];
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException eofe) {
+                    values = null;
+                    return false;
+                }
+                for(int i = 0; i < out.length; i++) {
+                    if(i > 0) length = in.readInt();
+                    if(length < 0) continue;
+                    final byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    out[i] = new String(bytes, UTF8);
+                }
+                values = out;
+                return true;
+            } catch (IOException ioe) {
+                throw new RuntimeException("Error while reading spilled rows.", ioe);
+            }
+        }
+
+        @Override
+        public String getValue(String binding) {
+            for(int i = 0; i < bindings.length; i++) {
+                if(bindings[i].equals(binding)) return values[i];
+            }
+            throw new IllegalArgumentException("Unknown binding: " + binding);
+        }
+
+        @Override
+        public String[] getValues() {
+            return values;
+        }
+
+        @Override
+        public String getValue(int column) {
+            return values[column];
+        }
+
+        @Override
+        public long getValueId(int column) {
+            return NO_ID;
+        }
+    }
+
+}
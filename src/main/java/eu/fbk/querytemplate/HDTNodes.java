@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.rdf.model.AnonId;
+
+/**
+ * Conversions between Jena nodes and the string representation used by the HDT dictionary.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class HDTNodes {
+
+    private HDTNodes(){}
+
+    /**
+     * @return the dictionary representation of a concrete <code>node</code>.
+     */
+    static String toHDTString(Node node) {
+        if(node.isURI()) return node.getURI();
+        if(node.isBlank()) return "_:" + node.getBlankNodeLabel();
+        if(node.isLiteral()) {
+            final String lexical = '"' + node.getLiteralLexicalForm() + '"';
+            final String language = node.getLiteralLanguage();
+            if(language != null && language.length() > 0) return lexical + '@' + language;
+            final String datatype = node.getLiteralDatatypeURI();
+            if(datatype != null) return lexical + "^^<" + datatype + '>';
+            return lexical;
+        }
+        throw new IllegalArgumentException("Unsupported node: " + node);
+    }
+
+    /**
+     * @return the node for a dictionary entry.
+     */
+    static Node toNode(CharSequence entry) {
+        final String s = entry.toString();
+        if(s.startsWith("_:")) return NodeFactory.createAnon(new AnonId(s.substring(2)));
+        if(s.startsWith("\"")) {
+            final int end = s.lastIndexOf('"');
+            final String lexical = s.substring(1, end);
+            final String suffix = s.substring(end + 1);
+            if(suffix.startsWith("@")) return NodeFactory.createLiteral(lexical, suffix.substring(1), null);
+            if(suffix.startsWith("^^<")) {
+                return NodeFactory.createLiteral(
+                        lexical, null, TypeMapper.getInstance().getSafeTypeByName(suffix.substring(3, suffix.length() - 1))
+                );
+            }
+            return NodeFactory.createLiteral(lexical);
+        }
+        return NodeFactory.createURI(s);
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QueryParseException;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpProject;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.hdt.HDTManager;
+import org.rdfhdt.hdtjena.HDTGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link QueryExecutor} evaluating queries made of a single basic graph pattern, optionally projected and sliced,
+ * directly on the HDT triple IDs. Any other query is delegated to ARQ.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class HDTQueryExecutor implements QueryExecutor {
+
+    private final Model model;
+    private final BGPEvaluator evaluator;
+    private final QueryExecutor fallback;
+
+    public HDTQueryExecutor(HDT hdt) {
+        this.model = ModelFactory.createModelForGraph(new HDTGraph(hdt));
+        this.evaluator = new BGPEvaluator(hdt);
+        this.fallback = new DefaultQueryExecutor(model);
+    }
+
+    public HDTQueryExecutor(File hdtFile) throws IOException {
+        this(HDTManager.loadIndexedHDT(hdtFile.getAbsolutePath(), null));
+    }
+
+    @Override
+    public ResultSet execSelect(String qry) {
+        final com.hp.hpl.jena.query.Query query;
+        try {
+            query = QueryFactory.create(qry, Syntax.syntaxSPARQL_11);
+        } catch (QueryParseException qpe) {
+            throw new IllegalStateException(String.format("Error while processing query: [%s]", qry));
+        }
+        if(query.isSelectType()) {
+            final List<String> resultVars = query.getResultVars();
+            final IDResult result = evaluate(Algebra.compile(query), resultVars);
+            if(result != null) return toResultSet(result);
+        }
+        return fallback.execSelect(qry);
+    }
+
+    @Override
+    public ResultSet execSelect(Op op, List<String> resultVars) {
+        final IDResult result = evaluate(op, resultVars);
+        return result != null ? toResultSet(result) : fallback.execSelect(op, resultVars);
+    }
+
+    /**
+     * Natively evaluated expressions produce an {@link IDResult}, decoding values only on demand.
+     */
+    @Override
+    public Result select(Op op, List<String> resultVars) {
+        final IDResult result = evaluate(op, resultVars);
+        return result != null ? result : fallback.select(op, resultVars);
+    }
+
+    /**
+     * @return <code>true</code> if <code>op</code> is evaluated on the HDT IDs.
+     */
+    public boolean isNative(Op op) {
+        return getBGP(op) != null;
+    }
+
+    private OpBGP getBGP(Op op) {
+        if(op instanceof OpSlice) op = ((OpSlice) op).getSubOp();
+        if(op instanceof OpProject) op = ((OpProject) op).getSubOp();
+        return op instanceof OpBGP && ((OpBGP) op).getPattern().size() > 0 ? (OpBGP) op : null;
+    }
+
+    private IDResult evaluate(Op op, List<String> resultVars) {
+        final OpBGP bgp = getBGP(op);
+        if(bgp == null) return null;
+        long offset = 0, limit = -1;
+        if(op instanceof OpSlice) {
+            final OpSlice slice = (OpSlice) op;
+            if(slice.getStart() > 0) offset = slice.getStart();
+            if(slice.getLength() >= 0) limit = slice.getLength();
+        }
+        final BGPEvaluator.Plan plan = evaluator.compile(bgp.getPattern());
+        final int[] slots = new int[resultVars.size()];
+        for(int i = 0; i < slots.length; i++) {
+            slots[i] = plan.slotOf(Var.alloc(resultVars.get(i)));
+        }
+        return new IDResult(
+                plan.evaluate(), evaluator.getDictionary(), model,
+                resultVars.toArray(new String[resultVars.size()]), slots, offset, limit
+        );
+    }
+
+    private ResultSet toResultSet(IDResult result) {
+        final QueryIterator iterator = QueryIterPlainWrapper.create(new BindingIterator(result));
+        return new CancellableResultSet(
+                new ResultSetStream(Arrays.asList(result.getBindings()), model, iterator), iterator
+        );
+    }
+
+    /**
+     * Decodes the rows of an {@link IDResult} to Jena bindings.
+     */
+    private static class BindingIterator implements Iterator<Binding> {
+
+        private final IDResult result;
+        private final Var[] vars;
+
+        private boolean fetched;
+        private boolean available;
+
+        BindingIterator(IDResult result) {
+            this.result = result;
+            this.vars = new Var[result.getBindings().length];
+            for(int i = 0; i < vars.length; i++) {
+                vars[i] = Var.alloc(result.getBindings()[i]);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(!fetched) {
+                fetched = true;
+                available = result.next();
+            }
+            return available;
+        }
+
+        @Override
+        public Binding next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            fetched = false;
+            final BindingMap binding = BindingFactory.create();
+            Node node;
+            for(int i = 0; i < vars.length; i++) {
+                node = result.getNode(i);
+                if(node != null) binding.add(vars[i], node);
+            }
+            return binding;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of non negative values with power of two buckets,
+ * percentiles are approximated by the upper bound of their bucket.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter total = new StripedCounter();
+
+    void record(long value) {
+        if(value < 0) value = 0;
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.add(1);
+        total.add(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getTotal() {
+        return total.sum();
+    }
+
+    double getMean() {
+        final long c = count.sum();
+        return c == 0 ? 0 : (double) total.sum() / c;
+    }
+
+    /**
+     * @param p percentile in <code>[0, 1]</code>.
+     * @return the upper bound of the bucket containing the percentile, <code>0</code> if empty.
+     */
+    long getPercentile(double p) {
+        if(p < 0 || p > 1) throw new IllegalArgumentException("Invalid percentile.");
+        final long[] snapshot = new long[buckets.length()];
+        long c = 0;
+        for(int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            c += snapshot[i];
+        }
+        if(c == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(p * c));
+        long seen = 0;
+        for(int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if(seen >= rank) return i == 0 ? 0 : i == 63 ? Long.MAX_VALUE : (1L << i) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    void reset() {
+        for(int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+    }
+
+}
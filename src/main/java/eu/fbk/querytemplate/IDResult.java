@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import org.rdfhdt.hdt.dictionary.Dictionary;
+import org.rdfhdt.hdt.enums.TripleComponentRole;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link Result} over the solutions of a {@link BGPEvaluator.Plan} that keeps the HDT dictionary IDs
+ * of every row and decodes a value only when it is requested.
+ * Decoded values are cached per column, so runs of equal values and predicates are decoded once.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class IDResult implements Result, Cancellable {
+
+    private final BGPEvaluator.Matches matches;
+    private final Dictionary dictionary;
+    private final Model model;
+    private final String[] bindings;
+    private final int[] slots;
+    private final long shared;
+
+    private final long[] lastIds;
+    private final String[] lastValues;
+    private final Map<Integer,String> predicates = new HashMap<>();
+
+    private long remaining;
+    private volatile boolean cancelled;
+
+    IDResult(
+            BGPEvaluator.Matches matches, Dictionary dictionary, Model model,
+            String[] bindings, int[] slots, long offset, long limit
+    ) {
+        this.matches = matches;
+        this.dictionary = dictionary;
+        this.model = model;
+        this.bindings = bindings;
+        this.slots = slots;
+        this.shared = dictionary.getNshared();
+        this.lastIds = new long[bindings.length];
+        this.lastValues = new String[bindings.length];
+        for(int i = 0; i < lastIds.length; i++) lastIds[i] = NO_ID;
+        this.remaining = limit;
+        for(long i = 0; i < offset && matches.next(); i++);
+    }
+
+    @Override
+    public String[] getBindings() {
+        return bindings;
+    }
+
+    @Override
+    public boolean next() {
+        if(remaining == 0 || cancelled || !matches.next()) return false;
+        if(remaining > 0) remaining--;
+        return true;
+    }
+
+    @Override
+    public String getValue(String binding) {
+        for(int i = 0; i < bindings.length; i++) {
+            if(bindings[i].equals(binding)) return getValue(i);
+        }
+        throw new IllegalArgumentException("Unknown binding: " + binding);
+    }
+
+    @Override
+    public String[] getValues() {
+        final String[] out = new String[bindings.length];
+        for(int i = 0; i < out.length; i++) {
+            out[i] = getValue(i);
+        }
+        return out;
+    }
+
+    @Override
+    public String getValue(int column) {
+        final long id = getValueId(column);
+        if(id == NO_ID) return null;
+        if(lastIds[column] != id) {
+            lastValues[column] = decode(column);
+            lastIds[column] = id;
+        }
+        return lastValues[column];
+    }
+
+    /**
+     * The identifier combines the dictionary ID with its section, subjects and objects
+     * in the shared section are mapped to the same identifier.
+     */
+    @Override
+    public long getValueId(int column) {
+        final int slot = slots[column];
+        if(slot < 0) return NO_ID;
+        final int id = matches.getId(slot);
+        final TripleComponentRole role = matches.getRole(slot);
+        if(role == TripleComponentRole.PREDICATE) return (2L << 32) | id;
+        if(role == TripleComponentRole.OBJECT && id > shared) return (1L << 32) | id;
+        return id;
+    }
+
+    /**
+     * Stops the evaluation at the next row.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the node bound to <code>column</code> in the current row, <code>null</code> if unbound.
+     */
+    Node getNode(int column) {
+        final int slot = slots[column];
+        if(slot < 0) return null;
+        return HDTNodes.toNode(dictionary.idToString(matches.getId(slot), matches.getRole(slot)));
+    }
+
+    /**
+     * Decodes the value of <code>column</code> with the same representation used by {@link DefaultResult}.
+     */
+    private String decode(int column) {
+        final int slot = slots[column];
+        final int id = matches.getId(slot);
+        final TripleComponentRole role = matches.getRole(slot);
+        if(role == TripleComponentRole.PREDICATE) {
+            String predicate = predicates.get(id);
+            if(predicate == null) {
+                predicate = dictionary.idToString(id, role).toString();
+                predicates.put(id, predicate);
+            }
+            return predicate;
+        }
+        final String entry = dictionary.idToString(id, role).toString();
+        if(entry.startsWith("\"") || entry.startsWith("_:")) {
+            return model.asRDFNode(HDTNodes.toNode(entry)).toString();
+        }
+        return entry;
+    }
+
+}
@@ -17,27 +17,37 @@
 
 package eu.fbk.querytemplate;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
 import org.codehaus.jackson.JsonGenerator;
 
 import java.io.IOException;
-import java.util.Collection;
 import java.util.Stack;
 
 /**
  * @author Michele Mostarda (mostarda@fbk.eu)
  */
-public class JSONResultCollector implements ResultCollector {
+public class JSONResultCollector implements RowCollector {
 
     private final JsonGenerator generator;
-    private final SetMultimap<String,String> multimap = HashMultimap.create();
+    private final FieldMultimap multimap;
     private final String fieldBinding;
     private final String valueBinding;
     private final Stack<Boolean> pivotOpen = new Stack<>();
 
+    private String[] lastBindings;
+    private int fieldIndex;
+    private int valueIndex;
+
     public JSONResultCollector(JsonGenerator generator, String fieldValue) {
+        this(generator, fieldValue, FieldMultimap.DEFAULT_MAX_VALUES);
+    }
+
+    /**
+     * @param maxFieldValues max number of field values of a pivot buffered in memory,
+     *                       the exceeding ones are spilled to disk.
+     */
+    public JSONResultCollector(JsonGenerator generator, String fieldValue, int maxFieldValues) {
         this.generator = generator;
+        this.multimap = new FieldMultimap(maxFieldValues);
         final String[] parts = fieldValue.split(":");
         if(parts.length != 2)
             throw new IllegalArgumentException("Invalid pattern, expected: <field-binding>:<value-binding>");
@@ -50,6 +60,11 @@ public class JSONResultCollector implements ResultCollector {
         // Empty.
     }
 
+    @Override
+    public void values(Row row) {
+        // Empty.
+    }
+
     @Override
     public void begin() {
         try {
@@ -82,7 +97,31 @@ public class JSONResultCollector implements ResultCollector {
             }
         }
         if(k != null && v != null)
-            multimap.put(k,v);
+            multimap.put(k, v);
+    }
+
+    /**
+     * Reads only the field and value columns, resolved once per distinct bindings array.
+     */
+    @Override
+    public void collect(Row row) {
+        final String[] bindings = row.getBindings();
+        if(bindings != lastBindings) {
+            fieldIndex = valueIndex = -1;
+            for(int i = 0; i < bindings.length; i++) {
+                if(fieldBinding.equals(bindings[i])) {
+                    fieldIndex = i;
+                } else if(valueBinding.contains(bindings[i])) {
+                    valueIndex = i;
+                }
+            }
+            lastBindings = bindings;
+        }
+        if(fieldIndex < 0 || valueIndex < 0) return;
+        final String k = row.getValue(fieldIndex);
+        final String v = row.getValue(valueIndex);
+        if(k != null && v != null)
+            multimap.put(k, v);
     }
 
     @Override
@@ -135,6 +174,16 @@ public class JSONResultCollector implements ResultCollector {
         pivotOpen.pop();
     }
 
+    @Override
+    public void truncated(String reason) {
+        try {
+            flushMap();
+            generator.writeStringField("_truncated", reason);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public void end() {
         try {
@@ -148,18 +197,22 @@ public class JSONResultCollector implements ResultCollector {
 
     private void flushMap() throws IOException {
         if(multimap.isEmpty()) return;
-        for (String k : multimap.keySet()) {
-            generator.writeFieldName(k);
-            final Collection<String> valueSet = multimap.get(k);
-            if(valueSet.size() == 1) {
-                generator.writeString(valueSet.iterator().next());
-            } else {
-                generator.writeStartArray();
-                for (String v : valueSet) {
-                    generator.writeString(v);
-                }
-                generator.writeEndArray();
+        final FieldMultimap.Cursor cursor = multimap.cursor();
+        String first;
+        while(cursor.nextKey()) {
+            generator.writeFieldName(cursor.getKey());
+            cursor.nextValue();
+            first = cursor.getValue();
+            if(!cursor.nextValue()) {
+                generator.writeString(first);
+                continue;
             }
+            generator.writeStartArray();
+            generator.writeString(first);
+            do {
+                generator.writeString(cursor.getValue());
+            } while(cursor.nextValue());
+            generator.writeEndArray();
         }
         multimap.clear();
     }
@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpConditional;
+import com.hp.hpl.jena.sparql.algebra.op.OpDistinct;
+import com.hp.hpl.jena.sparql.algebra.op.OpProject;
+import com.hp.hpl.jena.sparql.algebra.op.OpTable;
+import com.hp.hpl.jena.sparql.algebra.op.OpUnion;
+import com.hp.hpl.jena.sparql.algebra.table.TableN;
+import com.hp.hpl.jena.sparql.core.Substitute;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.graph.NodeTransform;
+import com.hp.hpl.jena.sparql.graph.NodeTransformLib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluation of a level together with its child level. The child template, with its own solution modifiers,
+ * is evaluated once for every distinct pivot of the parent template, in order of first occurrence, and its rows
+ * are merged with the parent rows streamed in template order: every parent row is followed by a marker and,
+ * if its pivot occurs for the first time, by the child rows of the pivot. The parent template is evaluated
+ * twice, once for its rows and once for its distinct pivots, so it must produce the same rows in the same order.
+ * The child variables are renamed to avoid clashes with the parent ones.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class JoinedQuery {
+
+    /**
+     * Marker of a parent row followed by the child rows of its pivot.
+     */
+    static final String EXPANDED = "urn:parent";
+
+    /**
+     * Marker of a parent row whose pivot has already been followed by its child rows.
+     */
+    static final String REPEATED = "urn:parent:repeated";
+
+    private static final String CHILD_PREFIX = "child_";
+
+    private final ParameterizedQuery parent;
+    private final String[] parentBindings;
+    private final String[] childBindings;
+    private final int pivotColumn;
+    private final List<String> resultVars;
+    private final List<String> childrenVars;
+    private final Op childrenOp;
+
+    /**
+     * @throws IllegalArgumentException if the child template cannot be bound to the parent pivot only.
+     */
+    JoinedQuery(ParameterizedQuery parent, final String pivot, ParameterizedQuery child) {
+        if(!child.getParameters().equals(Collections.singleton(pivot)))
+            throw new IllegalArgumentException(String.format("Cannot join [%s] on '%s'", child.getTemplate(), pivot));
+        final List<String> parentVars = parent.getResultVars();
+        if(!parentVars.contains(pivot))
+            throw new IllegalArgumentException(String.format("Pivot '%s' is not projected by the parent", pivot));
+        this.parent = parent;
+        this.parentBindings = parentVars.toArray(new String[parentVars.size()]);
+        this.childBindings = child.getResultVars().toArray(new String[child.getResultVars().size()]);
+        this.pivotColumn = parentVars.indexOf(pivot);
+
+        final String prefix = prefix(parentVars);
+        // Child variables are prefix + name, so the bare prefix cannot clash.
+        final Var marker = Var.alloc(prefix);
+        final List<String> vars = new ArrayList<>(parentVars);
+        vars.add(marker.getVarName());
+        final List<String> childrenVars = new ArrayList<>();
+        childrenVars.add(pivot);
+        childrenVars.add(marker.getVarName());
+        for(String childVar : childBindings) {
+            vars.add(prefix + childVar);
+            childrenVars.add(prefix + childVar);
+        }
+        final Op renamed = NodeTransformLib.transform(
+                new NodeTransform() {
+                    @Override
+                    public Node convert(Node node) {
+                        if(!Var.isVar(node)) return node;
+                        final String name = Var.alloc(node).getVarName();
+                        return name.equals(pivot) ? node : Var.alloc(prefix + name);
+                    }
+                },
+                child.getOp()
+        );
+        final TableN markerRow = new TableN(Collections.singletonList(marker));
+        markerRow.addBinding(BindingFactory.binding(marker, NodeFactory.createURI(EXPANDED)));
+        this.resultVars = Collections.unmodifiableList(vars);
+        this.childrenVars = Collections.unmodifiableList(childrenVars);
+        // The conditional evaluates the child once per distinct pivot, each group starting with a marker row.
+        this.childrenOp = new OpConditional(
+                OpDistinct.create(new OpProject(parent.getOp(), Collections.singletonList(Var.alloc(pivot)))),
+                OpUnion.create(OpTable.create(markerRow), renamed)
+        );
+    }
+
+    /**
+     * @return the column of the marker, bound only in the parent rows, see {@link #EXPANDED}
+     *         and {@link #REPEATED}.
+     */
+    int getMarkerColumn() {
+        return parentBindings.length;
+    }
+
+    /**
+     * @return the bindings of the parent level, the first columns of every row.
+     */
+    String[] getParentBindings() {
+        return parentBindings;
+    }
+
+    /**
+     * @return the bindings of the child level, following the parent columns and the marker in every row.
+     */
+    String[] getChildBindings() {
+        return childBindings;
+    }
+
+    int getPivotColumn() {
+        return pivotColumn;
+    }
+
+    /**
+     * @return the compiled query of the child rows grouped by distinct pivot,
+     *         with the parent parameters still to be bound.
+     */
+    Op getChildrenOp() {
+        return childrenOp;
+    }
+
+    Result perform(QueryExecutor executor, Map<String,String> args) {
+        final Binding binding = parent.bind(args);
+        return new JoinedResult(
+                executor.select(Substitute.substitute(parent.getOp(), binding), parent.getResultVars()),
+                executor.select(Substitute.substitute(childrenOp, binding), childrenVars)
+        );
+    }
+
+    @Override
+    public String toString() {
+        return parent.getOp().toString() + childrenOp.toString();
+    }
+
+    private static String prefix(List<String> parentVars) {
+        String prefix = CHILD_PREFIX;
+        for(boolean clash = true; clash;) {
+            clash = false;
+            for(String parentVar : parentVars) {
+                if(parentVar.startsWith(prefix)) {
+                    prefix = "_" + prefix;
+                    clash = true;
+                    break;
+                }
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Merges the parent rows with the groups of child rows, both following the first occurrences of the pivots.
+     */
+    private class JoinedResult implements Result, Cancellable {
+
+        private final Result parents;
+        private final Result children;
+        private final String[] values;
+
+        private boolean parentRow;
+        private boolean inGroup;
+        private boolean groupRead;
+        private String groupPivot;
+
+        /**
+         * @param children rows of {@link #childrenOp}, a marker row with the pivot followed by the child rows.
+         */
+        JoinedResult(Result parents, Result children) {
+            this.parents = parents;
+            this.children = children;
+            this.values = new String[resultVars.size()];
+        }
+
+        @Override
+        public String[] getBindings() {
+            return resultVars.toArray(new String[values.length]);
+        }
+
+        @Override
+        public boolean next() {
+            if(inGroup) {
+                if(children.next()) {
+                    if(children.getValue(1) == null) {
+                        Arrays.fill(values, null);
+                        values[pivotColumn] = children.getValue(0);
+                        for(int i = 0; i < childBindings.length; i++) {
+                            values[parentBindings.length + 1 + i] = children.getValue(2 + i);
+                        }
+                        parentRow = false;
+                        return true;
+                    }
+                    groupPivot = children.getValue(0);
+                } else {
+                    groupPivot = null;
+                }
+                inGroup = false;
+                groupRead = true;
+            }
+            if(!parents.next()) return false;
+            if(!groupRead) {
+                groupPivot = children.next() ? children.getValue(0) : null;
+                groupRead = true;
+            }
+            Arrays.fill(values, null);
+            for(int i = 0; i < parentBindings.length; i++) {
+                values[i] = parents.getValue(i);
+            }
+            final String pivot = values[pivotColumn];
+            if(pivot != null && pivot.equals(groupPivot)) {
+                values[parentBindings.length] = EXPANDED;
+                inGroup = true;
+                groupRead = false;
+            } else {
+                values[parentBindings.length] = REPEATED;
+            }
+            parentRow = true;
+            return true;
+        }
+
+        @Override
+        public String getValue(String binding) {
+            final int column = resultVars.indexOf(binding);
+            if(column < 0) throw new IllegalArgumentException("Unknown binding: " + binding);
+            return values[column];
+        }
+
+        @Override
+        public String[] getValues() {
+            return values.clone();
+        }
+
+        @Override
+        public String getValue(int column) {
+            return values[column];
+        }
+
+        /**
+         * Only the parent columns of the parent rows carry the identifiers of the parent result.
+         */
+        @Override
+        public long getValueId(int column) {
+            return parentRow && column < parentBindings.length ? parents.getValueId(column) : NO_ID;
+        }
+
+        @Override
+        public void cancel() {
+            if(parents instanceof Cancellable) ((Cancellable) parents).cancel();
+            if(children instanceof Cancellable) ((Cancellable) children).cancel();
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Binding positions used by {@link DefaultNestedQuery} to process the rows of a level,
+ * resolved once for the bindings of the level results.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+final class LevelPlan {
+
+    final String[] bindings;
+
+    /**
+     * Column of the pivot, <code>-1</code> if missing.
+     */
+    final int pivotColumn;
+
+    /**
+     * Columns of the property pivot property and remap key, <code>-1</code> if missing.
+     */
+    final int propertyColumn;
+    final int remapKeyColumn;
+
+    /**
+     * Arguments of the child level bound from a row, <code>null</code> for the last level.
+     */
+    final Arguments childArguments;
+
+    /**
+     * Arguments of the child level bound from a row extended with the property pivot remap,
+     * <code>null</code> for the last level or without property pivot.
+     */
+    final Arguments remapArguments;
+
+    /**
+     * @param childTemplate template of the child level, <code>null</code> for the last level.
+     */
+    LevelPlan(String[] bindings, String pivot, PropertyPivot propertyPivot, String childTemplate) {
+        this.bindings = bindings;
+        this.pivotColumn = indexOf(bindings, pivot);
+        this.propertyColumn = propertyPivot == null ? -1 : indexOf(bindings, propertyPivot.p);
+        this.remapKeyColumn = propertyPivot == null ? -1 : indexOf(bindings, propertyPivot.remapKey);
+        this.childArguments = childTemplate == null ? null : new Arguments(bindings, childTemplate);
+        this.remapArguments = childTemplate == null || propertyPivot == null
+                ? null : new Arguments(extend(bindings, propertyPivot.remap), childTemplate);
+    }
+
+    /**
+     * @return <code>true</code> if the plan applies to rows with <code>bindings</code>.
+     */
+    boolean matches(String[] bindings) {
+        if(this.bindings == bindings) return true;
+        if(this.bindings.length != bindings.length) return false;
+        for(int i = 0; i < bindings.length; i++) {
+            if(!this.bindings[i].equals(bindings[i])) return false;
+        }
+        return true;
+    }
+
+    int getPivotColumn() {
+        return check(pivotColumn, "pivot");
+    }
+
+    int getPropertyColumn() {
+        return check(propertyColumn, "property pivot");
+    }
+
+    int getRemapKeyColumn() {
+        return check(remapKeyColumn, "remap key");
+    }
+
+    private static int check(int column, String binding) {
+        if(column < 0) throw new IllegalArgumentException("Missing " + binding + " binding.");
+        return column;
+    }
+
+    private static int indexOf(String[] bindings, String binding) {
+        for(int i = 0; i < bindings.length; i++) {
+            if(bindings[i].equals(binding)) return i;
+        }
+        return -1;
+    }
+
+    private static String[] extend(String[] bindings, String binding) {
+        final String[] out = new String[bindings.length + 1];
+        System.arraycopy(bindings, 0, out, 0, bindings.length);
+        out[bindings.length] = binding;
+        return out;
+    }
+
+    /**
+     * Columns of a row bound to the arguments of a template, the bindings not referenced
+     * by the template are skipped since their values are never read.
+     */
+    static final class Arguments {
+
+        private static final Pattern PARAMETER = Pattern.compile("\\$(\\w+)");
+
+        private final String[] names;
+        private final int[] columns;
+
+        Arguments(String[] bindings, String template) {
+            final Set<String> parameters = new HashSet<>();
+            final Matcher matcher = PARAMETER.matcher(template);
+            while(matcher.find()) {
+                parameters.add(matcher.group(1));
+            }
+            final List<Integer> referenced = new ArrayList<>();
+            for(int i = 0; i < bindings.length; i++) {
+                if(parameters.contains(bindings[i])) referenced.add(i);
+            }
+            names = new String[referenced.size()];
+            columns = new int[referenced.size()];
+            for(int i = 0; i < columns.length; i++) {
+                columns[i] = referenced.get(i);
+                names[i] = bindings[columns[i]];
+            }
+        }
+
+        Map<String,String> bind(Row row) {
+            final Map<String,String> out = new HashMap<>(columns.length * 2);
+            for(int i = 0; i < columns.length; i++) {
+                out.put(names[i], row.getValue(columns[i]));
+            }
+            return out;
+        }
+    }
+
+}
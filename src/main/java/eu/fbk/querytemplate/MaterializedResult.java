@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.util.List;
+
+/**
+ * {@link Result} backed by rows already held in memory, used to replay
+ * child rows fetched in batch for a single parent pivot.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class MaterializedResult implements Result {
+
+    private final String[] bindings;
+    private final List<String[]> rows;
+    private final List<long[]> ids;
+
+    private int cursor = -1;
+
+    MaterializedResult(String[] bindings, List<String[]> rows) {
+        this(bindings, rows, null);
+    }
+
+    /**
+     * @param ids value identifiers of every row, <code>null</code> if the rows do not carry identifiers.
+     */
+    MaterializedResult(String[] bindings, List<String[]> rows, List<long[]> ids) {
+        this.bindings = bindings;
+        this.rows = rows;
+        this.ids = ids;
+    }
+
+    /**
+     * Moves the cursor back before the first row, so that the result can be consumed again.
+     *
+     * @return this result.
+     */
+    public MaterializedResult rewind() {
+        cursor = -1;
+        return this;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    public String[] getBindings() {
+        return bindings;
+    }
+
+    @Override
+    public boolean next() {
+        if(cursor + 1 < rows.size()) {
+            cursor++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String getValue(String binding) {
+        for(int i = 0; i < bindings.length; i++) {
+            if(bindings[i].equals(binding)) return rows.get(cursor)[i];
+        }
+        throw new IllegalArgumentException("Unknown binding: " + binding);
+    }
+
+    @Override
+    public String[] getValues() {
+        return rows.get(cursor);
+    }
+
+    @Override
+    public String getValue(int column) {
+        return rows.get(cursor)[column];
+    }
+
+    @Override
+    public long getValueId(int column) {
+        return ids == null ? NO_ID : ids.get(cursor)[column];
+    }
+
+}
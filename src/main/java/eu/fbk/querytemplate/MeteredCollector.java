@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+/**
+ * {@link ResultCollector} accounting the time spent by the target collector on the events of every level,
+ * the measures are notified to the {@link MetricsSink} when the level ends.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class MeteredCollector implements RowCollector {
+
+    private final ResultCollector target;
+    private final MetricsSink sink;
+    private final long[] nanos;
+    private final int[] open;
+
+    private int depth;
+
+    MeteredCollector(ResultCollector target, MetricsSink sink, int levels) {
+        this.target = target;
+        this.sink = sink;
+        this.nanos = new long[levels];
+        this.open = new int[levels + 1];
+    }
+
+    @Override
+    public void values(String[] values) {
+        final long start = System.nanoTime();
+        target.values(values);
+        account(start);
+    }
+
+    @Override
+    public void values(Row row) {
+        final long start = System.nanoTime();
+        Rows.values(target, row);
+        account(start);
+    }
+
+    @Override
+    public void begin() {
+        target.begin();
+    }
+
+    @Override
+    public void startLevel(int l, String queryName) {
+        open[++depth] = l;
+        final long start = System.nanoTime();
+        target.startLevel(l, queryName);
+        account(start);
+    }
+
+    @Override
+    public void collect(String[] bindings, String[] values) {
+        final long start = System.nanoTime();
+        target.collect(bindings, values);
+        account(start);
+    }
+
+    @Override
+    public void collect(Row row) {
+        final long start = System.nanoTime();
+        Rows.collect(target, row);
+        account(start);
+    }
+
+    @Override
+    public void pivot(String name) {
+        final long start = System.nanoTime();
+        target.pivot(name);
+        account(start);
+    }
+
+    @Override
+    public void startPropertyPivot(String property) {
+        final long start = System.nanoTime();
+        target.startPropertyPivot(property);
+        account(start);
+    }
+
+    @Override
+    public void endPropertyPivot(String property) {
+        final long start = System.nanoTime();
+        target.endPropertyPivot(property);
+        account(start);
+    }
+
+    @Override
+    public void endLevel(int l) {
+        final long start = System.nanoTime();
+        target.endLevel(l);
+        account(start);
+        depth--;
+        if(l < nanos.length) {
+            sink.collector(l, nanos[l]);
+            nanos[l] = 0;
+        }
+    }
+
+    @Override
+    public void truncated(String reason) {
+        target.truncated(reason);
+    }
+
+    @Override
+    public void end() {
+        target.end();
+    }
+
+    private void account(long start) {
+        final int level = open[depth];
+        if(level < nanos.length) nanos[level] += System.nanoTime() - start;
+    }
+
+}
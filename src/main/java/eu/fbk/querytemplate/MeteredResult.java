@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+/**
+ * {@link Result} accounting the time spent iterating the rows of a subquery,
+ * the measure is notified to the {@link MetricsSink} when the rows are exhausted.
+ * Cancellation is forwarded to the metered result.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class MeteredResult implements Result, Cancellable {
+
+    private final Result result;
+    private final MetricsSink sink;
+    private final int level;
+
+    private long nanos;
+    private long rows;
+    private boolean ended;
+
+    /**
+     * @param nanos time already spent preparing the query.
+     */
+    MeteredResult(Result result, MetricsSink sink, int level, long nanos) {
+        this.result = result;
+        this.sink = sink;
+        this.level = level;
+        this.nanos = nanos;
+    }
+
+    @Override
+    public String[] getBindings() {
+        return result.getBindings();
+    }
+
+    @Override
+    public boolean next() {
+        if(ended) return false;
+        final long start = System.nanoTime();
+        final boolean next = result.next();
+        nanos += System.nanoTime() - start;
+        if(next) {
+            rows++;
+        } else {
+            ended = true;
+            sink.subquery(level, nanos, rows);
+        }
+        return next;
+    }
+
+    @Override
+    public String getValue(String binding) {
+        return result.getValue(binding);
+    }
+
+    @Override
+    public String[] getValues() {
+        return result.getValues();
+    }
+
+    @Override
+    public String getValue(int column) {
+        return result.getValue(column);
+    }
+
+    @Override
+    public long getValueId(int column) {
+        return result.getValueId(column);
+    }
+
+    @Override
+    public void cancel() {
+        if(result instanceof Cancellable) ((Cancellable) result).cancel();
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+/**
+ * Receives the execution measures of a {@link NestedQuery}, see {@link NestedQueryMetrics} for the default
+ * aggregating implementation. Can be invoked concurrently by the fan-out threads.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public interface MetricsSink {
+
+    /**
+     * Notifies a completed subquery of <code>level</code>.
+     *
+     * @param level evaluated level.
+     * @param nanos time spent evaluating the query, including the iteration of its rows
+     *              and excluding the processing of the rows.
+     * @param rows number of produced rows.
+     */
+    void subquery(int level, long nanos, long rows);
+
+    /**
+     * Notifies the time spent by the {@link ResultCollector} handling the events of <code>level</code>.
+     */
+    void collector(int level, long nanos);
+
+}
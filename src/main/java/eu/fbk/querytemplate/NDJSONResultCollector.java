@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collector writing newline delimited JSON, one line per pivot of the first level.
+ * Every line is a self-contained document with the same structure of the {@link JSONResultCollector}
+ * output restricted to a single pivot, such as <code>{"articles":{"http://...":{...}}}</code>,
+ * and is flushed as soon as the subtree of its pivot is complete.
+ * A truncated execution ends with the line <code>{"_truncated":"reason"}</code>.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NDJSONResultCollector extends PivotUnitCollector {
+
+    private final OutputStream os;
+    private final JsonFactory factory = new JsonFactory();
+
+    /**
+     * @param os output stream, not closed by the collector.
+     * @param fieldValue field and value bindings, see {@link JSONResultCollector}.
+     */
+    public NDJSONResultCollector(OutputStream os, String fieldValue) {
+        super(fieldValue);
+        if(os == null) throw new IllegalArgumentException("Invalid output stream.");
+        this.os = os;
+    }
+
+    @Override
+    JsonGenerator openUnit(String pivot) throws IOException {
+        return factory.createJsonGenerator(os, JsonEncoding.UTF8);
+    }
+
+    @Override
+    void closeUnit(String pivot) throws IOException {
+        os.write('\n');
+        os.flush();
+    }
+
+    @Override
+    public void truncated(String reason) {
+        try {
+            final JsonGenerator generator = factory.createJsonGenerator(os, JsonEncoding.UTF8);
+            generator.writeStartObject();
+            generator.writeStringField("_truncated", reason);
+            generator.writeEndObject();
+            generator.flush();
+            os.write('\n');
+            os.flush();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+}
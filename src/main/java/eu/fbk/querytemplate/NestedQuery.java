@@ -40,4 +40,12 @@ public interface NestedQuery {
 
     void executeNestedQuery(QueryExecutor executor, ResultCollector collector, Map<String,String> args);
 
+    /**
+     * Executes the query within <code>budget</code>. When the budget is exhausted the running queries are cancelled,
+     * the open levels are closed and {@link ResultCollector#truncated(String)} is notified before the end.
+     */
+    void executeNestedQuery(
+            QueryExecutor executor, ResultCollector collector, Map<String,String> args, ExecutionBudget budget
+    );
+
 }
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Executes a {@link NestedQuery} for many argument maps, the roots, over a shared executor and thread pool.
+ * Subqueries repeated across roots are evaluated once and served from a result cache shared by the batch,
+ * as well as the subtree caches of the nested query.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryBatch implements Closeable {
+
+    /**
+     * Default max number of values retained by the subquery cache.
+     */
+    public static final long DEFAULT_CACHE_WEIGHT = 1000000;
+
+    /**
+     * Default max number of rows of a cached subquery result.
+     */
+    public static final int DEFAULT_CACHE_ROWS = 1000;
+
+    /**
+     * Max number of pending roots per thread.
+     */
+    private static final int ROOT_WINDOW = 4;
+
+    private final NestedQuery nestedQuery;
+    private final QueryExecutor delegate;
+
+    private CachingQueryExecutor executor;
+    private int parallelism = 1;
+    private ExecutorService pool;
+
+    public NestedQueryBatch(NestedQuery nestedQuery, QueryExecutor executor) {
+        if(nestedQuery == null) throw new IllegalArgumentException("Invalid nested query.");
+        if(executor == null) throw new IllegalArgumentException("Invalid executor.");
+        this.nestedQuery = nestedQuery;
+        this.delegate = executor;
+        setCache(DEFAULT_CACHE_WEIGHT, DEFAULT_CACHE_ROWS);
+    }
+
+    /**
+     * Replaces the cache deduplicating the subqueries of the roots.
+     *
+     * @param maxWeight max number of values, rows by columns, retained by the cache.
+     * @param maxRows max number of rows of a cacheable result.
+     */
+    public void setCache(long maxWeight, int maxRows) {
+        this.executor = new CachingQueryExecutor(delegate, "batch", maxWeight, maxRows);
+    }
+
+    /**
+     * @return the counters of the subquery cache, every hit is a deduplicated subquery.
+     */
+    public CacheStats getCacheStats() {
+        return executor.getStats();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of roots executed concurrently, the {@link QueryExecutor} must support concurrent queries.
+     * The threads are released by {@link #close()}.
+     *
+     * @param parallelism number of threads, <code>1</code> executes the roots sequentially.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism < 1) throw new IllegalArgumentException("Invalid parallelism.");
+        if(pool != null) pool.shutdown();
+        this.parallelism = parallelism;
+        this.pool = parallelism == 1 ? null : Executors.newFixedThreadPool(
+                parallelism,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("nested-query-batch-%d").build()
+        );
+    }
+
+    /**
+     * Releases the threads of the batch, which keeps working sequentially.
+     */
+    @Override
+    public void close() {
+        setParallelism(1);
+    }
+
+    /**
+     * Executes every root on its own collector.
+     *
+     * @param roots arguments of the roots.
+     * @param collectors collectors of the roots, one per root.
+     */
+    public void execute(List<Map<String,String>> roots, List<? extends ResultCollector> collectors) {
+        if(roots.size() != collectors.size())
+            throw new IllegalArgumentException("Expected one collector per root.");
+        if(pool == null) {
+            for(int i = 0; i < roots.size(); i++) {
+                nestedQuery.executeNestedQuery(executor, collectors.get(i), roots.get(i));
+            }
+            return;
+        }
+        final List<Future<?>> pending = new ArrayList<>();
+        for(int i = 0; i < roots.size(); i++) {
+            final Map<String,String> args = roots.get(i);
+            final ResultCollector collector = collectors.get(i);
+            pending.add(
+                    pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            nestedQuery.executeNestedQuery(executor, collector, args);
+                            return null;
+                        }
+                    })
+            );
+        }
+        try {
+            for(Future<?> future : pending) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            cancel(pending);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for roots.", ie);
+        } catch (ExecutionException ee) {
+            cancel(pending);
+            if(ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            throw new IllegalStateException("Error while executing root.", ee.getCause());
+        }
+    }
+
+    /**
+     * Executes all the roots on a single collector. The events of the roots are delivered in root order
+     * between a single {@link ResultCollector#begin()} and {@link ResultCollector#end()}, the events of
+     * every root are wrapped in a property pivot named after the root position, so that with a
+     * {@link JSONResultCollector} every root is a distinct object: <code>{"0":{...},"1":{...}}</code>.
+     *
+     * @param roots arguments of the roots.
+     * @param collector collector receiving the events of all the roots.
+     */
+    public void execute(List<Map<String,String>> roots, ResultCollector collector) {
+        collector.begin();
+        if(pool == null) {
+            for(int i = 0; i < roots.size(); i++) {
+                nestedQuery.executeNestedQuery(executor, new RootCollector(collector, Integer.toString(i)), roots.get(i));
+            }
+        } else {
+            final OrderedFanOut fanOut = new OrderedFanOut(pool, collector, parallelism * ROOT_WINDOW);
+            for(int i = 0; i < roots.size(); i++) {
+                final Map<String,String> args = roots.get(i);
+                final String key = Integer.toString(i);
+                fanOut.fork(new OrderedFanOut.Subtree() {
+                    @Override
+                    public void process(ResultCollector collector) {
+                        nestedQuery.executeNestedQuery(executor, new RootCollector(collector, key), args);
+                    }
+                });
+            }
+            fanOut.finish();
+        }
+        collector.end();
+    }
+
+    private void cancel(List<Future<?>> pending) {
+        for(Future<?> future : pending) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Forwards the events of a root to the combined collector, replacing its begin and end
+     * with a property pivot named after the root.
+     */
+    private static class RootCollector implements RowCollector {
+
+        private final ResultCollector target;
+        private final String key;
+
+        RootCollector(ResultCollector target, String key) {
+            this.target = target;
+            this.key = key;
+        }
+
+        @Override
+        public void values(String[] values) {
+            target.values(values);
+        }
+
+        @Override
+        public void values(Row row) {
+            Rows.values(target, row);
+        }
+
+        @Override
+        public void begin() {
+            target.startPropertyPivot(key);
+        }
+
+        @Override
+        public void startLevel(int l, String queryName) {
+            target.startLevel(l, queryName);
+        }
+
+        @Override
+        public void collect(String[] bindings, String[] values) {
+            target.collect(bindings, values);
+        }
+
+        @Override
+        public void collect(Row row) {
+            Rows.collect(target, row);
+        }
+
+        @Override
+        public void pivot(String name) {
+            target.pivot(name);
+        }
+
+        @Override
+        public void startPropertyPivot(String property) {
+            target.startPropertyPivot(property);
+        }
+
+        @Override
+        public void endPropertyPivot(String property) {
+            target.endPropertyPivot(property);
+        }
+
+        @Override
+        public void endLevel(int l) {
+            target.endLevel(l);
+        }
+
+        @Override
+        public void truncated(String reason) {
+            target.truncated(reason);
+        }
+
+        @Override
+        public void end() {
+            target.endPropertyPivot(key);
+        }
+    }
+
+}
@@ -23,6 +23,9 @@ import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Builds a {@link eu.fbk.querytemplate.NestedQuery} from a JSON config file.
@@ -35,16 +38,67 @@ public class NestedQueryBuilder {
         final JsonNode levels = root.get("levels");
         if(!levels.isArray()) throw new IllegalArgumentException("Levels field must be an array");
         final DefaultNestedQuery defaultNestedQuery = new DefaultNestedQuery();
+        int level = 0;
         for(JsonNode queryNode : levels) {
             defaultNestedQuery.addQuery(getName(queryNode), processQuery(queryNode), getPivot(queryNode));
+            if(queryNode.has("group") && queryNode.get("group").asBoolean()) {
+                defaultNestedQuery.setGrouped(level, true);
+            }
+            if(queryNode.has("cache_size")) {
+                defaultNestedQuery.setSubtreeCacheSize(level, queryNode.get("cache_size").asLong());
+            }
+            level++;
+        }
+        level = 0;
+        for(JsonNode queryNode : levels) {
+            if(queryNode.has("join") && queryNode.get("join").asBoolean()) {
+                defaultNestedQuery.setJoined(level, true);
+            }
+            level++;
+        }
+        if(root.has("batch_size")) {
+            defaultNestedQuery.setBatchSize(root.get("batch_size").asInt());
+        }
+        if(root.has("grouping_memory")) {
+            defaultNestedQuery.setGroupingMemory(root.get("grouping_memory").asLong());
+        }
+        if(root.has("parallelism")) {
+            defaultNestedQuery.setParallelism(root.get("parallelism").asInt());
         }
         return defaultNestedQuery;
     }
 
     NestedQuery build(InputStream is) throws IOException {
+        return build(readTree(is));
+    }
+
+    /**
+     * Builds the query and profiles an execution as described by the optional <code>profile</code> field,
+     * supporting the <code>sampling</code> fraction of pivots and the <code>args</code> of the root level.
+     */
+    NestedQueryProfile profile(JsonNode root, QueryExecutor executor) {
+        final JsonNode profile = root.has("profile") ? root.get("profile") : null;
+        final double sampling = profile != null && profile.has("sampling") ? profile.get("sampling").asDouble() : 1;
+        final Map<String,String> args = new HashMap<>();
+        if(profile != null && profile.has("args")) {
+            final Iterator<Map.Entry<String,JsonNode>> fields = profile.get("args").getFields();
+            Map.Entry<String,JsonNode> field;
+            while(fields.hasNext()) {
+                field = fields.next();
+                args.put(field.getKey(), field.getValue().asText());
+            }
+        }
+        return new NestedQueryProfiler(sampling).profile((DefaultNestedQuery) build(root), executor, args);
+    }
+
+    NestedQueryProfile profile(InputStream is, QueryExecutor executor) throws IOException {
+        return profile(readTree(is), executor);
+    }
+
+    private JsonNode readTree(InputStream is) throws IOException {
         ObjectMapper mapper = new ObjectMapper();
         final JsonParser parser = mapper.getJsonFactory().createJsonParser(is);
-        return build(parser.readValueAsTree());
+        return parser.readValueAsTree();
     }
 
     private String getName(JsonNode queryNode) {
@@ -57,7 +111,7 @@ public class NestedQueryBuilder {
 
     private Query processQuery(JsonNode queryNode) {
         final String template = queryNode.get("query").asText();
-        return new DefaultQuery(template);
+        return ParameterizedQuery.isCompilable(template) ? new ParameterizedQuery(template) : new DefaultQuery(template);
     }
 
     private String[] toStringArray(JsonNode list) {
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * {@link MetricsSink} aggregating per level subquery counts, latency and fan-out distributions,
+ * produced rows and the time split between query evaluation and result collection.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryMetrics implements MetricsSink, NestedQueryMetricsMBean {
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final Histogram[] latencies;
+    private final Histogram[] fanOuts;
+    private final StripedCounter[] collectorNanos;
+
+    /**
+     * @param levels number of levels of the measured query.
+     */
+    public NestedQueryMetrics(int levels) {
+        if(levels < 1) throw new IllegalArgumentException("Invalid number of levels.");
+        latencies = new Histogram[levels];
+        fanOuts = new Histogram[levels];
+        collectorNanos = new StripedCounter[levels];
+        for(int i = 0; i < levels; i++) {
+            latencies[i] = new Histogram();
+            fanOuts[i] = new Histogram();
+            collectorNanos[i] = new StripedCounter();
+        }
+    }
+
+    public int getLevels() {
+        return latencies.length;
+    }
+
+    @Override
+    public void subquery(int level, long nanos, long rows) {
+        if(level >= latencies.length) return;
+        latencies[level].record(nanos);
+        fanOuts[level].record(rows);
+    }
+
+    @Override
+    public void collector(int level, long nanos) {
+        if(level >= collectorNanos.length) return;
+        collectorNanos[level].add(nanos);
+    }
+
+    public long getSubqueries(int level) {
+        return latencies[level].getCount();
+    }
+
+    public long getRows(int level) {
+        return fanOuts[level].getTotal();
+    }
+
+    public long getEvaluationNanos(int level) {
+        return latencies[level].getTotal();
+    }
+
+    public long getCollectorNanos(int level) {
+        return collectorNanos[level].sum();
+    }
+
+    public double getMeanLatencyNanos(int level) {
+        return latencies[level].getMean();
+    }
+
+    /**
+     * @param p percentile in <code>[0, 1]</code>.
+     * @return the approximated subquery latency percentile, as the power of two bucket upper bound.
+     */
+    public long getLatencyNanos(int level, double p) {
+        return latencies[level].getPercentile(p);
+    }
+
+    public double getMeanFanOut(int level) {
+        return fanOuts[level].getMean();
+    }
+
+    /**
+     * @param p percentile in <code>[0, 1]</code>.
+     * @return the approximated percentile of the rows produced by a subquery.
+     */
+    public long getFanOut(int level, double p) {
+        return fanOuts[level].getPercentile(p);
+    }
+
+    @Override
+    public long[] getSubqueries() {
+        final long[] out = new long[getLevels()];
+        for(int i = 0; i < out.length; i++) out[i] = getSubqueries(i);
+        return out;
+    }
+
+    @Override
+    public long[] getRows() {
+        final long[] out = new long[getLevels()];
+        for(int i = 0; i < out.length; i++) out[i] = getRows(i);
+        return out;
+    }
+
+    @Override
+    public double[] getMeanLatencyMillis() {
+        final double[] out = new double[getLevels()];
+        for(int i = 0; i < out.length; i++) out[i] = getMeanLatencyNanos(i) / NANOS_PER_MILLI;
+        return out;
+    }
+
+    @Override
+    public double[] getP99LatencyMillis() {
+        final double[] out = new double[getLevels()];
+        for(int i = 0; i < out.length; i++) out[i] = getLatencyNanos(i, 0.99) / NANOS_PER_MILLI;
+        return out;
+    }
+
+    @Override
+    public double[] getMeanFanOut() {
+        final double[] out = new double[getLevels()];
+        for(int i = 0; i < out.length; i++) out[i] = getMeanFanOut(i);
+        return out;
+    }
+
+    @Override
+    public long[] getEvaluationMillis() {
+        final long[] out = new long[getLevels()];
+        for(int i = 0; i < out.length; i++) out[i] = getEvaluationNanos(i) / 1000000;
+        return out;
+    }
+
+    @Override
+    public long[] getCollectorMillis() {
+        final long[] out = new long[getLevels()];
+        for(int i = 0; i < out.length; i++) out[i] = getCollectorNanos(i) / 1000000;
+        return out;
+    }
+
+    @Override
+    public void reset() {
+        for(int i = 0; i < getLevels(); i++) {
+            latencies[i].reset();
+            fanOuts[i].reset();
+            collectorNanos[i].reset();
+        }
+    }
+
+    /**
+     * Registers these metrics on the platform MBean server.
+     *
+     * @param name value of the <code>name</code> key of the MBean object name.
+     * @return the registered object name.
+     */
+    public ObjectName register(String name) {
+        try {
+            final ObjectName objectName =
+                    new ObjectName("eu.fbk.querytemplate:type=NestedQueryMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException jme) {
+            throw new RuntimeException("Error while registering metrics.", jme);
+        }
+    }
+
+    public void unregister(ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException jme) {
+            throw new RuntimeException("Error while unregistering metrics.", jme);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < getLevels(); i++) {
+            sb.append(
+                    String.format(
+                            "level %d: subqueries=%d rows=%d fan-out(mean/p99)=%.2f/%d " +
+                            "latency(mean/p99)=%.3f/%.3f ms evaluation=%d ms collector=%d ms%n",
+                            i, getSubqueries(i), getRows(i), getMeanFanOut(i), getFanOut(i, 0.99),
+                            getMeanLatencyNanos(i) / NANOS_PER_MILLI, getLatencyNanos(i, 0.99) / NANOS_PER_MILLI,
+                            getEvaluationNanos(i) / 1000000, getCollectorNanos(i) / 1000000
+                    )
+            );
+        }
+        return sb.toString();
+    }
+
+}
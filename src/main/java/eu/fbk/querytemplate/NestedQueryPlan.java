@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Execution plan of a {@link DefaultNestedQuery}, produced by {@link NestedQueryPlanner}:
+ * for every level the strategy used to expand its children and the estimates it is based on.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryPlan {
+
+    /**
+     * How the children of a level are expanded.
+     */
+    public enum Strategy {
+        /**
+         * One child query per pivot value.
+         */
+        NESTED,
+        /**
+         * One child query per batch of pivot values, bound with a <code>VALUES</code> block.
+         */
+        BATCHED,
+        /**
+         * A single query joining the level with its child level.
+         */
+        JOINED
+    }
+
+    /**
+     * Plan of a single level.
+     */
+    public static class Level {
+
+        private final int level;
+        private final String name;
+        private final Strategy strategy;
+        private final int batchSize;
+        private final double evaluations;
+        private final double rows;
+        private final double pivots;
+        private final double cost;
+
+        Level(
+                int level, String name, Strategy strategy, int batchSize,
+                double evaluations, double rows, double pivots, double cost
+        ) {
+            this.level = level;
+            this.name = name;
+            this.strategy = strategy;
+            this.batchSize = batchSize;
+            this.evaluations = evaluations;
+            this.rows = rows;
+            this.pivots = pivots;
+            this.cost = cost;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the strategy for the children of this level, <code>null</code> for the last level.
+         */
+        public Strategy getStrategy() {
+            return strategy;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * @return estimated number of evaluations of the level query, <code>-1</code> if unknown.
+         */
+        public double getEvaluations() {
+            return evaluations;
+        }
+
+        /**
+         * @return estimated number of rows per evaluation, <code>-1</code> if unknown.
+         */
+        public double getRows() {
+            return rows;
+        }
+
+        /**
+         * @return estimated number of distinct pivot values per evaluation, <code>-1</code> if unknown.
+         */
+        public double getPivots() {
+            return pivots;
+        }
+
+        /**
+         * @return estimated cost of expanding the children with the chosen strategy, <code>-1</code> if unknown.
+         */
+        public double getCost() {
+            return cost;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d %s: %s batch=%d evaluations=%.0f rows=%.1f pivots=%.1f cost=%.0f",
+                    level, name, strategy, batchSize, evaluations, rows, pivots, cost
+            );
+        }
+    }
+
+    private final List<Level> levels;
+
+    NestedQueryPlan(List<Level> levels) {
+        this.levels = Collections.unmodifiableList(new ArrayList<>(levels));
+    }
+
+    public List<Level> getLevels() {
+        return levels;
+    }
+
+    /**
+     * Configures <code>nestedQuery</code> to execute this plan.
+     */
+    public void apply(DefaultNestedQuery nestedQuery) {
+        if(nestedQuery.getLevels() != levels.size()) throw new IllegalArgumentException("Plan does not match query.");
+        for(Level level : levels) {
+            if(level.strategy != null) nestedQuery.setJoined(level.level, false);
+        }
+        for(Level level : levels) {
+            if(level.strategy == null) continue;
+            if(level.strategy == Strategy.JOINED) nestedQuery.setJoined(level.level, true);
+            nestedQuery.setBatchSize(level.level, level.strategy == Strategy.BATCHED ? level.batchSize : 1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for(Level level : levels) {
+            sb.append(level).append('\n');
+        }
+        return sb.toString();
+    }
+
+}
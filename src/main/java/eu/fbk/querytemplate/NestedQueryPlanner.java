@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.core.BasicPattern;
+import com.hp.hpl.jena.sparql.core.Substitute;
+import com.hp.hpl.jena.sparql.core.Var;
+import org.rdfhdt.hdt.hdt.HDT;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses how to expand the children of every level of a {@link DefaultNestedQuery}, comparing the costs
+ * of {@link NestedQueryPlan.Strategy#NESTED}, {@link NestedQueryPlan.Strategy#BATCHED} and
+ * {@link NestedQueryPlan.Strategy#JOINED} evaluation. Costs are in rows, where every query adds a fixed
+ * overhead, and are derived from the cardinalities of the level patterns estimated by HDT.
+ * Levels whose templates are not basic graph patterns of a {@link ParameterizedQuery} are expanded nested.
+ * A level whose parent is joined receives its rows from the joined query, so it is never joined itself.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryPlanner {
+
+    /**
+     * Fixed cost of a query, in rows.
+     */
+    static final double QUERY_COST = 200;
+
+    /**
+     * Cost per row of routing batch results back to the pivots.
+     */
+    static final double BATCH_ROW_COST = 1.2;
+
+    /**
+     * Cost per row of the joined queries, that evaluate the parent template twice and the child template
+     * once per distinct pivot.
+     */
+    static final double JOIN_ROW_COST = 1.5;
+
+    static final int MAX_BATCH_SIZE = 512;
+
+    /**
+     * Number of child rows a batch is sized for.
+     */
+    static final double TARGET_BATCH_ROWS = 10000;
+
+    private final BGPEvaluator evaluator;
+
+    public NestedQueryPlanner(HDT hdt) {
+        this.evaluator = new BGPEvaluator(hdt);
+    }
+
+    /**
+     * Plans the execution of <code>nestedQuery</code> for the given top level arguments.
+     *
+     * @return the plan, to be applied with {@link NestedQueryPlan#apply(DefaultNestedQuery)}.
+     */
+    public NestedQueryPlan plan(DefaultNestedQuery nestedQuery, Map<String,String> args) {
+        final int levels = nestedQuery.getLevels();
+        final double[] rows = new double[levels];
+        final double[] pivots = new double[levels];
+        for(int level = 0; level < levels; level++) {
+            final BasicPattern pattern = getPattern(nestedQuery.getQuery(level), level == 0 ? args : null);
+            if(pattern == null) {
+                rows[level] = pivots[level] = -1;
+                continue;
+            }
+            final Collection<Var> bound = getBound(nestedQuery.getQuery(level), level == 0 ? args : null);
+            rows[level] = evaluator.estimateCardinality(pattern, bound);
+            final List<Var> boundPivot = new ArrayList<>(bound);
+            boundPivot.add(Var.alloc(nestedQuery.getPivot(level)));
+            final double rowsPerPivot = evaluator.estimateCardinality(pattern, boundPivot);
+            pivots[level] = rowsPerPivot > 0 ? Math.min(rows[level], Math.max(1, rows[level] / rowsPerPivot)) : 0;
+            final long limit = ((ParameterizedQuery) nestedQuery.getQuery(level)).getLimit();
+            if(limit >= 0) {
+                rows[level] = Math.min(rows[level], limit);
+                pivots[level] = Math.min(pivots[level], limit);
+            }
+        }
+
+        final List<NestedQueryPlan.Level> out = new ArrayList<>();
+        double evaluations = 1;
+        boolean parentJoined = false;
+        for(int level = 0; level < levels; level++) {
+            final String name = nestedQuery.getName(level);
+            if(!nestedQuery.hasLevel(level + 1)) {
+                out.add(new NestedQueryPlan.Level(level, name, null, 1, evaluations, rows[level], pivots[level], -1));
+                break;
+            }
+            NestedQueryPlan.Strategy strategy = NestedQueryPlan.Strategy.NESTED;
+            int batchSize = 1;
+            double cost = -1;
+            if(evaluations >= 0 && rows[level] >= 0 && rows[level + 1] >= 0) {
+                final double children = evaluations * pivots[level];
+                final double fanOut = rows[level + 1];
+                cost = children * (QUERY_COST + fanOut);
+                if(isBatchable(nestedQuery, level)) {
+                    final int candidateBatchSize = getBatchSize(pivots[level], fanOut);
+                    final double batchCost =
+                            evaluations * Math.ceil(pivots[level] / candidateBatchSize) * QUERY_COST
+                            + children * fanOut * BATCH_ROW_COST;
+                    if(batchCost < cost) {
+                        strategy = NestedQueryPlan.Strategy.BATCHED;
+                        batchSize = candidateBatchSize;
+                        cost = batchCost;
+                    }
+                }
+                if(!parentJoined && isJoinable(nestedQuery, level)) {
+                    final double joinCost =
+                            evaluations * 2 * QUERY_COST
+                            + evaluations * (2 * rows[level] + pivots[level] * Math.max(1, fanOut)) * JOIN_ROW_COST;
+                    if(joinCost < cost) {
+                        strategy = NestedQueryPlan.Strategy.JOINED;
+                        batchSize = 1;
+                        cost = joinCost;
+                    }
+                }
+            }
+            out.add(
+                    new NestedQueryPlan.Level(
+                            level, name, strategy, batchSize, evaluations, rows[level], pivots[level], cost
+                    )
+            );
+            evaluations = evaluations < 0 || pivots[level] < 0 ? -1 : evaluations * pivots[level];
+            parentJoined = strategy == NestedQueryPlan.Strategy.JOINED;
+        }
+        return new NestedQueryPlan(out);
+    }
+
+    /**
+     * Plans <code>nestedQuery</code> and configures it to execute the plan.
+     *
+     * @return the applied plan.
+     */
+    public NestedQueryPlan apply(DefaultNestedQuery nestedQuery, Map<String,String> args) {
+        final NestedQueryPlan plan = plan(nestedQuery, args);
+        plan.apply(nestedQuery);
+        return plan;
+    }
+
+    /**
+     * Sizes the batch to fetch about {@link #TARGET_BATCH_ROWS} child rows per query.
+     */
+    private int getBatchSize(double pivots, double fanOut) {
+        final double size = Math.min(TARGET_BATCH_ROWS / Math.max(1, fanOut), Math.max(2, Math.ceil(pivots)));
+        return (int) Math.max(2, Math.min(MAX_BATCH_SIZE, size));
+    }
+
+    private boolean isBatchable(DefaultNestedQuery nestedQuery, int level) {
+        return nestedQuery.getQuery(level + 1).isBatchable(nestedQuery.getPivot(level));
+    }
+
+    private boolean isJoinable(DefaultNestedQuery nestedQuery, int level) {
+        return nestedQuery.getQuery(level) instanceof ParameterizedQuery
+                && nestedQuery.getQuery(level + 1) instanceof ParameterizedQuery
+                && nestedQuery.getPropertyPivot(level) == null
+                && ((ParameterizedQuery) nestedQuery.getQuery(level + 1)).getParameters()
+                        .equals(Collections.singleton(nestedQuery.getPivot(level)));
+    }
+
+    /**
+     * @return the basic graph pattern of <code>query</code> with the <code>args</code> bound,
+     *         <code>null</code> if the query is not a basic graph pattern.
+     */
+    private BasicPattern getPattern(Query query, Map<String,String> args) {
+        if(!(query instanceof ParameterizedQuery)) return null;
+        final ParameterizedQuery parameterizedQuery = (ParameterizedQuery) query;
+        Op pattern = parameterizedQuery.getPattern();
+        if(args != null) {
+            try {
+                pattern = Substitute.substitute(pattern, parameterizedQuery.bind(args));
+            } catch (IllegalArgumentException iae) {
+                // Parameters not matching the arguments are estimated as unbound variables.
+            }
+        }
+        return pattern instanceof OpBGP ? ((OpBGP) pattern).getPattern() : null;
+    }
+
+    /**
+     * @return the parameters of <code>query</code> bound by its parent, none if <code>args</code> are given.
+     */
+    private Collection<Var> getBound(Query query, Map<String,String> args) {
+        if(args != null) return Collections.emptyList();
+        final List<Var> out = new ArrayList<>();
+        for(String parameter : ((ParameterizedQuery) query).getParameters()) {
+            out.add(Var.alloc(parameter));
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Profile of a {@link DefaultNestedQuery} execution, produced by {@link NestedQueryProfiler}:
+ * a tree where every level reports its query, the optimized algebra and the measured costs.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryProfile {
+
+    /**
+     * Profile of a single level, whose child is the profile of the next level.
+     */
+    public static class Level {
+
+        private final int level;
+        private final String name;
+        private final NestedQueryPlan.Strategy strategy;
+        private final String query;
+        private final String algebra;
+        private final long subqueries;
+        private final long rows;
+        private final double meanLatencyMillis;
+        private final double p99LatencyMillis;
+        private final double evaluationMillis;
+        private final double collectorMillis;
+        private final double share;
+
+        private Level child;
+
+        Level(
+                int level, String name, NestedQueryPlan.Strategy strategy, String query, String algebra,
+                long subqueries, long rows, double meanLatencyMillis, double p99LatencyMillis,
+                double evaluationMillis, double collectorMillis, double share
+        ) {
+            this.level = level;
+            this.name = name;
+            this.strategy = strategy;
+            this.query = query;
+            this.algebra = algebra;
+            this.subqueries = subqueries;
+            this.rows = rows;
+            this.meanLatencyMillis = meanLatencyMillis;
+            this.p99LatencyMillis = p99LatencyMillis;
+            this.evaluationMillis = evaluationMillis;
+            this.collectorMillis = collectorMillis;
+            this.share = share;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the strategy used for the children of this level, <code>null</code> for the last level.
+         */
+        public NestedQueryPlan.Strategy getStrategy() {
+            return strategy;
+        }
+
+        /**
+         * @return the query template of the level.
+         */
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * @return the ARQ algebra evaluated for the level after optimization,
+         *         with the parameters as variables, <code>null</code> if the template cannot be compiled.
+         */
+        public String getAlgebra() {
+            return algebra;
+        }
+
+        public long getSubqueries() {
+            return subqueries;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public double getMeanLatencyMillis() {
+            return meanLatencyMillis;
+        }
+
+        /**
+         * @return the approximated 99th percentile of the subquery latency.
+         */
+        public double getP99LatencyMillis() {
+            return p99LatencyMillis;
+        }
+
+        public double getEvaluationMillis() {
+            return evaluationMillis;
+        }
+
+        public double getCollectorMillis() {
+            return collectorMillis;
+        }
+
+        /**
+         * @return the fraction of the total execution time spent evaluating the subqueries of the level.
+         */
+        public double getShare() {
+            return share;
+        }
+
+        /**
+         * @return the profile of the next level, <code>null</code> for the last level.
+         */
+        public Level getChild() {
+            return child;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d %s: %s subqueries=%d rows=%d latency(mean/p99)=%.3f/%.3f ms " +
+                    "evaluation=%.1f ms (%.1f%%) collector=%.1f ms",
+                    level, name, strategy, subqueries, rows, meanLatencyMillis, p99LatencyMillis,
+                    evaluationMillis, share * 100, collectorMillis
+            );
+        }
+    }
+
+    private final List<Level> levels;
+    private final double totalMillis;
+    private final double sampling;
+
+    NestedQueryProfile(List<Level> levels, double totalMillis, double sampling) {
+        for(int i = 1; i < levels.size(); i++) {
+            levels.get(i - 1).child = levels.get(i);
+        }
+        this.levels = Collections.unmodifiableList(new ArrayList<>(levels));
+        this.totalMillis = totalMillis;
+        this.sampling = sampling;
+    }
+
+    /**
+     * @return the root of the profile tree.
+     */
+    public Level getRoot() {
+        return levels.get(0);
+    }
+
+    public List<Level> getLevels() {
+        return levels;
+    }
+
+    public double getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * @return the fraction of pivots whose child levels have been expanded.
+     */
+    public double getSampling() {
+        return sampling;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("total=%.1f ms sampling=%.3f%n", totalMillis, sampling));
+        String indent = "";
+        for(Level level = getRoot(); level != null; level = level.getChild()) {
+            sb.append(indent).append(level).append('\n');
+            sb.append(indent).append("  query: ").append(level.query.trim().replaceAll("\\s+", " ")).append('\n');
+            if(level.algebra != null) {
+                for(String line : level.algebra.trim().split("\n")) {
+                    sb.append(indent).append("  ").append(line).append('\n');
+                }
+            }
+            indent += "  ";
+        }
+        return sb.toString();
+    }
+
+}
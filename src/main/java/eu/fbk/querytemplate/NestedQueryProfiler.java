@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Executes a {@link DefaultNestedQuery}, or a sample of its pivots, measuring every level
+ * and returns the resulting {@link NestedQueryProfile}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryProfiler {
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final double sampling;
+
+    /**
+     * @param sampling fraction of the pivots of every level whose child levels are expanded,
+     *                 <code>1</code> profiles the full execution.
+     */
+    public NestedQueryProfiler(double sampling) {
+        if(sampling <= 0 || sampling > 1) throw new IllegalArgumentException("Invalid sampling.");
+        this.sampling = sampling;
+    }
+
+    public NestedQueryProfiler() {
+        this(1);
+    }
+
+    public double getSampling() {
+        return sampling;
+    }
+
+    /**
+     * Profiles an execution of <code>nestedQuery</code> producing its output on <code>collector</code>.
+     * The execution is measured on its own sink, the metrics sink of the query is not involved.
+     */
+    public NestedQueryProfile profile(
+            DefaultNestedQuery nestedQuery, QueryExecutor executor, ResultCollector collector, Map<String,String> args
+    ) {
+        final NestedQueryMetrics metrics = new NestedQueryMetrics(nestedQuery.getLevels());
+        final long start = System.nanoTime();
+        nestedQuery.executeNestedQuery(executor, collector, args, null, sampling, metrics);
+        final long total = Math.max(1, System.nanoTime() - start);
+
+        final List<NestedQueryProfile.Level> levels = new ArrayList<>();
+        for(int level = 0; level < nestedQuery.getLevels(); level++) {
+            levels.add(
+                    new NestedQueryProfile.Level(
+                            level, nestedQuery.getName(level), nestedQuery.getStrategy(level),
+                            nestedQuery.getQuery(level).getTemplate(), getAlgebra(nestedQuery, level),
+                            metrics.getSubqueries(level), metrics.getRows(level),
+                            metrics.getMeanLatencyNanos(level) / NANOS_PER_MILLI,
+                            metrics.getLatencyNanos(level, 0.99) / NANOS_PER_MILLI,
+                            metrics.getEvaluationNanos(level) / NANOS_PER_MILLI,
+                            metrics.getCollectorNanos(level) / NANOS_PER_MILLI,
+                            (double) metrics.getEvaluationNanos(level) / total
+                    )
+            );
+        }
+        return new NestedQueryProfile(levels, total / NANOS_PER_MILLI, sampling);
+    }
+
+    /**
+     * Profiles an execution of <code>nestedQuery</code> discarding its output.
+     */
+    public NestedQueryProfile profile(DefaultNestedQuery nestedQuery, QueryExecutor executor, Map<String,String> args) {
+        return profile(nestedQuery, executor, new DiscardingCollector(), args);
+    }
+
+    /**
+     * @return the optimized algebra evaluated for <code>level</code>, where the parameters of
+     *         templates that are not {@link ParameterizedQuery}s are replaced by placeholder IRIs.
+     */
+    private String getAlgebra(DefaultNestedQuery nestedQuery, int level) {
+        final JoinedQuery joined = nestedQuery.getJoinedQuery(level);
+        if(joined != null) return joined.toString();
+        final Query query = nestedQuery.getQuery(level);
+        if(query instanceof ParameterizedQuery) return ((ParameterizedQuery) query).getOp().toString();
+        try {
+            return Algebra.optimize(
+                    Algebra.compile(
+                            QueryFactory.create(
+                                    query.getTemplate().replaceAll("\\$(\\w+)", "urn:parameter:$1"),
+                                    Syntax.syntaxSPARQL_11
+                            )
+                    )
+            ).toString();
+        } catch (QueryException qe) {
+            return null;
+        }
+    }
+
+    private static class DiscardingCollector implements RowCollector {
+
+        @Override
+        public void values(Row row) {
+            // Empty.
+        }
+
+        @Override
+        public void collect(Row row) {
+            // Empty.
+        }
+
+        @Override
+        public void values(String[] values) {
+            // Empty.
+        }
+
+        @Override
+        public void begin() {
+            // Empty.
+        }
+
+        @Override
+        public void startLevel(int l, String queryName) {
+            // Empty.
+        }
+
+        @Override
+        public void collect(String[] bindings, String[] values) {
+            // Empty.
+        }
+
+        @Override
+        public void pivot(String name) {
+            // Empty.
+        }
+
+        @Override
+        public void startPropertyPivot(String property) {
+            // Empty.
+        }
+
+        @Override
+        public void endPropertyPivot(String property) {
+            // Empty.
+        }
+
+        @Override
+        public void endLevel(int l) {
+            // Empty.
+        }
+
+        @Override
+        public void truncated(String reason) {
+            // Empty.
+        }
+
+        @Override
+        public void end() {
+            // Empty.
+        }
+    }
+
+}
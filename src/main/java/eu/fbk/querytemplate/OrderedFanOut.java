@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.google.common.util.concurrent.Futures;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * {@link ResultCollector} processing subtrees on an executor while preserving the order of the events
+ * delivered to the target collector. Events received while subtrees are pending are recorded and replayed
+ * as soon as all the preceding subtrees are completed. Rows are passed through only while nothing is pending,
+ * otherwise their values are copied by the recorder.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class OrderedFanOut implements RowCollector {
+
+    /**
+     * A subtree processed on the executor, writing its events to the given collector.
+     */
+    interface Subtree {
+        void process(ResultCollector collector);
+    }
+
+    private final ExecutorService executor;
+    private final ResultCollector target;
+    private final int window;
+    private final Deque<Future<RecordingResultCollector>> pending = new ArrayDeque<>();
+
+    private RecordingResultCollector current = new RecordingResultCollector();
+
+    OrderedFanOut(ExecutorService executor, ResultCollector target, int window) {
+        this.executor = executor;
+        this.target = target;
+        this.window = window;
+    }
+
+    /**
+     * Schedules a subtree, blocking when more than <code>window</code> units are waiting to be replayed.
+     */
+    void fork(final Subtree subtree) {
+        enqueueCurrent();
+        pending.add(
+                executor.submit(new Callable<RecordingResultCollector>() {
+                    @Override
+                    public RecordingResultCollector call() throws Exception {
+                        final RecordingResultCollector recorder = new RecordingResultCollector();
+                        subtree.process(recorder);
+                        return recorder;
+                    }
+                })
+        );
+        drain(window);
+    }
+
+    /**
+     * Waits for all the pending subtrees and replays them on the target.
+     */
+    void finish() {
+        enqueueCurrent();
+        drain(0);
+    }
+
+    @Override
+    public void values(String[] values) {
+        collector().values(values);
+    }
+
+    @Override
+    public void values(Row row) {
+        Rows.values(collector(), row);
+    }
+
+    @Override
+    public void begin() {
+        collector().begin();
+    }
+
+    @Override
+    public void startLevel(int l, String queryName) {
+        collector().startLevel(l, queryName);
+    }
+
+    @Override
+    public void collect(String[] bindings, String[] values) {
+        collector().collect(bindings, values);
+    }
+
+    @Override
+    public void collect(Row row) {
+        Rows.collect(collector(), row);
+    }
+
+    @Override
+    public void pivot(String name) {
+        collector().pivot(name);
+    }
+
+    @Override
+    public void startPropertyPivot(String property) {
+        collector().startPropertyPivot(property);
+    }
+
+    @Override
+    public void endPropertyPivot(String property) {
+        collector().endPropertyPivot(property);
+    }
+
+    @Override
+    public void endLevel(int l) {
+        collector().endLevel(l);
+    }
+
+    @Override
+    public void truncated(String reason) {
+        collector().truncated(reason);
+    }
+
+    @Override
+    public void end() {
+        collector().end();
+    }
+
+    private ResultCollector collector() {
+        return pending.isEmpty() ? target : current;
+    }
+
+    private void enqueueCurrent() {
+        if(current.isEmpty()) return;
+        pending.add(Futures.immediateFuture(current));
+        current = new RecordingResultCollector();
+    }
+
+    private void drain(int max) {
+        while(!pending.isEmpty() && (pending.size() > max || pending.peek().isDone())) {
+            final Future<RecordingResultCollector> head = pending.poll();
+            try {
+                head.get().replay(target);
+            } catch (InterruptedException ie) {
+                cancelPending();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for subtree.", ie);
+            } catch (ExecutionException ee) {
+                cancelPending();
+                if(ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+                throw new IllegalStateException("Error while processing subtree.", ee.getCause());
+            }
+        }
+        if(pending.isEmpty() && !current.isEmpty()) {
+            current.replay(target);
+            current = new RecordingResultCollector();
+        }
+    }
+
+    private void cancelPending() {
+        for(Future<RecordingResultCollector> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip {@link OutputStream} compressing fixed size blocks in parallel.
+ * Every block is deflated on a worker thread, primed with the last 32 KB of the previous block,
+ * and terminated by a sync flush, so that the blocks concatenated in order form a single standard
+ * gzip member. The number of blocks pending compression is bounded, the writing thread blocks when
+ * the bound is reached.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newFixedThreadPool(
+            THREADS, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("parallel-gzip-%d").build()
+    );
+
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final int level;
+    private final int maxPendingBlocks;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block;
+    private int count;
+    private byte[] dictionary;
+    private long size;
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * @param out compressed output.
+     * @param executor pool compressing the blocks.
+     * @param blockSize size of the uncompressed blocks.
+     * @param level deflate compression level.
+     * @param maxPendingBlocks max number of blocks submitted and not yet written,
+     *                         bounding the memory to about twice this number of blocks.
+     */
+    public ParallelGZIPOutputStream(
+            OutputStream out, ExecutorService executor, int blockSize, int level, int maxPendingBlocks
+    ) {
+        super(out);
+        if(executor == null) throw new IllegalArgumentException("Invalid executor.");
+        if(blockSize < DICTIONARY_SIZE) throw new IllegalArgumentException("Block size must be at least 32 KB.");
+        if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level.");
+        if(maxPendingBlocks < 1) throw new IllegalArgumentException("Invalid max pending blocks.");
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxPendingBlocks = maxPendingBlocks;
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * Compresses on a pool shared by all the streams, with one thread per core.
+     */
+    public ParallelGZIPOutputStream(OutputStream out) {
+        this(out, SHARED_EXECUTOR, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, THREADS * 2);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if(count == blockSize) submit(false);
+        block[count++] = (byte) b;
+        crc.update(b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        crc.update(b, off, len);
+        size += len;
+        int chunk;
+        while(len > 0) {
+            if(count == blockSize) submit(false);
+            chunk = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, chunk);
+            count += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * Compresses the buffered data as a block and writes all the pending blocks.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if(count > 0) submit(false);
+        drain(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        try {
+            submit(true);
+            drain(0);
+            writeInt((int) crc.getValue());
+            writeInt((int) size);
+            out.flush();
+        } finally {
+            closed = true;
+            for(Future<byte[]> future : pending) future.cancel(true);
+            out.close();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        if(!started) {
+            out.write(HEADER);
+            started = true;
+        }
+        pending.add(executor.submit(new Block(block, count, dictionary, level, last)));
+        if(!last) {
+            dictionary = Arrays.copyOfRange(block, Math.max(0, count - DICTIONARY_SIZE), count);
+            block = new byte[blockSize];
+            count = 0;
+        }
+        drain(maxPendingBlocks);
+    }
+
+    /**
+     * Writes the completed blocks in order until at most <code>max</code> blocks are pending.
+     */
+    private void drain(int max) throws IOException {
+        while(pending.size() > max) {
+            try {
+                out.write(pending.peek().get());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing.", ie);
+            } catch (ExecutionException ee) {
+                throw new IOException("Error while compressing.", ee.getCause());
+            }
+            pending.poll();
+        }
+    }
+
+    private void writeInt(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >>> 8) & 0xff);
+        out.write((i >>> 16) & 0xff);
+        out.write((i >>> 24) & 0xff);
+    }
+
+    private void ensureOpen() throws IOException {
+        if(closed) throw new IOException("Stream closed.");
+    }
+
+    /**
+     * Deflates a block, terminated by a sync flush or, for the last block, by the final deflate block.
+     */
+    private static class Block implements Callable<byte[]> {
+
+        private final byte[] data;
+        private final int length;
+        private final byte[] dictionary;
+        private final int level;
+        private final boolean last;
+
+        Block(byte[] data, int length, byte[] dictionary, int level, boolean last) {
+            this.data = data;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.level = level;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() {
+            final Deflater deflater = new Deflater(level, true);
+            try {
+                if(dictionary != null && dictionary.length > 0) deflater.setDictionary(dictionary);
+                deflater.setInput(data, 0, length);
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+                final byte[] buffer = new byte[16 * 1024];
+                int deflated;
+                if(last) {
+                    deflater.finish();
+                    while(!deflater.finished()) {
+                        deflated = deflater.deflate(buffer);
+                        compressed.write(buffer, 0, deflated);
+                    }
+                } else {
+                    do {
+                        deflated = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        compressed.write(buffer, 0, deflated);
+                    } while(deflated == buffer.length);
+                }
+                return compressed.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.query.QueryException;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpDistinct;
+import com.hp.hpl.jena.sparql.algebra.op.OpJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpOrder;
+import com.hp.hpl.jena.sparql.algebra.op.OpProject;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.algebra.op.OpTable;
+import com.hp.hpl.jena.sparql.algebra.table.TableN;
+import com.hp.hpl.jena.sparql.core.Substitute;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link Query} parsed and compiled to algebra once, where every <code>&lt;$name&gt;</code> IRI parameter
+ * becomes a slot bound by node substitution at every {@link #perform(QueryExecutor, java.util.Map)}.
+ * Arguments are never spliced into the query text, so they do not need any sanitization.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class ParameterizedQuery implements Query {
+
+    private static final Pattern PARAMETER = Pattern.compile("\\$(\\w+)");
+
+    private final String template;
+    private final SortedSet<String> parameters;
+    private final com.hp.hpl.jena.query.Query query;
+    private final Op pattern;
+    private final List<String> resultVars;
+    private final Op op;
+
+    /**
+     * @param template SPARQL template using parameters only in the IRI form <code>&lt;$name&gt;</code>.
+     * @throws IllegalArgumentException if the template cannot be compiled.
+     */
+    public ParameterizedQuery(String template) {
+        this.template = template;
+        this.parameters = new TreeSet<>();
+        final Matcher matcher = PARAMETER.matcher(template);
+        while(matcher.find()) {
+            parameters.add(matcher.group(1));
+        }
+        String slotted = template;
+        for(String parameter : parameters) {
+            if(template.contains("?" + parameter))
+                throw new IllegalArgumentException(String.format("Parameter '%s' clashes with a variable", parameter));
+            slotted = slotted.replace(String.format("<$%s>", parameter), "?" + parameter);
+            if(slotted.contains("$" + parameter))
+                throw new IllegalArgumentException(String.format("Parameter '%s' must be used as IRI", parameter));
+        }
+        try {
+            this.query = QueryFactory.create(slotted, Syntax.syntaxSPARQL_11);
+        } catch (QueryException qe) {
+            throw new IllegalArgumentException(String.format("Error while compiling template: [%s]", template), qe);
+        }
+        if(
+                !query.isSelectType() || query.hasGroupBy() || query.hasAggregators() ||
+                query.hasHaving() || query.hasValues() || !query.getProject().getExprs().isEmpty()
+        ) throw new IllegalArgumentException(String.format("Unsupported template: [%s]", template));
+
+        this.pattern = Algebra.compile(query.getQueryPattern());
+        this.resultVars = new ArrayList<>(query.getResultVars());
+        this.resultVars.removeAll(parameters);
+        this.op = Algebra.optimize(modifiers(pattern, resultVars, true));
+    }
+
+    /**
+     * @return <code>true</code> if <code>template</code> can be compiled to a {@link ParameterizedQuery}.
+     */
+    public static boolean isCompilable(String template) {
+        try {
+            new ParameterizedQuery(template);
+            return true;
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+    }
+
+    @Override
+    public String getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String expand(Map<String,String> args) {
+        String out = template;
+        for (Map.Entry<String,String> entry : args.entrySet()) {
+            checkParameter(entry.getKey());
+            out = out.replace(String.format("<$%s>", entry.getKey()), String.format("<%s>", entry.getValue()));
+        }
+        return out;
+    }
+
+    @Override
+    public Result perform(QueryExecutor executor, Map<String,String> args) {
+        return executor.select(Substitute.substitute(op, bind(args)), resultVars);
+    }
+
+    @Override
+    public boolean isBatchable(String parameter) {
+        return parameters.equals(Collections.singleton(parameter)) && !query.hasLimit() && !query.hasOffset();
+    }
+
+    @Override
+    public Result performBatch(QueryExecutor executor, String parameter, Collection<String> values) {
+        if(!isBatchable(parameter))
+            throw new IllegalArgumentException(String.format("Cannot batch template '%s' on '%s'", template, parameter));
+        final Var var = Var.alloc(parameter);
+        final TableN table = new TableN(Collections.singletonList(var));
+        for(String value : values) {
+            table.addBinding(BindingFactory.binding(var, NodeFactory.createURI(value)));
+        }
+        final List<String> batchVars = new ArrayList<>(resultVars);
+        batchVars.add(parameter);
+        final Op batchOp = Algebra.optimize(modifiers(OpJoin.create(OpTable.create(table), pattern), batchVars, false));
+        return executor.select(batchOp, batchVars);
+    }
+
+    public SortedSet<String> getParameters() {
+        return Collections.unmodifiableSortedSet(parameters);
+    }
+
+    /**
+     * @return the variables projected by the template, parameters excluded.
+     */
+    List<String> getResultVars() {
+        return Collections.unmodifiableList(resultVars);
+    }
+
+    /**
+     * @return the max number of rows returned by the template, <code>-1</code> if not limited.
+     */
+    long getLimit() {
+        return query.hasLimit() ? query.getLimit() : -1;
+    }
+
+    /**
+     * @return the compiled graph pattern of the template, without solution modifiers.
+     */
+    Op getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return the compiled template, with parameters still to be bound.
+     */
+    Op getOp() {
+        return op;
+    }
+
+    /**
+     * @return the binding of the parameters to the IRIs in <code>args</code>.
+     * @throws IllegalArgumentException if <code>args</code> does not bind exactly the template parameters.
+     */
+    Binding bind(Map<String,String> args) {
+        final BindingMap binding = BindingFactory.create();
+        for (Map.Entry<String,String> entry : args.entrySet()) {
+            checkParameter(entry.getKey());
+            binding.add(Var.alloc(entry.getKey()), NodeFactory.createURI(entry.getValue()));
+        }
+        if(binding.size() != parameters.size())
+            throw new IllegalArgumentException(String.format("Expected arguments %s, found %s", parameters, args.keySet()));
+        return binding;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s in: %s", template, parameters);
+    }
+
+    /**
+     * Applies the solution modifiers of the template to <code>op</code>, in the SPARQL evaluation order.
+     */
+    private Op modifiers(Op op, List<String> vars, boolean slice) {
+        if(query.hasOrderBy()) op = new OpOrder(op, query.getOrderBy());
+        final List<Var> projection = new ArrayList<>();
+        for(String v : vars) {
+            projection.add(Var.alloc(v));
+        }
+        op = new OpProject(op, projection);
+        if(query.isDistinct()) op = OpDistinct.create(op);
+        if(slice && (query.hasLimit() || query.hasOffset())) {
+            op = new OpSlice(
+                    op,
+                    query.hasOffset() ? query.getOffset() : com.hp.hpl.jena.query.Query.NOLIMIT,
+                    query.hasLimit() ? query.getLimit() : com.hp.hpl.jena.query.Query.NOLIMIT
+            );
+        }
+        return op;
+    }
+
+    private void checkParameter(String parameter) {
+        if(!parameters.contains(parameter))
+            throw new IllegalArgumentException("Cannot find expansion for variable " + parameter);
+    }
+
+}
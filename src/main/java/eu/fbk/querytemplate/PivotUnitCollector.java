@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * Splits the output of a nested query in units, one per pivot of the first level.
+ * Every unit is rendered by its own {@link JSONResultCollector} as a complete document
+ * containing the first level with the single unit pivot.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+abstract class PivotUnitCollector implements RowCollector {
+
+    private final String fieldValue;
+
+    private String level;
+    private String pivot;
+    private JSONResultCollector current;
+    private int depth;
+
+    /**
+     * @param fieldValue field and value bindings, see {@link JSONResultCollector}.
+     */
+    PivotUnitCollector(String fieldValue) {
+        this.fieldValue = fieldValue;
+    }
+
+    /**
+     * @return the generator rendering the unit of <code>pivot</code>.
+     */
+    abstract JsonGenerator openUnit(String pivot) throws IOException;
+
+    /**
+     * Invoked once the document of the unit has been completed and flushed.
+     */
+    abstract void closeUnit(String pivot) throws IOException;
+
+    @Override
+    public void values(String[] values) {
+        if(current != null) current.values(values);
+    }
+
+    @Override
+    public void values(Row row) {
+        if(current != null) current.values(row);
+    }
+
+    @Override
+    public void begin() {
+        // Empty.
+    }
+
+    @Override
+    public void startLevel(int l, String queryName) {
+        depth++;
+        if(depth == 1) {
+            level = queryName;
+        } else {
+            current.startLevel(l, queryName);
+        }
+    }
+
+    @Override
+    public void collect(String[] bindings, String[] values) {
+        if(current != null) current.collect(bindings, values);
+    }
+
+    @Override
+    public void collect(Row row) {
+        if(current != null) current.collect(row);
+    }
+
+    @Override
+    public void pivot(String name) {
+        if(depth > 1) {
+            current.pivot(name);
+            return;
+        }
+        endUnit();
+        startUnit(name);
+    }
+
+    /**
+     * Property pivots outside the first level, such as the roots of a {@link NestedQueryBatch},
+     * do not belong to any unit and are dropped.
+     */
+    @Override
+    public void startPropertyPivot(String property) {
+        if(current != null) current.startPropertyPivot(property);
+    }
+
+    @Override
+    public void endPropertyPivot(String property) {
+        if(current != null) current.endPropertyPivot(property);
+    }
+
+    @Override
+    public void endLevel(int l) {
+        depth--;
+        if(depth > 0) {
+            current.endLevel(l);
+        } else {
+            endUnit();
+        }
+    }
+
+    @Override
+    public void end() {
+        // Empty.
+    }
+
+    private void startUnit(String name) {
+        pivot = name;
+        try {
+            current = new JSONResultCollector(openUnit(name), fieldValue);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        current.begin();
+        current.startLevel(0, level);
+        current.pivot(name);
+    }
+
+    private void endUnit() {
+        if(current == null) return;
+        current.endLevel(0);
+        current.end();
+        current = null;
+        try {
+            closeUnit(pivot);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+/**
+ * {@link Result} replaying the rows already read from a result and then continuing with the rest of it.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class PrefixedResult implements Result, Cancellable {
+
+    private final MaterializedResult prefix;
+    private final Result rest;
+
+    private Result current;
+
+    /**
+     * @param prefix rows read from <code>rest</code>.
+     * @param rest result positioned after the <code>prefix</code> rows.
+     */
+    PrefixedResult(MaterializedResult prefix, Result rest) {
+        this.prefix = prefix;
+        this.rest = rest;
+        this.current = prefix;
+    }
+
+    @Override
+    public String[] getBindings() {
+        return rest.getBindings();
+    }
+
+    @Override
+    public boolean next() {
+        if(current == prefix) {
+            if(prefix.next()) return true;
+            current = rest;
+        }
+        return rest.next();
+    }
+
+    @Override
+    public String getValue(String binding) {
+        return current.getValue(binding);
+    }
+
+    @Override
+    public String[] getValues() {
+        return current.getValues();
+    }
+
+    @Override
+    public String getValue(int column) {
+        return current.getValue(column);
+    }
+
+    @Override
+    public long getValueId(int column) {
+        return current.getValueId(column);
+    }
+
+    @Override
+    public void cancel() {
+        if(rest instanceof Cancellable) ((Cancellable) rest).cancel();
+    }
+
+}
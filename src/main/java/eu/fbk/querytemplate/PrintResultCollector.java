@@ -71,6 +71,11 @@ public class PrintResultCollector implements ResultCollector {
         pw.println("End level " + l);
     }
 
+    @Override
+    public void truncated(String reason) {
+        pw.println("Truncated: " + reason);
+    }
+
     @Override
     public void end() {
         pw.println("End");
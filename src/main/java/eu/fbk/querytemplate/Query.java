@@ -17,6 +17,7 @@
 
 package eu.fbk.querytemplate;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -30,4 +31,23 @@ public interface Query {
 
     Result perform(QueryExecutor executor, Map<String,String> args);
 
+    /**
+     * @param parameter template parameter.
+     * @return <code>true</code> if the template can be evaluated for many values of <code>parameter</code>
+     *         at once with {@link #performBatch(QueryExecutor, String, java.util.Collection)}.
+     */
+    boolean isBatchable(String parameter);
+
+    /**
+     * Evaluates the template once for all the given values of <code>parameter</code>.
+     * The returned result carries an additional binding named <code>parameter</code>
+     * reporting the value every row has been produced for.
+     *
+     * @param executor executor to be used.
+     * @param parameter template parameter.
+     * @param values values to be bound to <code>parameter</code>.
+     * @return the rows produced by all the values.
+     */
+    Result performBatch(QueryExecutor executor, String parameter, Collection<String> values);
+
 }
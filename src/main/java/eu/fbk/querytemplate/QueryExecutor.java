@@ -18,6 +18,9 @@
 package eu.fbk.querytemplate;
 
 import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.algebra.Op;
+
+import java.util.List;
 
 /**
  * @author Michele Mostarda (mostarda@fbk.eu)
@@ -25,4 +28,24 @@ import com.hp.hpl.jena.query.ResultSet;
 public interface QueryExecutor {
 
     ResultSet execSelect(String qry);
+
+    /**
+     * Evaluates an already compiled algebra expression, skipping parsing and compilation.
+     *
+     * @param op algebra expression.
+     * @param resultVars variables projected by <code>op</code>.
+     * @return the query result.
+     */
+    ResultSet execSelect(Op op, List<String> resultVars);
+
+    /**
+     * Evaluates an already compiled algebra expression returning a {@link Result},
+     * implementations can return results carrying value identifiers.
+     *
+     * @param op algebra expression.
+     * @param resultVars variables projected by <code>op</code>.
+     * @return the query result.
+     */
+    Result select(Op op, List<String> resultVars);
+
 }
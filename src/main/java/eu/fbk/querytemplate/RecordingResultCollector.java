@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * {@link ResultCollector} recording the received events, to be replayed later on another collector.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class RecordingResultCollector implements ResultCollector {
+
+    private enum Type {
+        VALUES, BEGIN, START_LEVEL, COLLECT, PIVOT, START_PROPERTY_PIVOT, END_PROPERTY_PIVOT, END_LEVEL, TRUNCATED, END
+    }
+
+    private static class Event {
+        final Type type;
+        final int level;
+        final String name;
+        final String[] bindings;
+        final String[] values;
+
+        Event(Type type, int level, String name, String[] bindings, String[] values) {
+            this.type = type;
+            this.level = level;
+            this.name = name;
+            this.bindings = bindings;
+            this.values = values;
+        }
+    }
+
+    private final List<Event> events = new ArrayList<>();
+
+    public boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * Replays all the recorded events, in the same order they have been received.
+     *
+     * @param target collector receiving the events.
+     */
+    public void replay(ResultCollector target) {
+        for(Event event : events) {
+            replay(event, target);
+        }
+    }
+
+    /**
+     * Replays the recorded events charging every row to its level in <code>budget</code>. Once the budget
+     * is exhausted the remaining rows of every open level are dropped, the levels are still closed.
+     *
+     * @param target collector receiving the events.
+     * @param budget budget charged with the replayed rows, if <code>null</code> all the events are replayed.
+     */
+    void replay(ResultCollector target, ExecutionBudget budget) {
+        if(budget == null) {
+            replay(target);
+            return;
+        }
+        final Deque<Integer> levels = new ArrayDeque<>();
+        // depth of the level whose remaining rows are dropped, -1 if none.
+        int skipped = -1;
+        for(Event event : events) {
+            switch (event.type) {
+                case START_LEVEL:
+                    levels.push(event.level);
+                    break;
+                case END_LEVEL:
+                    levels.pop();
+                    if(skipped > levels.size()) skipped = -1;
+                    break;
+                case VALUES:
+                    if(skipped == -1 && (budget.isExhausted() || !budget.countRow(levels.peek()))) {
+                        skipped = levels.size();
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if(skipped == -1) replay(event, target);
+        }
+    }
+
+    private void replay(Event event, ResultCollector target) {
+        switch (event.type) {
+            case VALUES:
+                target.values(event.values);
+                break;
+            case BEGIN:
+                target.begin();
+                break;
+            case START_LEVEL:
+                target.startLevel(event.level, event.name);
+                break;
+            case COLLECT:
+                target.collect(event.bindings, event.values);
+                break;
+            case PIVOT:
+                target.pivot(event.name);
+                break;
+            case START_PROPERTY_PIVOT:
+                target.startPropertyPivot(event.name);
+                break;
+            case END_PROPERTY_PIVOT:
+                target.endPropertyPivot(event.name);
+                break;
+            case END_LEVEL:
+                target.endLevel(event.level);
+                break;
+            case TRUNCATED:
+                target.truncated(event.name);
+                break;
+            case END:
+                target.end();
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    @Override
+    public void values(String[] values) {
+        events.add(new Event(Type.VALUES, -1, null, null, values));
+    }
+
+    @Override
+    public void begin() {
+        events.add(new Event(Type.BEGIN, -1, null, null, null));
+    }
+
+    @Override
+    public void startLevel(int l, String queryName) {
+        events.add(new Event(Type.START_LEVEL, l, queryName, null, null));
+    }
+
+    @Override
+    public void collect(String[] bindings, String[] values) {
+        events.add(new Event(Type.COLLECT, -1, null, bindings, values));
+    }
+
+    @Override
+    public void pivot(String name) {
+        events.add(new Event(Type.PIVOT, -1, name, null, null));
+    }
+
+    @Override
+    public void startPropertyPivot(String property) {
+        events.add(new Event(Type.START_PROPERTY_PIVOT, -1, property, null, null));
+    }
+
+    @Override
+    public void endPropertyPivot(String property) {
+        events.add(new Event(Type.END_PROPERTY_PIVOT, -1, property, null, null));
+    }
+
+    @Override
+    public void endLevel(int l) {
+        events.add(new Event(Type.END_LEVEL, l, null, null, null));
+    }
+
+    @Override
+    public void truncated(String reason) {
+        events.add(new Event(Type.TRUNCATED, -1, reason, null, null));
+    }
+
+    @Override
+    public void end() {
+        events.add(new Event(Type.END, -1, null, null, null));
+    }
+
+}
@@ -22,6 +22,11 @@ package eu.fbk.querytemplate;
  */
 public interface Result {
 
+    /**
+     * Returned by {@link #getValueId(int)} when the result does not carry dictionary IDs.
+     */
+    long NO_ID = -1;
+
     String[] getBindings();
 
     boolean next();
@@ -30,4 +35,19 @@ public interface Result {
 
     String[] getValues();
 
+    /**
+     * @param column index of the binding in {@link #getBindings()}.
+     * @return the value of <code>column</code> in the current row.
+     */
+    String getValue(int column);
+
+    /**
+     * Returns an identifier of the value of <code>column</code> in the current row without decoding it.
+     * Within the same result two values of a column are equal iff their identifiers are equal.
+     *
+     * @param column index of the binding in {@link #getBindings()}.
+     * @return the value identifier or {@link #NO_ID} if the result does not carry identifiers.
+     */
+    long getValueId(int column);
+
 }
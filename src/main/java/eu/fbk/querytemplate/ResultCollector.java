@@ -38,6 +38,14 @@ public interface ResultCollector {
 
     void endLevel(int l);
 
+    /**
+     * Notifies that the execution budget ran out and the collected output is partial.
+     * Invoked after all the open levels have been closed and before {@link #end()}.
+     *
+     * @param reason description of the exhausted budget.
+     */
+    void truncated(String reason);
+
     void end();
 
 }
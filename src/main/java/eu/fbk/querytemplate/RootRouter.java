@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fbk.querytemplate;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes the rows of a first level {@link Result}, evaluated once, to a fixed number of shard results
+ * consumed concurrently. The rows of a pivot go to the shard chosen by a {@link Partition},
+ * the child rows of a joined first level follow the row of their parent.
+ * Every shard buffers a bounded number of rows, so all the shards must be consumed at the same time.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class RootRouter {
+
+    /**
+     * Assigns the pivots to the shards.
+     */
+    interface Partition {
+
+        /**
+         * @return the shard of <code>pivot</code>, between <code>0</code> and the number of shards excluded.
+         */
+        int shard(String pivot);
+
+    }
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final String[] END = new String[0];
+
+    private final Result root;
+    private final int pivotColumn;
+    private final int markerColumn;
+    private final Partition partition;
+    private final BlockingQueue<String[]>[] queues;
+
+    private volatile boolean aborted;
+
+    /**
+     * @param pivotColumn column of the first level pivot.
+     * @param markerColumn column of the joined query marker, <code>-1</code> if the first level is not joined.
+     */
+    @SuppressWarnings("unchecked")
+    RootRouter(Result root, int pivotColumn, int markerColumn, Partition partition, int shards, int capacity) {
+        if(shards < 1) throw new IllegalArgumentException("Invalid number of shards.");
+        if(capacity < 1) throw new IllegalArgumentException("Invalid capacity.");
+        this.root = root;
+        this.pivotColumn = pivotColumn;
+        this.markerColumn = markerColumn;
+        this.partition = partition;
+        this.queues = new BlockingQueue[shards];
+        for(int i = 0; i < shards; i++) {
+            queues[i] = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    /**
+     * @return the rows of the first level routed to <code>shard</code>.
+     */
+    Result shard(int shard) {
+        return new ShardResult(root.getBindings(), queues[shard]);
+    }
+
+    /**
+     * Stops the routing, invoked when a shard stops consuming its rows.
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Reads the whole first level, blocking while the buffer of the target shard is full.
+     * The end of the rows is signalled to every shard also on failure, dropping the buffered rows.
+     */
+    void route() {
+        boolean routed = false;
+        try {
+            String lastPivot = null;
+            int shard = 0;
+            String[] values;
+            while(root.next()) {
+                values = root.getValues().clone();
+                if(markerColumn < 0 || values[markerColumn] != null) {
+                    final String pivot = values[pivotColumn];
+                    if(lastPivot == null || !lastPivot.equals(pivot)) {
+                        lastPivot = pivot;
+                        shard = partition.shard(pivot);
+                    }
+                }
+                put(queues[shard], values);
+            }
+            routed = true;
+        } finally {
+            for(BlockingQueue<String[]> queue : queues) {
+                end(queue, routed);
+            }
+        }
+    }
+
+    private void put(BlockingQueue<String[]> queue, String[] values) {
+        try {
+            while(!queue.offer(values, 100, TimeUnit.MILLISECONDS)) {
+                if(aborted) throw new IllegalStateException("Routing aborted.");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while routing.", ie);
+        }
+    }
+
+    private void end(BlockingQueue<String[]> queue, boolean routed) {
+        try {
+            while(routed && !aborted) {
+                if(queue.offer(END, 100, TimeUnit.MILLISECONDS)) return;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+        queue.offer(END);
+    }
+
+    /**
+     * {@link Result} reading the rows routed to a shard.
+     */
+    private static class ShardResult implements Result {
+
+        private final String[] bindings;
+        private final BlockingQueue<String[]> queue;
+
+        private String[] current;
+
+        ShardResult(String[] bindings, BlockingQueue<String[]> queue) {
+            this.bindings = bindings;
+            this.queue = queue;
+        }
+
+        @Override
+        public String[] getBindings() {
+            return bindings;
+        }
+
+        @Override
+        public boolean next() {
+            if(current == END) return false;
+            try {
+                current = queue.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading a shard.", ie);
+            }
+            return current != END;
+        }
+
+        @Override
+        public String getValue(String binding) {
+            for(int i = 0; i < bindings.length; i++) {
+                if(bindings[i].equals(binding)) return current[i];
+            }
+            throw new IllegalArgumentException("Unknown binding: " + binding);
+        }
+
+        @Override
+        public String[] getValues() {
+            return current;
+        }
+
+        @Override
+        public String getValue(int column) {
+            return current[column];
+        }
+
+        @Override
+        public long getValueId(int column) {
+            return NO_ID;
+        }
+    }
+
+}
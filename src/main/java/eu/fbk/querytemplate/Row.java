@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+/**
+ * Flyweight view of the current row of a result. A row instance is reused for all the rows of a result,
+ * so it is valid only during the callback receiving it.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public interface Row {
+
+    /**
+     * @return the bindings of the row, the array must not be modified.
+     */
+    String[] getBindings();
+
+    /**
+     * @return the column of <code>binding</code> or <code>-1</code> if the row does not contain it.
+     */
+    int indexOf(String binding);
+
+    String getValue(int column);
+
+    /**
+     * @return a copy of the row values, to be used when the row must be retained.
+     */
+    String[] getValues();
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+/**
+ * {@link ResultCollector} consuming the rows through the {@link Row} cursor, without requiring
+ * a value array per row. When a collector implements this interface {@link DefaultNestedQuery}
+ * invokes the row methods in place of {@link #values(String[])} and {@link #collect(String[], String[])}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public interface RowCollector extends ResultCollector {
+
+    void values(Row row);
+
+    void collect(Row row);
+
+}
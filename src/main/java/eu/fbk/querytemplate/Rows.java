@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link Row} implementations used by {@link DefaultNestedQuery}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class Rows {
+
+    private Rows(){}
+
+    /**
+     * Delivers the values of <code>row</code> to <code>collector</code>, copying them only
+     * if the collector does not support rows.
+     */
+    static void values(ResultCollector collector, Row row) {
+        if(collector instanceof RowCollector) {
+            ((RowCollector) collector).values(row);
+        } else {
+            collector.values(row.getValues());
+        }
+    }
+
+    /**
+     * Delivers <code>row</code> to <code>collector</code>, copying the values only
+     * if the collector does not support rows.
+     */
+    static void collect(ResultCollector collector, Row row) {
+        if(collector instanceof RowCollector) {
+            ((RowCollector) collector).collect(row);
+        } else {
+            collector.collect(row.getBindings(), row.getValues());
+        }
+    }
+
+    private static Map<String,Integer> index(String[] bindings) {
+        final Map<String,Integer> out = new HashMap<>();
+        for(int i = 0; i < bindings.length; i++) {
+            out.put(bindings[i], i);
+        }
+        return out;
+    }
+
+    private static int indexOf(Map<String,Integer> index, String binding) {
+        final Integer column = index.get(binding);
+        return column == null ? -1 : column;
+    }
+
+    /**
+     * View of the current row of a {@link Result}, values are read from the result on demand.
+     */
+    static class ResultRow implements Row {
+
+        private final Result result;
+        private final String[] bindings;
+        private final Map<String,Integer> index;
+
+        ResultRow(Result result) {
+            this.result = result;
+            this.bindings = result.getBindings();
+            this.index = index(bindings);
+        }
+
+        @Override
+        public String[] getBindings() {
+            return bindings;
+        }
+
+        @Override
+        public int indexOf(String binding) {
+            return Rows.indexOf(index, binding);
+        }
+
+        @Override
+        public String getValue(int column) {
+            return result.getValue(column);
+        }
+
+        @Override
+        public String[] getValues() {
+            return result.getValues();
+        }
+
+        long getValueId(int column) {
+            return result.getValueId(column);
+        }
+    }
+
+    /**
+     * View over buffered value arrays sharing the same bindings.
+     */
+    static class ArrayRow implements Row {
+
+        private final String[] bindings;
+        private final Map<String,Integer> index;
+
+        private String[] values;
+
+        ArrayRow(String[] bindings) {
+            this.bindings = bindings;
+            this.index = index(bindings);
+        }
+
+        ArrayRow set(String[] values) {
+            if(values.length != bindings.length) throw new IllegalArgumentException();
+            this.values = values;
+            return this;
+        }
+
+        @Override
+        public String[] getBindings() {
+            return bindings;
+        }
+
+        @Override
+        public int indexOf(String binding) {
+            return Rows.indexOf(index, binding);
+        }
+
+        @Override
+        public String getValue(int column) {
+            return values[column];
+        }
+
+        /**
+         * Buffered arrays are never modified, so they are returned without copying.
+         */
+        @Override
+        public String[] getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * View of a row extended with an additional binding, used to expand property pivots.
+     */
+    static class ExtendedRow implements Row {
+
+        private final Row base;
+        private final String[] bindings;
+        private final Map<String,Integer> index;
+
+        private String value;
+
+        ExtendedRow(Row base, String binding) {
+            final String[] baseBindings = base.getBindings();
+            this.base = base;
+            this.bindings = new String[baseBindings.length + 1];
+            System.arraycopy(baseBindings, 0, bindings, 0, baseBindings.length);
+            bindings[baseBindings.length] = binding;
+            this.index = index(bindings);
+        }
+
+        ExtendedRow set(String value) {
+            this.value = value;
+            return this;
+        }
+
+        @Override
+        public String[] getBindings() {
+            return bindings;
+        }
+
+        @Override
+        public int indexOf(String binding) {
+            return Rows.indexOf(index, binding);
+        }
+
+        @Override
+        public String getValue(int column) {
+            return column == bindings.length - 1 ? value : base.getValue(column);
+        }
+
+        @Override
+        public String[] getValues() {
+            final String[] out = new String[bindings.length];
+            for(int i = 0; i < out.length; i++) {
+                out[i] = getValue(i);
+            }
+            return out;
+        }
+    }
+
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.rdfhdt.hdt.dictionary.Dictionary;
+import org.rdfhdt.hdt.enums.TripleComponentRole;
+import org.rdfhdt.hdt.hdt.HDT;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the JSON output of a {@link DefaultNestedQuery} to a gzip file in parallel.
+ * The pivots of the first level are partitioned in ranges of HDT subject identifiers, every range is
+ * exported by its own thread and {@link JSONResultCollector} to a gzip member, then the members are
+ * concatenated between a header and a footer member into a single gzip stream of a well-formed document.
+ * The document is equal to the one of a sequential execution except for the order of the first level pivots.
+ * The first level query is evaluated once by the calling thread, which routes every row to the shard of its pivot,
+ * so there is one shard per thread. The child levels are evaluated by the shards,
+ * the {@link QueryExecutor} must support concurrent queries.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class ShardedExport {
+
+    private final HDT hdt;
+    private final DefaultNestedQuery nestedQuery;
+    private final String fieldValue;
+    private final JsonFactory factory = new JsonFactory();
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param hdt dataset whose subject identifiers partition the pivots.
+     * @param nestedQuery exported query.
+     * @param fieldValue field and value bindings, see {@link JSONResultCollector}.
+     */
+    public ShardedExport(HDT hdt, DefaultNestedQuery nestedQuery, String fieldValue) {
+        if(hdt == null) throw new IllegalArgumentException("Invalid HDT.");
+        if(nestedQuery == null) throw new IllegalArgumentException("Invalid nested query.");
+        this.hdt = hdt;
+        this.nestedQuery = nestedQuery;
+        this.fieldValue = fieldValue;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of shards, all of them exported concurrently.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism < 1) throw new IllegalArgumentException("Invalid parallelism.");
+        this.parallelism = parallelism;
+    }
+
+    public void export(final QueryExecutor executor, final Map<String,String> args, File output) throws IOException {
+        final Dictionary dictionary = hdt.getDictionary();
+        final long subjects = dictionary.getNsubjects();
+        final int count = (int) Math.max(1, Math.min(parallelism, subjects));
+        final RootRouter router = nestedQuery.route(
+                executor, args,
+                new RootRouter.Partition() {
+                    @Override
+                    public int shard(String pivot) {
+                        return ShardedExport.shard(dictionary, subjects, count, pivot);
+                    }
+                },
+                count
+        );
+        final List<File> parts = new ArrayList<>();
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                count, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("sharded-export-%d").build()
+        );
+        try {
+            final List<Future<Boolean>> futures = new ArrayList<>();
+            for(int i = 0; i < count; i++) {
+                final int shard = i;
+                final File part = File.createTempFile("shard-" + i + "-", ".json.gz");
+                parts.add(part);
+                futures.add(
+                        pool.submit(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() throws IOException {
+                                return exportShard(executor, args, router, shard, part);
+                            }
+                        })
+                );
+            }
+            RuntimeException routing = null;
+            try {
+                router.route();
+            } catch (RuntimeException re) {
+                routing = re;
+            }
+            final boolean[] filled = new boolean[count];
+            for(int i = 0; i < count; i++) {
+                filled[i] = get(futures.get(i));
+            }
+            if(routing != null) throw routing;
+            try (FileOutputStream os = new FileOutputStream(output)) {
+                final FileChannel channel = os.getChannel();
+                writeMember(os, header());
+                boolean first = true;
+                for(int i = 0; i < count; i++) {
+                    if(!filled[i]) continue;
+                    if(!first) writeMember(os, new byte[] {','});
+                    first = false;
+                    try (FileChannel in = new FileInputStream(parts.get(i)).getChannel()) {
+                        for(long position = 0; position < in.size();) {
+                            position += in.transferTo(position, in.size() - position, channel);
+                        }
+                    }
+                }
+                writeMember(os, new byte[] {'}', '}'});
+            }
+        } finally {
+            pool.shutdownNow();
+            for(File part : parts) part.delete();
+        }
+    }
+
+    /**
+     * @return the shard of the subject range containing <code>pivot</code>, pivots that are
+     *         not subjects belong to the first shard.
+     */
+    private static int shard(Dictionary dictionary, long subjects, int count, String pivot) {
+        if(pivot == null) return 0;
+        final long id = dictionary.stringToId(pivot, TripleComponentRole.SUBJECT);
+        return id <= 0 ? 0 : (int) ((id - 1) * count / subjects);
+    }
+
+    /**
+     * @return <code>true</code> if the shard contains at least one pivot.
+     */
+    private boolean exportShard(
+            QueryExecutor executor, Map<String,String> args, RootRouter router, int shard, File part
+    ) throws IOException {
+        final int prefix = header().length;
+        final FragmentOutputStream fragment = new FragmentOutputStream(
+                new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(part))), prefix
+        );
+        boolean exported = false;
+        try {
+            final JsonGenerator generator = factory.createJsonGenerator(fragment, JsonEncoding.UTF8);
+            nestedQuery.executeNestedQuery(
+                    executor, new JSONResultCollector(generator, fieldValue), args, null, 1, null, router.shard(shard)
+            );
+            generator.flush();
+            exported = true;
+        } finally {
+            if(!exported) router.abort();
+            fragment.close();
+        }
+        return fragment.hasContent();
+    }
+
+    /**
+     * @return the start of the document up to the object of the first level, <code>{"name":{</code>.
+     */
+    private byte[] header() throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final JsonGenerator generator = factory.createJsonGenerator(buffer, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeFieldName(nestedQuery.getName(0));
+        generator.writeStartObject();
+        generator.flush();
+        return buffer.toByteArray();
+    }
+
+    private void writeMember(OutputStream os, byte[] data) throws IOException {
+        final GZIPOutputStream member = new GZIPOutputStream(
+                new FilterOutputStream(os) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                }
+        );
+        member.write(data);
+        member.close();
+    }
+
+    private boolean get(Future<Boolean> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while exporting.", ie);
+        } catch (ExecutionException ee) {
+            if(ee.getCause() instanceof IOException) throw (IOException) ee.getCause();
+            if(ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            throw new RuntimeException("Error while exporting shard.", ee.getCause());
+        }
+    }
+
+    /**
+     * Strips the first level and document objects from a {@link JSONResultCollector} output,
+     * dropping the first <code>prefix</code> bytes and the two closing brackets.
+     */
+    private static class FragmentOutputStream extends FilterOutputStream {
+
+        private final byte[] tail = new byte[2];
+        private long skip;
+        private int tailSize;
+        private boolean content;
+
+        FragmentOutputStream(OutputStream out, int prefix) {
+            super(out);
+            this.skip = prefix;
+        }
+
+        boolean hasContent() {
+            return content;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(skip > 0) {
+                skip--;
+                return;
+            }
+            if(tailSize == tail.length) {
+                out.write(tail[0]);
+                content = true;
+                tail[0] = tail[1];
+                tailSize--;
+            }
+            tail[tailSize++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final int skipped = (int) Math.min(skip, len);
+            skip -= skipped;
+            off += skipped;
+            len -= skipped;
+            if(len <= tail.length) {
+                for(int i = 0; i < len; i++) write(b[off + i]);
+                return;
+            }
+            if(tailSize > 0) {
+                out.write(tail, 0, tailSize);
+                content = true;
+            }
+            out.write(b, off, len - tail.length);
+            content = true;
+            System.arraycopy(b, off + len - tail.length, tail, 0, tail.length);
+            tailSize = tail.length;
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+/**
+ * {@link Result} skipping the rows up to the group of a given pivot value included,
+ * used to resume an execution after the last completed pivot.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class SkippingResult implements Result {
+
+    private final Result result;
+    private final int pivotColumn;
+    private final String lastPivot;
+
+    private boolean skipped;
+
+    /**
+     * @param pivotColumn column of the pivot, whose rows must be contiguous.
+     * @param lastPivot last pivot value to be skipped.
+     */
+    SkippingResult(Result result, int pivotColumn, String lastPivot) {
+        this.result = result;
+        this.pivotColumn = pivotColumn;
+        this.lastPivot = lastPivot;
+    }
+
+    @Override
+    public String[] getBindings() {
+        return result.getBindings();
+    }
+
+    /**
+     * @throws IllegalStateException if the last pivot value does not occur in the result.
+     */
+    @Override
+    public boolean next() {
+        if(skipped) return result.next();
+        boolean found = false;
+        while(result.next()) {
+            if(lastPivot.equals(result.getValue(pivotColumn))) {
+                found = true;
+            } else if(found) {
+                skipped = true;
+                return true;
+            }
+        }
+        if(!found) throw new IllegalStateException(String.format("Pivot [%s] not found in result.", lastPivot));
+        skipped = true;
+        return false;
+    }
+
+    @Override
+    public String getValue(String binding) {
+        return result.getValue(binding);
+    }
+
+    @Override
+    public String[] getValues() {
+        return result.getValues();
+    }
+
+    @Override
+    public String getValue(int column) {
+        return result.getValue(column);
+    }
+
+    @Override
+    public long getValueId(int column) {
+        return result.getValueId(column);
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link JSONResultCollector} writing the binary Smile encoding of the JSON output.
+ * Property names and short string values are written once and then back-referenced,
+ * so repeated property URIs and values are encoded in a couple of bytes.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class SmileResultCollector extends JSONResultCollector {
+
+    /**
+     * @param os Smile output, flushed at the end of the collection.
+     * @param fieldValue field and value bindings, see {@link JSONResultCollector}.
+     */
+    public SmileResultCollector(OutputStream os, String fieldValue) {
+        super(createGenerator(os), fieldValue);
+    }
+
+    /**
+     * @return a Smile generator with header and shared names and string values enabled.
+     */
+    public static JsonGenerator createGenerator(OutputStream os) {
+        final SmileFactory factory = new SmileFactory();
+        factory.configure(SmileGenerator.Feature.WRITE_HEADER, true);
+        factory.configure(SmileGenerator.Feature.CHECK_SHARED_NAMES, true);
+        factory.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+        try {
+            return factory.createJsonGenerator(os);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error while creating Smile generator.", ioe);
+        }
+    }
+
+}
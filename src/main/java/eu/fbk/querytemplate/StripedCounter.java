@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated by many threads with low contention, every thread hits a cell of its own cache line.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+class StripedCounter {
+
+    /**
+     * Distance in longs between two cells, to avoid false sharing.
+     */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter() {
+        final int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+        cells = new AtomicLongArray(stripes * PAD);
+        mask = stripes - 1;
+    }
+
+    void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    long sum() {
+        long out = 0;
+        for(int i = 0; i < cells.length(); i += PAD) {
+            out += cells.get(i);
+        }
+        return out;
+    }
+
+    void reset() {
+        for(int i = 0; i < cells.length(); i += PAD) {
+            cells.set(i, 0);
+        }
+    }
+
+    private int index() {
+        final long id = Thread.currentThread().getId();
+        final int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & mask) * PAD;
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.AsyncChannelOutputStream}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class AsyncChannelOutputStreamTest {
+
+    @Test
+    public void testWrite() throws IOException {
+        final byte[] data = createData(1000 * 1000);
+        final File file = File.createTempFile("async-output", ".bin");
+        try {
+            final AsyncChannelOutputStream os = new AsyncChannelOutputStream(file, 4096, 3);
+            for(int i = 0; i < data.length;) {
+                final int chunk = Math.min(data.length - i, 1 + i % 10007);
+                os.write(data, i, chunk);
+                i += chunk;
+            }
+            os.close();
+            Assert.assertEquals(data.length, os.getWrittenBytes());
+            Assert.assertTrue(os.getBlockedNanos() >= 0);
+            Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(file.toPath())));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFlush() throws IOException {
+        final File file = File.createTempFile("async-output", ".bin");
+        try {
+            final AsyncChannelOutputStream os = new AsyncChannelOutputStream(file, 16, 2);
+            for(int i = 0; i < 10; i++) {
+                os.write('a' + i);
+            }
+            os.flush();
+            Assert.assertEquals(10, os.getWrittenBytes());
+            Assert.assertEquals("abcdefghij", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+            os.close();
+            try {
+                os.write('x');
+                Assert.fail("Expected IOException.");
+            } catch (IOException ioe) {
+                // Expected.
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGZIPPipeline() throws IOException {
+        final byte[] data = createData(200 * 1000);
+        final File file = File.createTempFile("async-output", ".gz");
+        try {
+            final AsyncChannelOutputStream async = new AsyncChannelOutputStream(file, 8192, 2);
+            final GZIPOutputStream os = new GZIPOutputStream(async);
+            os.write(data);
+            os.close();
+            Assert.assertEquals(file.length(), async.getWrittenBytes());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        new Random(11).nextBytes(data);
+        return data;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.query.ResultSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.CachingQueryExecutor}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class CachingQueryExecutorTest {
+
+    private static final String ARTICLE =
+            "SELECT ?p ?o {<http://dblp.l3s.de/d2r/resource/publications/journals/ac/BinkleyG96> ?p ?o}";
+
+    @Test
+    public void testReplay() throws IOException {
+        final File hdtFile = new File("hdt-data/dblp-2012-11-28.hdt.gz");
+        final QueryExecutor delegate = new DefaultQueryExecutor(hdtFile);
+        final CachingQueryExecutor executor =
+                new CachingQueryExecutor(delegate, CachingQueryExecutor.fingerprint(hdtFile), 10000, 100);
+
+        final List<String> expected = toRows(delegate.execSelect(ARTICLE));
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, toRows(executor.execSelect(ARTICLE)));
+        Assert.assertEquals(expected, toRows(executor.execSelect(ARTICLE)));
+        Assert.assertEquals(expected, toRows(executor.execSelect(ARTICLE)));
+        Assert.assertEquals(1, executor.getStats().missCount());
+        Assert.assertEquals(2, executor.getStats().hitCount());
+
+        final CachingQueryExecutor other = new CachingQueryExecutor(delegate, "other", executor);
+        Assert.assertEquals(expected, toRows(other.execSelect(ARTICLE)));
+        Assert.assertEquals(2, executor.getStats().missCount());
+    }
+
+    @Test
+    public void testLargeResultNotCached() throws IOException {
+        final File hdtFile = new File("hdt-data/dblp-2012-11-28.hdt.gz");
+        final QueryExecutor delegate = new DefaultQueryExecutor(hdtFile);
+        final CachingQueryExecutor executor =
+                new CachingQueryExecutor(delegate, CachingQueryExecutor.fingerprint(hdtFile), 10000, 2);
+
+        final List<String> expected = toRows(delegate.execSelect(ARTICLE));
+        Assert.assertTrue(expected.size() > 2);
+        Assert.assertEquals(expected, toRows(executor.execSelect(ARTICLE)));
+        Assert.assertEquals(expected, toRows(executor.execSelect(ARTICLE)));
+        Assert.assertEquals(0, executor.getStats().hitCount());
+    }
+
+    @Test
+    public void testLargeResultCancellable() throws IOException {
+        final File hdtFile = new File("hdt-data/dblp-2012-11-28.hdt.gz");
+        final CachingQueryExecutor executor = new CachingQueryExecutor(
+                new DefaultQueryExecutor(hdtFile), CachingQueryExecutor.fingerprint(hdtFile), 10000, 2
+        );
+        final ResultSet rs = executor.execSelect(ARTICLE);
+        Assert.assertTrue(rs instanceof Cancellable);
+        ((Cancellable) rs).cancel();
+    }
+
+    @Test
+    public void testSelectKeepsIds() throws IOException {
+        final File hdtFile = new File("hdt-data/dblp-2012-11-28.hdt.gz");
+        final QueryExecutor delegate = new HDTQueryExecutor(hdtFile);
+        final Query query = new ParameterizedQuery("SELECT ?p ?o {<$Article> ?p ?o}");
+        final Map<String,String> args = Collections.singletonMap(
+                "Article", "http://dblp.l3s.de/d2r/resource/publications/journals/ac/BinkleyG96"
+        );
+        final List<String> expected = toIdRows(query.perform(delegate, args));
+        Assert.assertFalse(expected.isEmpty());
+
+        final CachingQueryExecutor executor =
+                new CachingQueryExecutor(delegate, CachingQueryExecutor.fingerprint(hdtFile), 10000, 100);
+        Assert.assertEquals(expected, toIdRows(query.perform(executor, args)));
+        Assert.assertEquals(expected, toIdRows(query.perform(executor, args)));
+        Assert.assertEquals(1, executor.getStats().hitCount());
+
+        final CachingQueryExecutor streaming =
+                new CachingQueryExecutor(delegate, CachingQueryExecutor.fingerprint(hdtFile), 10000, 2);
+        final Result large = query.perform(streaming, args);
+        Assert.assertTrue(large instanceof Cancellable);
+        Assert.assertEquals(expected, toIdRows(large));
+    }
+
+    private List<String> toIdRows(Result result) {
+        final List<String> out = new ArrayList<>();
+        while(result.next()) {
+            Assert.assertTrue(result.getValueId(0) != Result.NO_ID);
+            out.add(String.format(
+                    "%d %s %d %s", result.getValueId(0), result.getValue(0), result.getValueId(1), result.getValue(1)
+            ));
+        }
+        return out;
+    }
+
+    private List<String> toRows(ResultSet rs) {
+        final List<String> out = new ArrayList<>();
+        final Result result = new DefaultResult(rs);
+        while(result.next()) {
+            out.add(result.getValue("p") + ' ' + result.getValue("o"));
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import eu.fbk.JSONUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.CheckpointedExport}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class CheckpointedExportTest {
+
+    @Test
+    public void testExportResumed() throws IOException {
+        final File output = File.createTempFile("export", ".json.gz");
+        final File checkpoint = new File(output.getPath() + ".checkpoint");
+        final DefaultQueryExecutor executor = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+        final CheckpointedExport export = new CheckpointedExport(createQuery(), output, checkpoint, "p:o");
+        export.setPivotsPerMember(10);
+        try {
+            export.export(new FailingQueryExecutor(executor, 35), createArgs());
+            Assert.fail("Expected failure.");
+        } catch (IllegalStateException ise) {
+            // Expected.
+        }
+        Assert.assertFalse(export.isComplete());
+
+        export.export(executor, createArgs());
+        Assert.assertTrue(export.isComplete());
+        Assert.assertEquals(
+                JSONUtils.parseJSON(this.getClass().getResourceAsStream("nested-query1-result.json")),
+                JSONUtils.parseJSON(new GZIPInputStream(new FileInputStream(output)))
+        );
+        output.delete();
+        checkpoint.delete();
+    }
+
+    private DefaultNestedQuery createQuery() {
+        final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
+        nestedQuery.addQuery(
+                "articles",
+                new ParameterizedQuery("SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 100"),
+                "Article"
+        );
+        nestedQuery.addQuery(
+                "agents",
+                new ParameterizedQuery(
+                        "SELECT * {?Agent a <http://xmlns.com/foaf/0.1/Agent>. <$Article> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                ),
+                "Agent"
+        );
+        return nestedQuery;
+    }
+
+    private Map<String,String> createArgs() {
+        final Map<String,String> args = new HashMap<>();
+        args.put("Type", "http://swrc.ontoware.org/ontology#Article");
+        return args;
+    }
+
+    /**
+     * Fails after a number of queries, simulating a crash.
+     */
+    private static class FailingQueryExecutor implements QueryExecutor {
+
+        private final QueryExecutor delegate;
+        private int remaining;
+
+        FailingQueryExecutor(QueryExecutor delegate, int queries) {
+            this.delegate = delegate;
+            this.remaining = queries;
+        }
+
+        @Override
+        public ResultSet execSelect(String qry) {
+            check();
+            return delegate.execSelect(qry);
+        }
+
+        @Override
+        public ResultSet execSelect(Op op, List<String> resultVars) {
+            check();
+            return delegate.execSelect(op, resultVars);
+        }
+
+        @Override
+        public Result select(Op op, List<String> resultVars) {
+            check();
+            return delegate.select(op, resultVars);
+        }
+
+        private void check() {
+            if(remaining-- == 0) throw new IllegalStateException("Simulated failure.");
+        }
+    }
+
+}
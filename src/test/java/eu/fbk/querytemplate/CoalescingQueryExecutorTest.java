@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.CoalescingQueryExecutor}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class CoalescingQueryExecutorTest {
+
+    private static final String ARTICLE =
+            "SELECT ?p ?o {<http://dblp.l3s.de/d2r/resource/publications/journals/ac/BinkleyG96> ?p ?o}";
+
+    private static final int THREADS = 4;
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final QueryExecutor delegate = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+        final List<String> expected = toRows(delegate.execSelect(ARTICLE));
+        final GatedQueryExecutor gated = new GatedQueryExecutor(delegate);
+        final CoalescingQueryExecutor executor = new CoalescingQueryExecutor(gated);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<List<String>>> runs = new ArrayList<>();
+            for(int i = 0; i < THREADS; i++) {
+                runs.add(pool.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        return toRows(executor.execSelect(ARTICLE));
+                    }
+                }));
+            }
+            while(executor.getSavedExecutions() < THREADS - 1) {
+                Thread.sleep(1);
+            }
+            gated.gate.countDown();
+            for(Future<List<String>> run : runs) {
+                Assert.assertEquals(expected, run.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(1, executor.getExecutions());
+        Assert.assertEquals(THREADS - 1, executor.getSavedExecutions());
+
+        Assert.assertEquals(expected, toRows(executor.execSelect(ARTICLE)));
+        Assert.assertEquals(2, executor.getExecutions());
+    }
+
+    @Test
+    public void testFailureShared() throws Exception {
+        final GatedQueryExecutor gated = new GatedQueryExecutor(
+                new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"))
+        );
+        final CoalescingQueryExecutor executor = new CoalescingQueryExecutor(gated);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<Exception>> runs = new ArrayList<>();
+            for(int i = 0; i < 2; i++) {
+                runs.add(pool.submit(new Callable<Exception>() {
+                    @Override
+                    public Exception call() {
+                        try {
+                            executor.execSelect("SELECT ?p ?o {");
+                            return null;
+                        } catch (IllegalStateException ise) {
+                            return ise;
+                        }
+                    }
+                }));
+            }
+            while(executor.getSavedExecutions() < 1) {
+                Thread.sleep(1);
+            }
+            gated.gate.countDown();
+            final Exception failure = runs.get(0).get();
+            Assert.assertNotNull(failure);
+            Assert.assertSame(failure, runs.get(1).get());
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(1, executor.getExecutions());
+        Assert.assertEquals(1, executor.getSavedExecutions());
+    }
+
+    @Test
+    public void testMaxRowsExceeded() throws Exception {
+        final QueryExecutor delegate = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+        final List<String> expected = toRows(delegate.execSelect(ARTICLE));
+        Assert.assertTrue(expected.size() > 1);
+        final GatedQueryExecutor gated = new GatedQueryExecutor(delegate);
+        final CoalescingQueryExecutor executor = new CoalescingQueryExecutor(gated, 1);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<List<String>>> runs = new ArrayList<>();
+            for(int i = 0; i < 2; i++) {
+                runs.add(pool.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        return toRows(executor.execSelect(ARTICLE));
+                    }
+                }));
+            }
+            while(executor.getSavedExecutions() < 1) {
+                Thread.sleep(1);
+            }
+            gated.gate.countDown();
+            for(Future<List<String>> run : runs) {
+                Assert.assertEquals(expected, run.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(2, executor.getExecutions());
+        Assert.assertEquals(0, executor.getSavedExecutions());
+    }
+
+    @Test
+    public void testMaxRowsExceededCancellable() throws IOException {
+        final CoalescingQueryExecutor executor = new CoalescingQueryExecutor(
+                new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz")), 1
+        );
+        final ResultSet rs = executor.execSelect(ARTICLE);
+        Assert.assertTrue(rs instanceof Cancellable);
+        Assert.assertTrue(rs.hasNext());
+        ((Cancellable) rs).cancel();
+    }
+
+    @Test
+    public void testSelectSharesIds() throws Exception {
+        final QueryExecutor delegate = new HDTQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+        final Query query = new ParameterizedQuery("SELECT ?p ?o {<$Article> ?p ?o}");
+        final Map<String,String> args = Collections.singletonMap(
+                "Article", "http://dblp.l3s.de/d2r/resource/publications/journals/ac/BinkleyG96"
+        );
+        final List<String> expected = toIdRows(query.perform(delegate, args));
+        final GatedQueryExecutor gated = new GatedQueryExecutor(delegate);
+        final CoalescingQueryExecutor executor = new CoalescingQueryExecutor(gated);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<List<String>>> runs = new ArrayList<>();
+            for(int i = 0; i < 2; i++) {
+                runs.add(pool.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        return toIdRows(query.perform(executor, args));
+                    }
+                }));
+            }
+            while(executor.getSavedExecutions() < 1) {
+                Thread.sleep(1);
+            }
+            gated.gate.countDown();
+            for(Future<List<String>> run : runs) {
+                Assert.assertEquals(expected, run.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(1, executor.getExecutions());
+        Assert.assertEquals(1, executor.getSavedExecutions());
+    }
+
+    private List<String> toIdRows(Result result) {
+        final List<String> out = new ArrayList<>();
+        while(result.next()) {
+            Assert.assertTrue(result.getValueId(0) != Result.NO_ID);
+            out.add(String.format(
+                    "%d %s %d %s", result.getValueId(0), result.getValue(0), result.getValueId(1), result.getValue(1)
+            ));
+        }
+        return out;
+    }
+
+    private List<String> toRows(ResultSet rs) {
+        final List<String> out = new ArrayList<>();
+        final Result result = new DefaultResult(rs);
+        while(result.next()) {
+            out.add(result.getValue("p") + ' ' + result.getValue("o"));
+        }
+        return out;
+    }
+
+    /**
+     * Holds the queries until the gate is opened.
+     */
+    private static class GatedQueryExecutor implements QueryExecutor {
+
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        private final QueryExecutor delegate;
+
+        GatedQueryExecutor(QueryExecutor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ResultSet execSelect(String qry) {
+            await();
+            return delegate.execSelect(qry);
+        }
+
+        @Override
+        public ResultSet execSelect(Op op, List<String> resultVars) {
+            await();
+            return delegate.execSelect(op, resultVars);
+        }
+
+        @Override
+        public Result select(Op op, List<String> resultVars) {
+            await();
+            return delegate.select(op, resultVars);
+        }
+
+        private void await() {
+            try {
+                gate.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ie);
+            }
+        }
+    }
+
+}
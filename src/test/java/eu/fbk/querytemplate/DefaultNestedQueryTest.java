@@ -17,9 +17,13 @@
 
 package eu.fbk.querytemplate;
 
+import com.google.common.cache.CacheStats;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.algebra.Op;
 import eu.fbk.JSONUtils;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -31,7 +35,16 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -39,6 +52,11 @@ import java.util.zip.GZIPOutputStream;
  */
 public class DefaultNestedQueryTest {
 
+    /**
+     * System property rewriting the expected results from the actual ones, see {@link #assertExpected}.
+     */
+    private static final String REGENERATE = "querytemplate.regenerate";
+
     @Test
     public void testArticleAgentSysOut() throws IOException {
         PrintWriter pw = new PrintWriter(System.out);
@@ -53,12 +71,228 @@ public class DefaultNestedQueryTest {
         processArticleAgentQuery(new JSONResultCollector(generator, "p:o"), 100);
         generator.flush();
 
+        assertExpected("nested-query1-result.json", baos.toString());
+    }
+
+    @Test
+    public void testArticleAgentJSONLimitBatched() throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final JsonGenerator generator = factory.createJsonGenerator(new OutputStreamWriter(baos));
+        processArticleAgentQuery(new JSONResultCollector(generator, "p:o"), 100, 16, 1);
+        generator.flush();
+
         Assert.assertEquals(
                 JSONUtils.parseJSON(this.getClass().getResourceAsStream("nested-query1-result.json")),
                 JSONUtils.parseJSON(baos.toString())
         );
     }
 
+    @Test
+    public void testArticleAgentJSONLimitParallel() throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        final JsonGenerator sequentialGenerator = factory.createJsonGenerator(new OutputStreamWriter(sequential));
+        processArticleAgentQuery(new JSONResultCollector(sequentialGenerator, "p:o"), 100, 1, 1);
+        sequentialGenerator.flush();
+
+        final ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        final JsonGenerator parallelGenerator = factory.createJsonGenerator(new OutputStreamWriter(parallel));
+        processArticleAgentQuery(new JSONResultCollector(parallelGenerator, "p:o"), 100, 1, 4);
+        parallelGenerator.flush();
+
+        Assert.assertEquals(sequential.toString(), parallel.toString());
+    }
+
+    @Test
+    public void testArticleAgentJSONLimitSharedPool() throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        final JsonGenerator sequentialGenerator = factory.createJsonGenerator(new OutputStreamWriter(sequential));
+        processArticleAgentQuery(new JSONResultCollector(sequentialGenerator, "p:o"), 100, 1, 1);
+        sequentialGenerator.flush();
+
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            final JsonGenerator parallelGenerator = factory.createJsonGenerator(new OutputStreamWriter(parallel));
+            final DefaultNestedQuery nestedQuery = createArticleAgentQuery(100);
+            nestedQuery.setParallelism(4, pool);
+            nestedQuery.executeNestedQuery(
+                    new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz")),
+                    new JSONResultCollector(parallelGenerator, "p:o"),
+                    new HashMap<String, String>(){{ put("Type", "http://swrc.ontoware.org/ontology#Article"); }}
+            );
+            parallelGenerator.flush();
+            nestedQuery.close();
+            Assert.assertFalse(pool.isShutdown());
+            Assert.assertEquals(sequential.toString(), parallel.toString());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testClose() {
+        final DefaultNestedQuery nestedQuery = createArticleAgentQuery(100);
+        nestedQuery.setParallelism(2);
+        Assert.assertEquals(2, nestedQuery.getParallelism());
+        nestedQuery.close();
+        Assert.assertEquals(1, nestedQuery.getParallelism());
+    }
+
+    @Test
+    public void testArticleAgentJSONLimitConcurrent() throws Exception {
+        final DefaultNestedQuery nestedQuery = createArticleAgentQuery(100);
+        final QueryExecutor executor = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+        final Map<String,String> args = new HashMap<>();
+        args.put("Type", "http://swrc.ontoware.org/ontology#Article");
+        final RecordingResultCollector sequential = new RecordingResultCollector();
+        nestedQuery.executeNestedQuery(executor, sequential, args);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<RecordingResultCollector>> runs = new ArrayList<>();
+            for(int i = 0; i < 8; i++) {
+                runs.add(pool.submit(new Callable<RecordingResultCollector>() {
+                    @Override
+                    public RecordingResultCollector call() {
+                        final RecordingResultCollector collector = new RecordingResultCollector();
+                        nestedQuery.executeNestedQuery(executor, collector, args);
+                        return collector;
+                    }
+                }));
+            }
+            for(Future<RecordingResultCollector> run : runs) {
+                Assert.assertEquals(print(sequential), print(run.get()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testArticleAgentSampledParallel() throws IOException {
+        final RecordingResultCollector sequential = new RecordingResultCollector();
+        processArticleAgentPublicationSampledQuery(sequential, 1);
+        final RecordingResultCollector parallel = new RecordingResultCollector();
+        processArticleAgentPublicationSampledQuery(parallel, 4);
+        final int expanded = count(print(sequential), "Start level 2");
+        Assert.assertTrue(expanded > 0);
+        Assert.assertEquals(expanded, count(print(parallel), "Start level 2"));
+    }
+
+    @Test
+    public void testArticleAgentJSONLimitJoined() throws IOException {
+        final String template = "SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 100";
+        final String nested = processArticleAgentJoinedQuery(template, false);
+        final String joined = processArticleAgentJoinedQuery(template, true);
+        Assert.assertEquals(nested, joined);
+        Assert.assertEquals(
+                JSONUtils.parseJSON(this.getClass().getResourceAsStream("nested-query1-result.json")),
+                JSONUtils.parseJSON(joined)
+        );
+    }
+
+    /**
+     * The child template is evaluated once for all the pivots of the parent, not once per parent row.
+     */
+    @Test
+    public void testArticleAgentJoinedQueries() throws IOException {
+        final String template = "SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 100";
+        final CountingQueryExecutor executor =
+                new CountingQueryExecutor(new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz")));
+        Assert.assertEquals(
+                processArticleAgentJoinedQuery(template, false),
+                processArticleAgentJoinedQuery(template, true, executor)
+        );
+        Assert.assertEquals(2, executor.selects.get());
+    }
+
+    /**
+     * Parent rows not ordered by pivot must keep their order and expand the pivot at every change.
+     */
+    @Test
+    public void testArticleAgentJSONLimitJoinedUnordered() throws IOException {
+        final String template = "SELECT * {?Article a <$Type>. ?Article ?p ?o } ORDER BY DESC(?p) LIMIT 100";
+        Assert.assertEquals(
+                processArticleAgentJoinedQuery(template, false),
+                processArticleAgentJoinedQuery(template, true)
+        );
+    }
+
+    @Test
+    public void testArticleAgentJSONLimitCached() throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final ByteArrayOutputStream uncached = new ByteArrayOutputStream();
+        final JsonGenerator uncachedGenerator = factory.createJsonGenerator(new OutputStreamWriter(uncached));
+        processArticleAgentDetailsQuery(new JSONResultCollector(uncachedGenerator, "p:o"), 0);
+        uncachedGenerator.flush();
+
+        final ByteArrayOutputStream cached = new ByteArrayOutputStream();
+        final JsonGenerator cachedGenerator = factory.createJsonGenerator(new OutputStreamWriter(cached));
+        final DefaultNestedQuery nestedQuery =
+                processArticleAgentDetailsQuery(new JSONResultCollector(cachedGenerator, "p:o"), 10000);
+        cachedGenerator.flush();
+
+        Assert.assertEquals(uncached.toString(), cached.toString());
+        final CacheStats stats = nestedQuery.getSubtreeCacheStats(2);
+        Assert.assertTrue(stats.requestCount() > 0);
+        Assert.assertNull(nestedQuery.getSubtreeCacheStats(1));
+    }
+
+    @Test
+    public void testArticleAgentCachedPerExecutor() throws IOException {
+        final RecordingResultCollector first = new RecordingResultCollector();
+        final DefaultNestedQuery nestedQuery = processArticleAgentDetailsQuery(first, 10000000);
+        final CacheStats firstStats = nestedQuery.getSubtreeCacheStats(2);
+        Assert.assertTrue(firstStats.missCount() > 0);
+
+        final RecordingResultCollector second = new RecordingResultCollector();
+        nestedQuery.executeNestedQuery(
+                new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz")),
+                second,
+                new HashMap<String, String>(){{ put("Type", "http://swrc.ontoware.org/ontology#Article"); }}
+        );
+        final CacheStats secondStats = nestedQuery.getSubtreeCacheStats(2).minus(firstStats);
+        Assert.assertEquals(firstStats.missCount(), secondStats.missCount());
+        Assert.assertEquals(firstStats.hitCount(), secondStats.hitCount());
+        Assert.assertEquals(print(first), print(second));
+    }
+
+    @Test
+    public void testArticleAgentJSONBudget() throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ExecutionBudget budget = new ExecutionBudget(ExecutionBudget.UNLIMITED, 20, ExecutionBudget.UNLIMITED);
+        final JsonGenerator generator = factory.createJsonGenerator(new OutputStreamWriter(budget.track(baos)));
+        final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
+        nestedQuery.addQuery(
+                "articles",
+                new ParameterizedQuery("SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 100"),
+                "Article"
+        );
+        nestedQuery.addQuery(
+                "agents",
+                new ParameterizedQuery(
+                        "SELECT * {?Agent a <http://xmlns.com/foaf/0.1/Agent>. <$Article> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                ),
+                "Agent"
+        );
+        nestedQuery.executeNestedQuery(
+                new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz")),
+                new JSONResultCollector(generator, "p:o"),
+                new HashMap<String, String>(){{ put("Type", "http://swrc.ontoware.org/ontology#Article"); }},
+                budget
+        );
+        generator.flush();
+
+        Assert.assertNotNull(budget.getExhaustion());
+        Assert.assertTrue(
+                JSONUtils.parseJSON(baos.toString()).get("_truncated").asText().startsWith("max rows per level")
+        );
+    }
+
     //TODO: this is still invalid because just the first article per agent is taken.
     @Test
     public void testJournalArticleAgentJSONLimit() throws IOException {
@@ -68,10 +302,7 @@ public class DefaultNestedQueryTest {
         processJournalArticleAgentQuery(new JSONResultCollector(generator, "p:o"), 15);
         generator.flush();
 
-        Assert.assertEquals(
-                JSONUtils.parseJSON(this.getClass().getResourceAsStream("nested-query2-result.json")),
-                JSONUtils.parseJSON(baos.toString())
-        );
+        assertExpected("nested-query2-result.json", baos.toString());
     }
 
     @Test
@@ -106,7 +337,88 @@ public class DefaultNestedQueryTest {
         Assert.assertTrue(jsonFile.length() >= 1024 * 1024 * 14);
     }
 
+    @Test
+    public void testArticleAgentJSONFullParallelGZIP() throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final File jsonFile = File.createTempFile("out1-parallel", ".json.gz");
+        final OutputStream os = new ParallelGZIPOutputStream(new BufferedOutputStream(new FileOutputStream(jsonFile)));
+        final JsonGenerator generator = factory.createJsonGenerator(os);
+        processArticleAgentQuery(new JSONResultCollector(generator, "p:o"), null);
+        generator.flush();
+        os.close();
+        Assert.assertTrue(jsonFile.length() >= 1024 * 1024 * 198);
+        jsonFile.delete();
+    }
+
+    @Test
+    public void testArticleAgentJSONFullAsyncChannel() throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final File jsonFile = File.createTempFile("out1-async", ".json.gz");
+        final AsyncChannelOutputStream channel = new AsyncChannelOutputStream(jsonFile, 1024 * 1024, 4);
+        final OutputStream os = new GZIPOutputStream(channel);
+        final JsonGenerator generator = factory.createJsonGenerator(os);
+        processArticleAgentQuery(new JSONResultCollector(generator, "p:o"), null);
+        generator.flush();
+        os.close();
+        Assert.assertEquals(jsonFile.length(), channel.getWrittenBytes());
+        Assert.assertTrue(jsonFile.length() >= 1024 * 1024 * 198);
+        jsonFile.delete();
+    }
+
+    private String processArticleAgentJoinedQuery(String template, boolean joined) throws IOException {
+        return processArticleAgentJoinedQuery(
+                template, joined, new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"))
+        );
+    }
+
+    private String processArticleAgentJoinedQuery(String template, boolean joined, QueryExecutor executor)
+    throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final JsonGenerator generator = factory.createJsonGenerator(new OutputStreamWriter(baos));
+        final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
+        nestedQuery.addQuery(
+                "articles",
+                new ParameterizedQuery(template),
+                "Article"
+        );
+        nestedQuery.addQuery(
+                "agents",
+                new ParameterizedQuery(
+                        "SELECT * {?Agent a <http://xmlns.com/foaf/0.1/Agent>. <$Article> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                ),
+                "Agent"
+        );
+        nestedQuery.setJoined(0, joined);
+        nestedQuery.executeNestedQuery(
+                executor,
+                new JSONResultCollector(generator, "p:o"),
+                new HashMap<String, String>(){{ put("Type", "http://swrc.ontoware.org/ontology#Article"); }}
+        );
+        generator.flush();
+        return baos.toString();
+    }
+
     private void processArticleAgentQuery(ResultCollector collector, Integer limit) throws IOException {
+        processArticleAgentQuery(collector, limit, 1, 1);
+    }
+
+    private void processArticleAgentQuery(ResultCollector collector, Integer limit, int batchSize, int parallelism)
+    throws IOException {
+        try(DefaultNestedQuery nestedQuery = createArticleAgentQuery(limit)) {
+            nestedQuery.setBatchSize(batchSize);
+            nestedQuery.setParallelism(parallelism);
+            final QueryExecutor executor = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+
+            nestedQuery.executeNestedQuery(
+                    executor,
+                    collector,
+                    new HashMap<String, String>(){{ put("Type", "http://swrc.ontoware.org/ontology#Article"); }}
+            );
+        }
+    }
+
+    private DefaultNestedQuery createArticleAgentQuery(Integer limit) {
         final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
         nestedQuery.addQuery(
                 "articles",
@@ -122,6 +434,79 @@ public class DefaultNestedQueryTest {
                 ),
                 "Agent"
         );
+        return nestedQuery;
+    }
+
+    private void processArticleAgentPublicationSampledQuery(ResultCollector collector, int parallelism)
+    throws IOException {
+        try(DefaultNestedQuery nestedQuery = new DefaultNestedQuery()) {
+            nestedQuery.addQuery(
+                    "articles",
+                    new DefaultQuery("SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 100"),
+                    "Article"
+            );
+            nestedQuery.addQuery(
+                    "agents",
+                    new DefaultQuery(
+                            "SELECT ?Agent ?p ?o {<$Article> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                    ),
+                    "Agent"
+            );
+            nestedQuery.addQuery(
+                    "publications",
+                    new DefaultQuery(
+                            "SELECT ?Publication {?Publication <http://purl.org/dc/elements/1.1/creator> <$Agent>}"
+                    ),
+                    "Publication"
+            );
+            nestedQuery.setParallelism(parallelism);
+            nestedQuery.executeNestedQuery(
+                    new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz")),
+                    collector,
+                    new HashMap<String, String>(){{ put("Type", "http://swrc.ontoware.org/ontology#Article"); }},
+                    null,
+                    0.5
+            );
+        }
+    }
+
+    private int count(String text, String token) {
+        int count = 0;
+        for(int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + token.length())) count++;
+        return count;
+    }
+
+    private String print(RecordingResultCollector recorded) {
+        final StringWriter out = new StringWriter();
+        final PrintWriter pw = new PrintWriter(out);
+        recorded.replay(new PrintResultCollector(pw));
+        pw.flush();
+        return out.toString();
+    }
+
+    private DefaultNestedQuery processArticleAgentDetailsQuery(ResultCollector collector, long cacheSize)
+    throws IOException {
+        final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
+        nestedQuery.addQuery(
+                "articles",
+                new DefaultQuery("SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 500"),
+                "Article"
+        );
+        nestedQuery.addQuery(
+                "agents",
+                new DefaultQuery(
+                        "SELECT ?Agent ?p ?o {<$Article> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                ),
+                "Agent"
+        );
+        nestedQuery.addQuery(
+                "publications",
+                new DefaultQuery(
+                        "SELECT ?Publication ?p ?o {?Publication <http://purl.org/dc/elements/1.1/creator> <$Agent>. ?Publication ?p ?o}"
+                ),
+                "Publication"
+        );
+        nestedQuery.setSubtreeCacheSize(2, cacheSize);
         final QueryExecutor executor = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
 
         nestedQuery.executeNestedQuery(
@@ -129,6 +514,26 @@ public class DefaultNestedQueryTest {
                 collector,
                 new HashMap<String, String>(){{ put("Type", "http://swrc.ontoware.org/ontology#Article"); }}
         );
+        return nestedQuery;
+    }
+
+    /**
+     * Compares <code>actual</code> with the expected result <code>resource</code>. With the {@link #REGENERATE}
+     * property set the resource is rewritten from <code>actual</code> instead, e.g. running
+     * <code>mvn test -Dtest=DefaultNestedQueryTest#testArticleAgentJSONLimit+testJournalArticleAgentJSONLimit
+     * -Dquerytemplate.regenerate=true</code> with the dataset in <code>hdt-data</code>.
+     */
+    private void assertExpected(String resource, String actual) throws IOException {
+        if(Boolean.getBoolean(REGENERATE)) {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(
+                    new File("src/test/resources/eu/fbk/querytemplate", resource), JSONUtils.parseJSON(actual)
+            );
+            return;
+        }
+        Assert.assertEquals(
+                JSONUtils.parseJSON(this.getClass().getResourceAsStream(resource)),
+                JSONUtils.parseJSON(actual)
+        );
     }
 
     private void processJournalArticleAgentQuery(ResultCollector collector, Integer limit) throws IOException {
@@ -164,4 +569,36 @@ public class DefaultNestedQueryTest {
         );
     }
 
+    /**
+     * Counts the evaluated queries.
+     */
+    private static class CountingQueryExecutor implements QueryExecutor {
+
+        final AtomicInteger selects = new AtomicInteger();
+
+        private final QueryExecutor delegate;
+
+        CountingQueryExecutor(QueryExecutor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ResultSet execSelect(String qry) {
+            selects.incrementAndGet();
+            return delegate.execSelect(qry);
+        }
+
+        @Override
+        public ResultSet execSelect(Op op, List<String> resultVars) {
+            selects.incrementAndGet();
+            return delegate.execSelect(op, resultVars);
+        }
+
+        @Override
+        public Result select(Op op, List<String> resultVars) {
+            selects.incrementAndGet();
+            return delegate.select(op, resultVars);
+        }
+    }
+
 }
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.ExecutionBudget}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class ExecutionBudgetTest {
+
+    @Test
+    public void testMaxRows() {
+        final ExecutionBudget budget = new ExecutionBudget(ExecutionBudget.UNLIMITED, 2, ExecutionBudget.UNLIMITED);
+        budget.start(1);
+        final Result result = new BudgetedResult(createResult(5), budget, 0);
+        Assert.assertTrue(result.next());
+        Assert.assertTrue(result.next());
+        Assert.assertFalse(result.next());
+        Assert.assertFalse(result.next());
+        Assert.assertTrue(budget.isExhausted());
+        budget.finish();
+    }
+
+    @Test
+    public void testMaxOutputBytes() throws IOException {
+        final ExecutionBudget budget = new ExecutionBudget(ExecutionBudget.UNLIMITED, ExecutionBudget.UNLIMITED, 10);
+        budget.start(1);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final OutputStream out = budget.track(baos);
+        out.write(new byte[10]);
+        Assert.assertFalse(budget.isExhausted());
+        out.write(1);
+        Assert.assertTrue(budget.isExhausted());
+        out.write(new byte[5]);
+        Assert.assertEquals(16, baos.size());
+        budget.finish();
+    }
+
+    @Test
+    public void testTimeoutCancels() throws InterruptedException {
+        final ExecutionBudget budget = new ExecutionBudget(50, ExecutionBudget.UNLIMITED, ExecutionBudget.UNLIMITED);
+        budget.start(1);
+        final boolean[] cancelled = new boolean[1];
+        budget.register(new Cancellable() {
+            @Override
+            public void cancel() {
+                cancelled[0] = true;
+            }
+        });
+        Thread.sleep(500);
+        Assert.assertTrue(cancelled[0]);
+        Assert.assertTrue(budget.getExhaustion().startsWith("timeout"));
+        budget.finish();
+    }
+
+    @Test
+    public void testTimeoutCancelsMetered() throws InterruptedException {
+        final ExecutionBudget budget = new ExecutionBudget(50, ExecutionBudget.UNLIMITED, ExecutionBudget.UNLIMITED);
+        budget.start(1);
+        final NestedQueryMetrics metrics = new NestedQueryMetrics(1);
+        final CancellableResult cancellable = new CancellableResult(createResult(5));
+        final Result result = new BudgetedResult(new MeteredResult(cancellable, metrics, 0, 0), budget, 0);
+        Assert.assertTrue(result.next());
+        Thread.sleep(500);
+        Assert.assertTrue(cancellable.cancelled);
+        Assert.assertFalse(result.next());
+        Assert.assertTrue(budget.getExhaustion().startsWith("timeout"));
+        budget.finish();
+    }
+
+    @Test
+    public void testBudgetedReplay() {
+        final RecordingResultCollector subtree = new RecordingResultCollector();
+        subtree.startLevel(1, "l1");
+        for(int i = 0; i < 3; i++) {
+            subtree.values(new String[]{"v" + i});
+            subtree.pivot("v" + i);
+            subtree.startLevel(2, "l2");
+            subtree.values(new String[]{"w" + i});
+            subtree.collect(new String[]{"w"}, new String[]{"w" + i});
+            subtree.endLevel(2);
+            subtree.collect(new String[]{"v"}, new String[]{"v" + i});
+        }
+        subtree.endLevel(1);
+
+        final ExecutionBudget budget = new ExecutionBudget(ExecutionBudget.UNLIMITED, 2, ExecutionBudget.UNLIMITED);
+        budget.start(3);
+        final RecordingResultCollector target = new RecordingResultCollector();
+        subtree.replay(target, budget);
+        Assert.assertTrue(budget.isExhausted());
+        Assert.assertEquals(2 + 2 * 7, target.size());
+        budget.finish();
+
+        final RecordingResultCollector full = new RecordingResultCollector();
+        subtree.replay(full, null);
+        Assert.assertEquals(subtree.size(), full.size());
+    }
+
+    private Result createResult(int rows) {
+        final String[][] values = new String[rows][];
+        for(int i = 0; i < rows; i++) {
+            values[i] = new String[] {"v" + i};
+        }
+        return new MaterializedResult(new String[] {"x"}, Arrays.asList(values));
+    }
+
+    /**
+     * Result recording its cancellation.
+     */
+    private static class CancellableResult implements Result, Cancellable {
+
+        private final Result result;
+
+        volatile boolean cancelled;
+
+        CancellableResult(Result result) {
+            this.result = result;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public String[] getBindings() {
+            return result.getBindings();
+        }
+
+        @Override
+        public boolean next() {
+            return !cancelled && result.next();
+        }
+
+        @Override
+        public String getValue(String binding) {
+            return result.getValue(binding);
+        }
+
+        @Override
+        public String[] getValues() {
+            return result.getValues();
+        }
+
+        @Override
+        public String getValue(int column) {
+            return result.getValue(column);
+        }
+
+        @Override
+        public long getValueId(int column) {
+            return result.getValueId(column);
+        }
+    }
+
+}
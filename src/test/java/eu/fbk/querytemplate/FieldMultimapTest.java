@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.FieldMultimap}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class FieldMultimapTest {
+
+    @Test
+    public void testInsertionOrder() {
+        final FieldMultimap multimap = new FieldMultimap();
+        Assert.assertTrue(multimap.isEmpty());
+        Assert.assertTrue(multimap.put("p2", "b"));
+        Assert.assertTrue(multimap.put("p1", "a"));
+        Assert.assertTrue(multimap.put("p2", "a"));
+        Assert.assertFalse(multimap.put("p2", "b"));
+        Assert.assertTrue(multimap.put("p1", "c"));
+        Assert.assertEquals("{p2=[b, a], p1=[a, c]}", toMap(multimap).toString());
+        multimap.clear();
+        Assert.assertTrue(multimap.isEmpty());
+        Assert.assertTrue(multimap.put("p1", "a"));
+        Assert.assertEquals("{p1=[a]}", toMap(multimap).toString());
+    }
+
+    @Test
+    public void testLargeGroups() {
+        final FieldMultimap multimap = new FieldMultimap();
+        for(int round = 0; round < 3; round++) {
+            final Map<String,Set<String>> expected = new LinkedHashMap<>();
+            final int size = round == 1 ? 20000 : 100;
+            for(int i = 0; i < size; i++) {
+                final String key = "k" + (i * 7 % 301);
+                final String value = "v" + (i % 13);
+                Set<String> set = expected.get(key);
+                if(set == null) {
+                    set = new LinkedHashSet<>();
+                    expected.put(key, set);
+                }
+                Assert.assertEquals(set.add(value), multimap.put(key, value));
+            }
+            Assert.assertEquals(expected.toString(), toMap(multimap).toString());
+            multimap.clear();
+        }
+    }
+
+    @Test
+    public void testSpill() {
+        final FieldMultimap multimap = new FieldMultimap(64);
+        for(int round = 0; round < 2; round++) {
+            final Map<String,Set<String>> expected = new LinkedHashMap<>();
+            for(int i = 0; i < 5000; i++) {
+                final String key = "k" + (i % 7);
+                final String value = "v" + (i * 31 % 1013);
+                Set<String> set = expected.get(key);
+                if(set == null) {
+                    set = new LinkedHashSet<>();
+                    expected.put(key, set);
+                }
+                set.add(value);
+                multimap.put(key, value);
+            }
+            Assert.assertTrue(multimap.isSpilled());
+            Assert.assertEquals(expected.toString(), toMap(multimap).toString());
+            multimap.clear();
+            Assert.assertTrue(multimap.isEmpty());
+            Assert.assertFalse(multimap.isSpilled());
+        }
+    }
+
+    @Test
+    public void testCursorSkipsValues() {
+        final FieldMultimap multimap = new FieldMultimap(2);
+        multimap.put("p1", "a");
+        multimap.put("p1", "b");
+        multimap.put("p2", "c");
+        multimap.put("p1", "a");
+        final FieldMultimap.Cursor cursor = multimap.cursor();
+        Assert.assertTrue(cursor.nextKey());
+        Assert.assertEquals("p1", cursor.getKey());
+        Assert.assertTrue(cursor.nextKey());
+        Assert.assertEquals("p2", cursor.getKey());
+        Assert.assertTrue(cursor.nextValue());
+        Assert.assertEquals("c", cursor.getValue());
+        Assert.assertFalse(cursor.nextValue());
+        Assert.assertFalse(cursor.nextKey());
+        multimap.clear();
+    }
+
+    private Map<String,List<String>> toMap(FieldMultimap multimap) {
+        final Map<String,List<String>> out = new LinkedHashMap<>();
+        final FieldMultimap.Cursor cursor = multimap.cursor();
+        while(cursor.nextKey()) {
+            final List<String> values = new ArrayList<>();
+            while(cursor.nextValue()) {
+                values.add(cursor.getValue());
+            }
+            out.put(cursor.getKey(), values);
+        }
+        return out;
+    }
+
+}
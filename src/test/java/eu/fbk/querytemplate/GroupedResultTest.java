@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.GroupedResult}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class GroupedResultTest {
+
+    @Test
+    public void testGroupingInMemory() throws IOException {
+        checkGrouping(1000000, false);
+    }
+
+    @Test
+    public void testGroupingWithSpill() throws IOException {
+        checkGrouping(30, true);
+    }
+
+    /**
+     * Many small groups are spilled to partitions instead of one segment per group.
+     */
+    @Test
+    public void testManySmallGroups() throws IOException {
+        final List<String[]> rows = new ArrayList<>();
+        for(int i = 0; i < 400000; i++) {
+            rows.add(new String[] {"pivot" + (i % 100000), "value" + i});
+        }
+        final GroupedResult result = new GroupedResult(
+                new MaterializedResult(new String[] {"s", "v"}, rows), "s", 5000
+        );
+        final Set<String> seen = new HashSet<>();
+        int count = 0;
+        String[] previous = null;
+        while(result.next()) {
+            final String[] values = result.getValues();
+            if(previous == null || !previous[0].equals(values[0])) {
+                Assert.assertTrue(seen.add(values[0]));
+            } else {
+                Assert.assertTrue(Integer.parseInt(previous[1].substring(5)) < Integer.parseInt(values[1].substring(5)));
+            }
+            previous = values.clone();
+            count++;
+        }
+        Assert.assertEquals(rows.size(), count);
+        Assert.assertEquals(100000, seen.size());
+        Assert.assertTrue(result.getSpilledPartitions() > GroupedResult.PARTITIONS);
+        Assert.assertTrue(result.getSpilledPartitions() <= GroupedResult.PARTITIONS * (GroupedResult.PARTITIONS + 1));
+        result.close();
+    }
+
+    private void checkGrouping(long maxValues, boolean spill) throws IOException {
+        final List<String[]> rows = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            rows.add(new String[] {"pivot" + (i % 7), "value" + i, i % 10 == 0 ? null : "\u00e8" + i});
+        }
+        final GroupedResult result = new GroupedResult(
+                new MaterializedResult(new String[] {"s", "v", "w"}, rows), "s", maxValues
+        );
+        final List<String> actual = new ArrayList<>();
+        while(result.next()) {
+            actual.add(Arrays.toString(result.getValues()));
+        }
+        final List<String> expected = new ArrayList<>();
+        for(int pivot = 0; pivot < 7; pivot++) {
+            for(String[] row : rows) {
+                if(row[0].equals("pivot" + pivot)) expected.add(Arrays.toString(row));
+            }
+        }
+        if(spill) {
+            Assert.assertEquals(sortGroups(expected), sortGroups(actual));
+        } else {
+            Assert.assertEquals(expected, actual);
+        }
+        Assert.assertEquals(spill, result.getSpilledPartitions() > 0);
+        result.close();
+    }
+
+    /**
+     * @return the contiguous groups of rows, sorted by pivot.
+     */
+    private List<String> sortGroups(List<String> rows) {
+        final List<String> groups = new ArrayList<>();
+        String pivot = null;
+        StringBuilder group = null;
+        for(String row : rows) {
+            final String rowPivot = row.substring(0, row.indexOf(','));
+            if(!rowPivot.equals(pivot)) {
+                if(group != null) groups.add(group.toString());
+                group = new StringBuilder();
+                pivot = rowPivot;
+            }
+            group.append(row);
+        }
+        if(group != null) groups.add(group.toString());
+        Collections.sort(groups);
+        return groups;
+    }
+
+}
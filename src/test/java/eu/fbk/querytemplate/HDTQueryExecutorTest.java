@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import com.hp.hpl.jena.query.ResultSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.HDTQueryExecutor}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class HDTQueryExecutorTest {
+
+    private static final String ARTICLE_AGENTS =
+            "SELECT * {" +
+            "?Agent a <http://xmlns.com/foaf/0.1/Agent>. " +
+            "<http://dblp.l3s.de/d2r/resource/publications/journals/ac/BinkleyG96> <http://purl.org/dc/elements/1.1/creator> ?Agent. " +
+            "?Agent ?p ?o}";
+
+    @Test
+    public void testSameResultsAsARQ() throws IOException {
+        final File hdtFile = new File("hdt-data/dblp-2012-11-28.hdt.gz");
+        final QueryExecutor arq = new DefaultQueryExecutor(hdtFile);
+        final QueryExecutor hdt = new HDTQueryExecutor(hdtFile);
+        for(String qry : new String[] {
+                ARTICLE_AGENTS,
+                "SELECT ?i {?i a <http://swrc.ontoware.org/ontology#Journal>} LIMIT 50",
+                "SELECT ?p ?o {<http://dblp.l3s.de/d2r/resource/publications/journals/ac/BinkleyG96> ?p ?o}"
+        }) {
+            Assert.assertEquals(qry, toRows(arq.execSelect(qry)), toRows(hdt.execSelect(qry)));
+        }
+    }
+
+    @Test
+    public void testIDResult() throws IOException {
+        final File hdtFile = new File("hdt-data/dblp-2012-11-28.hdt.gz");
+        final QueryExecutor arq = new DefaultQueryExecutor(hdtFile);
+        final QueryExecutor hdt = new HDTQueryExecutor(hdtFile);
+        final Query query = new ParameterizedQuery(
+                "SELECT ?p ?o {<$Article> ?p ?o}"
+        );
+        final Map<String,String> args = Collections.singletonMap(
+                "Article", "http://dblp.l3s.de/d2r/resource/publications/journals/ac/BinkleyG96"
+        );
+        final Result result = query.perform(hdt, args);
+        Assert.assertTrue(result instanceof IDResult);
+        Assert.assertEquals(toRows(query.perform(arq, args)), toRows(result));
+
+        final Result ids = query.perform(hdt, args);
+        final Map<Long,String> decoded = new HashMap<>();
+        while(ids.next()) {
+            final long id = ids.getValueId(0);
+            Assert.assertTrue(id != Result.NO_ID);
+            final String previous = decoded.put(id, ids.getValue(0));
+            if(previous != null) Assert.assertEquals(previous, ids.getValue(0));
+        }
+        Assert.assertEquals(new HashSet<>(decoded.values()).size(), decoded.size());
+    }
+
+    private List<String> toRows(ResultSet rs) {
+        return toRows(new DefaultResult(rs));
+    }
+
+    private List<String> toRows(Result result) {
+        final List<String> out = new ArrayList<>();
+        while(result.next()) {
+            final StringBuilder sb = new StringBuilder();
+            for(String value : result.getValues()) {
+                sb.append(value).append(' ');
+            }
+            out.add(sb.toString());
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.LevelPlan}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class LevelPlanTest {
+
+    private static final String[] BINDINGS = {"Article", "p", "o"};
+
+    @Test
+    public void testPlan() {
+        final LevelPlan plan = new LevelPlan(
+                BINDINGS, "Article",
+                new PropertyPivot("p", "http://purl.org/dc/elements/1.1/creator", "o", "Agent"),
+                "SELECT * WHERE { <$Article> ?p <$Agent> }"
+        );
+        Assert.assertEquals(0, plan.getPivotColumn());
+        Assert.assertEquals(1, plan.getPropertyColumn());
+        Assert.assertEquals(2, plan.getRemapKeyColumn());
+        Assert.assertTrue(plan.matches(BINDINGS));
+        Assert.assertTrue(plan.matches(new String[]{"Article", "p", "o"}));
+        Assert.assertFalse(plan.matches(new String[]{"Article", "o", "p"}));
+
+        final Rows.ArrayRow row = new Rows.ArrayRow(BINDINGS).set(new String[]{"a1", "creator", "g1"});
+        final Map<String,String> expected = new HashMap<>();
+        expected.put("Article", "a1");
+        Assert.assertEquals(expected, plan.childArguments.bind(row));
+        expected.put("Agent", "g1");
+        Assert.assertEquals(expected, plan.remapArguments.bind(new Rows.ExtendedRow(row, "Agent").set("g1")));
+    }
+
+    @Test
+    public void testArgumentsMatchWholeNames() {
+        final LevelPlan plan = new LevelPlan(
+                new String[]{"A", "Agent"}, "A", null, "SELECT * WHERE { <$Agent> ?p ?o }"
+        );
+        final Map<String,String> expected = new HashMap<>();
+        expected.put("Agent", "g1");
+        Assert.assertEquals(
+                expected,
+                plan.childArguments.bind(new Rows.ArrayRow(new String[]{"A", "Agent"}).set(new String[]{"a1", "g1"}))
+        );
+    }
+
+    @Test
+    public void testLastLevel() {
+        final LevelPlan plan = new LevelPlan(BINDINGS, "Article", null, null);
+        Assert.assertNull(plan.childArguments);
+        Assert.assertNull(plan.remapArguments);
+    }
+
+    @Test
+    public void testMissingPivot() {
+        final LevelPlan plan = new LevelPlan(BINDINGS, "Agent", null, null);
+        Assert.assertEquals(-1, plan.pivotColumn);
+        try {
+            plan.getPivotColumn();
+            Assert.fail("Expected IllegalArgumentException.");
+        } catch (IllegalArgumentException iae) {
+            // Expected.
+        }
+    }
+
+}
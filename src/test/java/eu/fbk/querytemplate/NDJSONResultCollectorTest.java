@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import eu.fbk.JSONUtils;
+import org.codehaus.jackson.JsonNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.NDJSONResultCollector}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NDJSONResultCollectorTest {
+
+    @Test
+    public void testOneLinePerPivot() {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final NDJSONResultCollector collector = new NDJSONResultCollector(baos, "p:o");
+        final String[] articleBindings = {"Article", "p", "o"};
+        final String[] agentBindings = {"Agent", "p", "o"};
+        collector.begin();
+        collector.startLevel(0, "articles");
+        for(int i = 0; i < 3; i++) {
+            collector.pivot("a" + i);
+            collector.startLevel(1, "agents");
+            collector.pivot("b" + i);
+            collector.collect(agentBindings, new String[] {"b" + i, "name", "B" + i});
+            collector.endLevel(1);
+            collector.collect(articleBindings, new String[] {"a" + i, "title", "T" + i});
+            collector.collect(articleBindings, new String[] {"a" + i, "title", "U" + i});
+            Assert.assertEquals(i, baos.toString().split("\n", -1).length - 1);
+        }
+        collector.endLevel(0);
+        collector.truncated("timeout");
+        collector.end();
+
+        final String[] lines = baos.toString().split("\n");
+        Assert.assertEquals(4, lines.length);
+        for(int i = 0; i < 3; i++) {
+            final JsonNode article = JSONUtils.parseJSON(lines[i]).get("articles").get("a" + i);
+            Assert.assertEquals("B" + i, article.get("agents").get("b" + i).get("name").asText());
+            Assert.assertEquals(2, article.get("title").size());
+        }
+        Assert.assertEquals("timeout", JSONUtils.parseJSON(lines[3]).get("_truncated").asText());
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import eu.fbk.JSONUtils;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.NestedQueryBatch}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryBatchTest {
+
+    /**
+     * Co-authors, the publications they share are expanded under both roots.
+     */
+    private static final String[] AUTHORS = {
+            "http://dblp.l3s.de/d2r/resource/authors/David_Binkley",
+            "http://dblp.l3s.de/d2r/resource/authors/Keith_Brian_Gallagher"
+    };
+
+    private static final String SHARED_PUBLICATION =
+            "http://dblp.l3s.de/d2r/resource/publications/journals/ac/BinkleyG96";
+
+    @Test
+    public void testPerRootCollectors() throws IOException {
+        final DefaultNestedQuery nestedQuery = createQuery();
+        final QueryExecutor executor = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+        final List<RecordingResultCollector> expected = new ArrayList<>();
+        for(Map<String,String> root : createRoots()) {
+            final RecordingResultCollector collector = new RecordingResultCollector();
+            nestedQuery.executeNestedQuery(executor, collector, root);
+            expected.add(collector);
+        }
+
+        final NestedQueryBatch batch = new NestedQueryBatch(nestedQuery, executor);
+        batch.setParallelism(3);
+        final List<RecordingResultCollector> actual = new ArrayList<>();
+        for(int i = 0; i < AUTHORS.length; i++) {
+            actual.add(new RecordingResultCollector());
+        }
+        batch.execute(createRoots(), actual);
+        batch.close();
+        for(int i = 0; i < AUTHORS.length; i++) {
+            Assert.assertEquals(print(expected.get(i)), print(actual.get(i)));
+        }
+        // The roots are distinct, the hits are child subqueries shared by the roots.
+        Assert.assertTrue(batch.getCacheStats().hitCount() > 0);
+    }
+
+    @Test
+    public void testCombinedCollector() throws IOException {
+        final DefaultNestedQuery nestedQuery = createQuery();
+        final QueryExecutor executor = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+        final NestedQueryBatch batch = new NestedQueryBatch(nestedQuery, executor);
+
+        final RecordingResultCollector sequential = new RecordingResultCollector();
+        batch.execute(createRoots(), sequential);
+        batch.setParallelism(2);
+        final RecordingResultCollector parallel = new RecordingResultCollector();
+        batch.execute(createRoots(), parallel);
+
+        batch.close();
+
+        Assert.assertEquals(print(sequential), print(parallel));
+        Assert.assertTrue(batch.getCacheStats().hitCount() > 0);
+    }
+
+    @Test
+    public void testCombinedJSON() throws IOException {
+        final DefaultNestedQuery nestedQuery = createQuery();
+        final QueryExecutor executor = new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"));
+        final NestedQueryBatch batch = new NestedQueryBatch(nestedQuery, executor);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final JsonGenerator generator = new JsonFactory().createJsonGenerator(new OutputStreamWriter(baos));
+        batch.execute(createRoots(), new JSONResultCollector(generator, "p:o"));
+        generator.flush();
+
+        final JsonNode combined = JSONUtils.parseJSON(baos.toString());
+        Assert.assertEquals(AUTHORS.length, combined.size());
+        for(int i = 0; i < AUTHORS.length; i++) {
+            final JsonNode publications = combined.get(Integer.toString(i)).get("publications");
+            Assert.assertNotNull(publications);
+            Assert.assertNotNull(publications.get(SHARED_PUBLICATION).get("agents"));
+        }
+        Assert.assertTrue(batch.getCacheStats().hitCount() > 0);
+    }
+
+    private DefaultNestedQuery createQuery() {
+        final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
+        nestedQuery.addQuery(
+                "publications",
+                new DefaultQuery(
+                        "SELECT ?Publication ?p ?o {?Publication <http://purl.org/dc/elements/1.1/creator> <$Author>. ?Publication ?p ?o}"
+                ),
+                "Publication"
+        );
+        nestedQuery.addQuery(
+                "agents",
+                new DefaultQuery(
+                        "SELECT * {?Agent a <http://xmlns.com/foaf/0.1/Agent>. <$Publication> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                ),
+                "Agent"
+        );
+        return nestedQuery;
+    }
+
+    private List<Map<String,String>> createRoots() {
+        final List<Map<String,String>> roots = new ArrayList<>();
+        for(String author : AUTHORS) {
+            roots.add(Collections.singletonMap("Author", author));
+        }
+        return roots;
+    }
+
+    private String print(RecordingResultCollector recorded) {
+        final StringWriter out = new StringWriter();
+        final PrintWriter pw = new PrintWriter(out);
+        recorded.replay(new PrintResultCollector(pw));
+        pw.flush();
+        return out.toString();
+    }
+
+}
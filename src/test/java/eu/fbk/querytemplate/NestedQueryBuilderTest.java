@@ -20,6 +20,7 @@ package eu.fbk.querytemplate;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -43,4 +44,27 @@ public class NestedQueryBuilderTest {
         Assert.assertEquals("SELECT ?o {<$S> ?p ?o in: [S]", nestedQuery.getQuery(1).toString());
     }
 
+    @Test
+    public void testProfile() throws IOException {
+        final NestedQueryBuilder builder = new NestedQueryBuilder();
+        final NestedQueryProfile profile = builder.profile(
+                this.getClass().getResourceAsStream("profile1.json"),
+                new DefaultQueryExecutor(new File("hdt-data/dblp-2012-11-28.hdt.gz"))
+        );
+        Assert.assertEquals(0.5, profile.getSampling(), 0);
+        final NestedQueryProfile.Level articles = profile.getRoot();
+        Assert.assertEquals("articles", articles.getName());
+        Assert.assertEquals(1, articles.getSubqueries());
+        Assert.assertTrue(articles.getRows() > 0);
+        Assert.assertNotNull(articles.getAlgebra());
+        final NestedQueryProfile.Level agents = articles.getChild();
+        Assert.assertEquals("agents", agents.getName());
+        Assert.assertTrue(agents.getSubqueries() > 0);
+        Assert.assertNull(agents.getChild());
+        Assert.assertTrue(articles.getShare() + agents.getShare() <= 1);
+        final String rendered = profile.toString();
+        Assert.assertTrue(rendered.contains("\n0 articles: "));
+        Assert.assertTrue(rendered.contains("\n  1 agents: "));
+    }
+
 }
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.NestedQueryMetrics}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryMetricsTest {
+
+    @Test
+    public void testAggregation() {
+        final NestedQueryMetrics metrics = new NestedQueryMetrics(2);
+        for(int i = 1; i <= 100; i++) {
+            metrics.subquery(1, i * 1000, i % 10);
+        }
+        metrics.subquery(0, 5000, 100);
+        metrics.collector(1, 300);
+        metrics.collector(1, 200);
+
+        Assert.assertEquals(1, metrics.getSubqueries(0));
+        Assert.assertEquals(100, metrics.getSubqueries(1));
+        Assert.assertEquals(450, metrics.getRows(1));
+        Assert.assertEquals(5050000, metrics.getEvaluationNanos(1));
+        Assert.assertEquals(500, metrics.getCollectorNanos(1));
+        Assert.assertEquals(50500, metrics.getMeanLatencyNanos(1), 0.001);
+        final long p99 = metrics.getLatencyNanos(1, 0.99);
+        Assert.assertTrue(p99 >= 99000 && p99 < 2 * 99000);
+        Assert.assertEquals(15, metrics.getFanOut(1, 1));
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getSubqueries(1));
+        Assert.assertEquals(0, metrics.getLatencyNanos(1, 0.99));
+    }
+
+    @Test
+    public void testMeteredResultAndCollector() {
+        final NestedQueryMetrics metrics = new NestedQueryMetrics(2);
+        final Result result = new MeteredResult(
+                new MaterializedResult(new String[] {"x"}, Arrays.asList(new String[] {"a"}, new String[] {"b"})),
+                metrics, 1, 0
+        );
+        while(result.next());
+        Assert.assertEquals(1, metrics.getSubqueries(1));
+        Assert.assertEquals(2, metrics.getRows(1));
+
+        final RecordingResultCollector target = new RecordingResultCollector();
+        final ResultCollector collector = new MeteredCollector(target, metrics, 2);
+        collector.begin();
+        collector.startLevel(0, "l0");
+        collector.startLevel(1, "l1");
+        collector.collect(new String[] {"x"}, new String[] {"a"});
+        collector.endLevel(1);
+        collector.endLevel(0);
+        collector.end();
+        Assert.assertEquals(7, target.size());
+        Assert.assertTrue(metrics.getCollectorNanos(1) > 0);
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        final NestedQueryMetrics metrics = new NestedQueryMetrics(1);
+        metrics.subquery(0, 1000, 3);
+        final ObjectName name = metrics.register("test");
+        try {
+            final long[] rows = (long[]) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Rows");
+            Assert.assertEquals(1, rows.length);
+            Assert.assertEquals(3, rows[0]);
+        } finally {
+            metrics.unregister(name);
+        }
+    }
+
+}
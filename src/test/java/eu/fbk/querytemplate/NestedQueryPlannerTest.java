@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import eu.fbk.JSONUtils;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.hdt.HDTManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.NestedQueryPlanner}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class NestedQueryPlannerTest {
+
+    @Test
+    public void testPlan() throws IOException {
+        final HDT hdt = HDTManager.loadIndexedHDT("hdt-data/dblp-2012-11-28.hdt.gz", null);
+        final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
+        nestedQuery.addQuery(
+                "articles",
+                new ParameterizedQuery("SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 100"),
+                "Article"
+        );
+        nestedQuery.addQuery(
+                "agents",
+                new ParameterizedQuery(
+                        "SELECT * {?Agent a <http://xmlns.com/foaf/0.1/Agent>. <$Article> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                ),
+                "Agent"
+        );
+        final Map<String,String> args =
+                Collections.singletonMap("Type", "http://swrc.ontoware.org/ontology#Article");
+
+        final String nested = execute(nestedQuery, hdt, args);
+        final NestedQueryPlan plan = new NestedQueryPlanner(hdt).apply(nestedQuery, args);
+        Assert.assertEquals(2, plan.getLevels().size());
+        Assert.assertTrue(plan.toString().startsWith("0 articles: "));
+        Assert.assertTrue(plan.toString().contains("\n1 agents: "));
+        final NestedQueryPlan.Level articles = plan.getLevels().get(0);
+        Assert.assertNotNull(articles.getStrategy());
+        Assert.assertEquals(articles.getStrategy(), nestedQuery.getStrategy(0));
+        Assert.assertTrue(articles.getRows() > 0 && articles.getRows() <= 100);
+        Assert.assertTrue(articles.getPivots() > 0 && articles.getPivots() <= articles.getRows());
+        Assert.assertTrue(plan.getLevels().get(1).getRows() > 0);
+        Assert.assertNull(plan.getLevels().get(1).getStrategy());
+
+        final String planned = execute(nestedQuery, hdt, args);
+        Assert.assertEquals(nested, planned);
+        Assert.assertEquals(
+                JSONUtils.parseJSON(this.getClass().getResourceAsStream("nested-query1-result.json")),
+                JSONUtils.parseJSON(planned)
+        );
+    }
+
+    @Test
+    public void testNoAdjacentJoins() throws IOException {
+        final HDT hdt = HDTManager.loadIndexedHDT("hdt-data/dblp-2012-11-28.hdt.gz", null);
+        final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
+        nestedQuery.addQuery(
+                "articles",
+                new ParameterizedQuery("SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 20"),
+                "Article"
+        );
+        nestedQuery.addQuery(
+                "agents",
+                new ParameterizedQuery(
+                        "SELECT ?Agent ?p ?o {<$Article> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                ),
+                "Agent"
+        );
+        nestedQuery.addQuery(
+                "publications",
+                new ParameterizedQuery(
+                        "SELECT ?Publication ?p ?o {?Publication <http://purl.org/dc/elements/1.1/creator> <$Agent>. ?Publication ?p ?o}"
+                ),
+                "Publication"
+        );
+        final Map<String,String> args =
+                Collections.singletonMap("Type", "http://swrc.ontoware.org/ontology#Article");
+
+        final String nested = execute(nestedQuery, hdt, args);
+        final NestedQueryPlan plan = new NestedQueryPlanner(hdt).apply(nestedQuery, args);
+        Assert.assertEquals(3, plan.toString().split("\n").length);
+        Assert.assertTrue(plan.toString().contains("\n2 publications: "));
+        for(int level = 1; level < plan.getLevels().size(); level++) {
+            Assert.assertFalse(
+                    plan.getLevels().get(level - 1).getStrategy() == NestedQueryPlan.Strategy.JOINED
+                    && plan.getLevels().get(level).getStrategy() == NestedQueryPlan.Strategy.JOINED
+            );
+        }
+        Assert.assertEquals(nested, execute(nestedQuery, hdt, args));
+    }
+
+    private String execute(DefaultNestedQuery nestedQuery, HDT hdt, Map<String,String> args) throws IOException {
+        final JsonFactory factory = new JsonFactory();
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final JsonGenerator generator = factory.createJsonGenerator(new OutputStreamWriter(baos));
+        nestedQuery.executeNestedQuery(new HDTQueryExecutor(hdt), new JSONResultCollector(generator, "p:o"), args);
+        generator.flush();
+        return baos.toString();
+    }
+
+}
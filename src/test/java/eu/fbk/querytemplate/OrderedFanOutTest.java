@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.OrderedFanOut}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class OrderedFanOutTest {
+
+    @Test
+    public void testReplayOrder() {
+        final StringWriter expected = new StringWriter();
+        final PrintResultCollector expectedCollector = new PrintResultCollector(new PrintWriter(expected));
+        for(int i = 0; i < 100; i++) {
+            emitParent(i, expectedCollector);
+            emitChild(i, expectedCollector);
+        }
+        expectedCollector.end();
+
+        final StringWriter actual = new StringWriter();
+        final PrintResultCollector actualCollector = new PrintResultCollector(new PrintWriter(actual));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final OrderedFanOut fanOut = new OrderedFanOut(executor, actualCollector, 8);
+            for(int i = 0; i < 100; i++) {
+                final int pivot = i;
+                emitParent(pivot, fanOut);
+                fanOut.fork(new OrderedFanOut.Subtree() {
+                    @Override
+                    public void process(ResultCollector collector) {
+                        try {
+                            Thread.sleep((100 - pivot) % 7);
+                        } catch (InterruptedException ie) {
+                            throw new IllegalStateException(ie);
+                        }
+                        emitChild(pivot, collector);
+                    }
+                });
+            }
+            fanOut.finish();
+            actualCollector.end();
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(expected.toString(), actual.toString());
+    }
+
+    private void emitParent(int i, ResultCollector collector) {
+        collector.values(new String[]{"p" + i});
+        collector.pivot("p" + i);
+    }
+
+    private void emitChild(int i, ResultCollector collector) {
+        collector.startLevel(1, "children");
+        collector.pivot("c" + i);
+        collector.collect(new String[]{"k"}, new String[]{"v" + i});
+        collector.endLevel(1);
+    }
+
+}
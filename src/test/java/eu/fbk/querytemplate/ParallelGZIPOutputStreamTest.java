@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.ParallelGZIPOutputStream}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class ParallelGZIPOutputStreamTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final byte[] data = createData(3 * 1000 * 1000);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final ParallelGZIPOutputStream os = new ParallelGZIPOutputStream(compressed);
+        for(int i = 0; i < data.length;) {
+            final int chunk = Math.min(data.length - i, 1 + i % 7919);
+            os.write(data, i, chunk);
+            i += chunk;
+        }
+        os.close();
+        Assert.assertTrue(compressed.size() < data.length / 2);
+        Assert.assertTrue(Arrays.equals(data, decompress(compressed.toByteArray())));
+    }
+
+    @Test
+    public void testSmallBlocksAndFlush() throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final byte[] data = createData(500 * 1000);
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            final ParallelGZIPOutputStream os = new ParallelGZIPOutputStream(
+                    compressed, executor, 32 * 1024, Deflater.BEST_SPEED, 1
+            );
+            for(int i = 0; i < data.length; i++) {
+                os.write(data[i]);
+                if(i % 100000 == 0) os.flush();
+            }
+            os.close();
+            Assert.assertTrue(Arrays.equals(data, decompress(compressed.toByteArray())));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGZIPOutputStream(compressed).close();
+        Assert.assertEquals(0, decompress(compressed.toByteArray()).length);
+    }
+
+    private byte[] createData(int size) {
+        final Random random = new Random(7);
+        final String[] words = {"http://dblp.l3s.de/d2r/resource/", "authors/", "publications/", "\"name\":", "{", "}"};
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        while(out.size() < size) {
+            if(random.nextInt(10) == 0) {
+                out.write(random.nextInt(256));
+            } else {
+                final byte[] word = words[random.nextInt(words.length)].getBytes();
+                out.write(word, 0, word.length);
+            }
+        }
+        return Arrays.copyOf(out.toByteArray(), size);
+    }
+
+    private byte[] decompress(byte[] compressed) throws IOException {
+        final InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while((read = is.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+}
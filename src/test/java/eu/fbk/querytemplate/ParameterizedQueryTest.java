@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.ParameterizedQuery}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class ParameterizedQueryTest {
+
+    @Test
+    public void testCompilable() {
+        Assert.assertTrue(ParameterizedQuery.isCompilable("SELECT ?i {?i a <$Type>}"));
+        Assert.assertTrue(ParameterizedQuery.isCompilable("SELECT * {<$Article> ?p ?o} ORDER BY ?p LIMIT 10"));
+        Assert.assertFalse(ParameterizedQuery.isCompilable("SELECT ?i {?i a <$Type>. ?i ?Type ?o}"));
+        Assert.assertFalse(ParameterizedQuery.isCompilable("SELECT ?i {?i ?p \"$Label\"}"));
+        Assert.assertFalse(ParameterizedQuery.isCompilable("SELECT (<$Article> as ?Article) ?p ?o WHERE {<$Article> ?p ?o }"));
+        Assert.assertFalse(ParameterizedQuery.isCompilable("SELECT ?o {<$S> ?p ?o"));
+    }
+
+    @Test
+    public void testQuery() throws IOException {
+        final ParameterizedQuery query = new ParameterizedQuery("SELECT ?i {?i a <$Type>}");
+        Assert.assertEquals("SELECT ?i {?i a <$Type>} in: [Type]", query.toString());
+        final Map<String,String> args = new HashMap<String, String>(){{ put("Type", "http://xmlns.com/foaf/0.1/Agent"); }};
+        Assert.assertEquals("SELECT ?i {?i a <http://xmlns.com/foaf/0.1/Agent>}", query.expand(args));
+        final Result result = query.perform(DefaultQueryTest.getExecutor(), args);
+        Assert.assertArrayEquals(new String[]{"i"}, result.getBindings());
+        int c = 0;
+        while(result.next())  {
+            c++;
+        }
+        Assert.assertEquals(1201780, c);
+    }
+
+}
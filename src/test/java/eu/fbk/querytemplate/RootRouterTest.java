@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.RootRouter}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class RootRouterTest {
+
+    private static final RootRouter.Partition PARITY = new RootRouter.Partition() {
+        @Override
+        public int shard(String pivot) {
+            return pivot == null ? 0 : Integer.parseInt(pivot.substring(1)) % 2;
+        }
+    };
+
+    @Test
+    public void testRoute() throws Exception {
+        final List<String[]> rows = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            rows.add(new String[] {"s" + i / 2, "o" + i});
+        }
+        final RootRouter router = new RootRouter(
+                new MaterializedResult(new String[] {"s", "o"}, rows), 0, -1, PARITY, 2, 4
+        );
+        final List<List<String>> shards = consume(router, 2, 1);
+        Assert.assertEquals(50, shards.get(0).size());
+        Assert.assertEquals(50, shards.get(1).size());
+        Assert.assertEquals("o0", shards.get(0).get(0));
+        Assert.assertEquals("o1", shards.get(0).get(1));
+        Assert.assertEquals("o2", shards.get(1).get(0));
+    }
+
+    @Test
+    public void testRouteJoined() throws Exception {
+        final List<String[]> rows = Arrays.asList(
+                new String[] {"s1", "urn:parent", null},
+                new String[] {null, null, "c1"},
+                new String[] {"s2", "urn:parent", null},
+                new String[] {null, null, "c2"},
+                new String[] {null, null, "c3"}
+        );
+        final RootRouter router = new RootRouter(
+                new MaterializedResult(new String[] {"s", "marker", "c"}, rows), 0, 1, PARITY, 2, 1
+        );
+        final List<List<String>> shards = consume(router, 2, 2);
+        Assert.assertEquals(Arrays.asList(null, "c2", "c3"), shards.get(0));
+        Assert.assertEquals(Arrays.asList(null, "c1"), shards.get(1));
+    }
+
+    @Test
+    public void testAbort() {
+        final List<String[]> rows = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            rows.add(new String[] {"s" + i});
+        }
+        final RootRouter router = new RootRouter(
+                new MaterializedResult(new String[] {"s"}, rows), 0, -1, PARITY, 2, 1
+        );
+        router.abort();
+        try {
+            router.route();
+            Assert.fail();
+        } catch (IllegalStateException ise) {
+            // Expected.
+        }
+        Assert.assertFalse(router.shard(0).next());
+        Assert.assertFalse(router.shard(1).next());
+    }
+
+    /**
+     * Consumes all the shards concurrently, collecting the values of <code>column</code>.
+     */
+    private List<List<String>> consume(RootRouter router, int shards, final int column) throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(shards);
+        try {
+            final List<Future<List<String>>> futures = new ArrayList<>();
+            for(int i = 0; i < shards; i++) {
+                final Result shard = router.shard(i);
+                futures.add(pool.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        final List<String> values = new ArrayList<>();
+                        while(shard.next()) values.add(shard.getValue(column));
+                        return values;
+                    }
+                }));
+            }
+            router.route();
+            final List<List<String>> out = new ArrayList<>();
+            for(Future<List<String>> future : futures) out.add(future.get());
+            return out;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
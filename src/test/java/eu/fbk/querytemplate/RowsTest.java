@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.Rows}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class RowsTest {
+
+    @Test
+    public void testResultRow() {
+        final MaterializedResult result = new MaterializedResult(
+                new String[]{"s", "p", "o"},
+                Arrays.asList(new String[]{"s1", "p1", "o1"}, new String[]{"s2", "p2", "o2"})
+        );
+        final Rows.ResultRow row = new Rows.ResultRow(result);
+        Assert.assertEquals(1, row.indexOf("p"));
+        Assert.assertEquals(-1, row.indexOf("x"));
+        Assert.assertTrue(result.next());
+        Assert.assertEquals("o1", row.getValue(2));
+        Assert.assertTrue(result.next());
+        Assert.assertEquals("o2", row.getValue(2));
+        Assert.assertArrayEquals(new String[]{"s2", "p2", "o2"}, row.getValues());
+    }
+
+    @Test
+    public void testExtendedRow() {
+        final Rows.ArrayRow base = new Rows.ArrayRow(new String[]{"s", "o"});
+        final Rows.ExtendedRow row = new Rows.ExtendedRow(base, "x");
+        base.set(new String[]{"s1", "o1"});
+        row.set("x1");
+        Assert.assertArrayEquals(new String[]{"s", "o", "x"}, row.getBindings());
+        Assert.assertEquals(2, row.indexOf("x"));
+        Assert.assertArrayEquals(new String[]{"s1", "o1", "x1"}, row.getValues());
+        base.set(new String[]{"s2", "o2"});
+        Assert.assertEquals("o2", row.getValue(1));
+    }
+
+    @Test
+    public void testArrayAdapter() {
+        final StringWriter out = new StringWriter();
+        final PrintResultCollector collector = new PrintResultCollector(new PrintWriter(out));
+        final Rows.ArrayRow row = new Rows.ArrayRow(new String[]{"p", "o"}).set(new String[]{"p1", "o1"});
+        Rows.values(collector, row);
+        Rows.collect(collector, row);
+        collector.end();
+        Assert.assertEquals(
+                String.format("Values: [p1, o1]%nCollect: [p, o] [p1, o1]%nEnd%n"),
+                out.toString()
+        );
+    }
+
+}
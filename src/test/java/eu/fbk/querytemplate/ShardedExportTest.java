@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import eu.fbk.JSONUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rdfhdt.hdt.hdt.HDT;
+import org.rdfhdt.hdt.hdt.HDTManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.ShardedExport}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class ShardedExportTest {
+
+    @Test
+    public void testExport() throws IOException {
+        final HDT hdt = HDTManager.loadIndexedHDT("hdt-data/dblp-2012-11-28.hdt.gz", null);
+        final DefaultNestedQuery nestedQuery = new DefaultNestedQuery();
+        nestedQuery.addQuery(
+                "articles",
+                new ParameterizedQuery("SELECT * {?Article a <$Type>. ?Article ?p ?o } LIMIT 100"),
+                "Article"
+        );
+        nestedQuery.addQuery(
+                "agents",
+                new ParameterizedQuery(
+                        "SELECT * {?Agent a <http://xmlns.com/foaf/0.1/Agent>. <$Article> <http://purl.org/dc/elements/1.1/creator> ?Agent. ?Agent ?p ?o}"
+                ),
+                "Agent"
+        );
+        final ShardedExport export = new ShardedExport(hdt, nestedQuery, "p:o");
+        export.setParallelism(4);
+        final File output = File.createTempFile("sharded", ".json.gz");
+        export.export(
+                new HDTQueryExecutor(hdt),
+                new HashMap<String, String>(){{ put("Type", "http://swrc.ontoware.org/ontology#Article"); }},
+                output
+        );
+        Assert.assertEquals(
+                JSONUtils.parseJSON(this.getClass().getResourceAsStream("nested-query1-result.json")),
+                JSONUtils.parseJSON(new GZIPInputStream(new FileInputStream(output)))
+        );
+        output.delete();
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package eu.fbk.querytemplate;
+
+import eu.fbk.JSONUtils;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+/**
+ * Test case for {@link eu.fbk.querytemplate.SmileResultCollector}.
+ *
+ * @author Michele Mostarda (mostarda@fbk.eu)
+ */
+public class SmileResultCollectorTest {
+
+    private static final String CREATOR = "http://purl.org/dc/elements/1.1/creator";
+
+    @Test
+    public void testSmileMatchesJSON() throws IOException {
+        final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        final JsonGenerator generator = new JsonFactory().createJsonGenerator(new OutputStreamWriter(json));
+        collect(new JSONResultCollector(generator, "p:o"));
+
+        final ByteArrayOutputStream smile = new ByteArrayOutputStream();
+        collect(new SmileResultCollector(smile, "p:o"));
+
+        Assert.assertEquals(
+                JSONUtils.parseJSON(json.toString()),
+                new ObjectMapper(new SmileFactory()).readTree(smile.toByteArray())
+        );
+        Assert.assertTrue(smile.size() < json.size() / 2);
+    }
+
+    private void collect(ResultCollector collector) {
+        final String[] bindings = {"Article", "p", "o"};
+        collector.begin();
+        collector.startLevel(0, "articles");
+        for(int i = 0; i < 50; i++) {
+            final String article = "http://dblp.l3s.de/d2r/resource/publications/journals/a" + i;
+            collector.pivot(article);
+            collector.collect(bindings, new String[] {article, CREATOR, "http://dblp.l3s.de/d2r/resource/authors/A"});
+            collector.collect(bindings, new String[] {article, CREATOR, "http://dblp.l3s.de/d2r/resource/authors/B"});
+        }
+        collector.endLevel(0);
+        collector.end();
+    }
+
+}